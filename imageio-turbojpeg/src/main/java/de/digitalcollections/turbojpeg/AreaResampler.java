@@ -0,0 +1,102 @@
+package de.digitalcollections.turbojpeg;
+
+import java.util.Arrays;
+
+/**
+ * Downscales byte-interleaved pixels by averaging the area of the source covered by each target
+ * pixel.
+ *
+ * <p>The source is streamed row by row. Each source pixel covers at most two target pixels per
+ * axis, with exact overlaps that are integer weights in a coordinate system scaled by both sizes: a
+ * source pixel is {@code targetSize} units long and a target pixel {@code sourceSize} units. The
+ * weights of the columns are precomputed, those of the rows are computed while streaming.
+ */
+final class AreaResampler {
+
+  private final int srcWidth;
+  private final int srcHeight;
+  private final int dstWidth;
+  private final int dstHeight;
+  private final int channels;
+  // Target column of each source column and the weight it contributes to it, the remainder of the
+  // weight goes to the following column
+  private final int[] columns;
+  private final int[] columnWeights;
+
+  AreaResampler(int srcWidth, int srcHeight, int dstWidth, int dstHeight, int channels) {
+    if (dstWidth <= 0 || dstHeight <= 0 || dstWidth > srcWidth || dstHeight > srcHeight) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Invalid target size %dx%d, must be between 1x1 and %dx%d",
+              dstWidth, dstHeight, srcWidth, srcHeight));
+    }
+    this.srcWidth = srcWidth;
+    this.srcHeight = srcHeight;
+    this.dstWidth = dstWidth;
+    this.dstHeight = dstHeight;
+    this.channels = channels;
+    this.columns = new int[srcWidth];
+    this.columnWeights = new int[srcWidth];
+    computeWeights(srcWidth, dstWidth, columns, columnWeights);
+  }
+
+  private static void computeWeights(int srcSize, int dstSize, int[] indices, int[] weights) {
+    for (int i = 0; i < srcSize; i++) {
+      long start = (long) i * dstSize;
+      int index = (int) (start / srcSize);
+      long boundary = (long) (index + 1) * srcSize;
+      indices[i] = index;
+      weights[i] = (int) Math.min(dstSize, boundary - start);
+    }
+  }
+
+  /**
+   * Resample the pixels.
+   *
+   * @param src Source pixels, rows of {@code srcPitch} bytes starting at {@code srcOffset}
+   * @param dst Target pixels, rows of {@code dstPitch} bytes starting at {@code dstOffset}
+   */
+  void resample(byte[] src, int srcOffset, int srcPitch, byte[] dst, int dstOffset, int dstPitch) {
+    int rowLength = dstWidth * channels;
+    // Horizontally reduced source row, each value is the sum of srcWidth weighted units
+    long[] row = new long[rowLength];
+    // Vertical sums of the current target row
+    long[] current = new long[rowLength];
+    long total = (long) srcWidth * srcHeight;
+    int dstRow = 0;
+    for (int y = 0; y < srcHeight; y++) {
+      Arrays.fill(row, 0);
+      int pos = srcOffset + y * srcPitch;
+      for (int x = 0; x < srcWidth; x++) {
+        int out = columns[x] * channels;
+        int weight = columnWeights[x];
+        int rest = dstWidth - weight;
+        for (int c = 0; c < channels; c++) {
+          int value = src[pos++] & 0xFF;
+          row[out + c] += value * weight;
+          if (rest > 0) {
+            row[out + channels + c] += value * rest;
+          }
+        }
+      }
+      long start = (long) y * dstHeight;
+      long boundary = (long) (dstRow + 1) * srcHeight;
+      int weight = (int) Math.min(dstHeight, boundary - start);
+      int rest = dstHeight - weight;
+      for (int i = 0; i < rowLength; i++) {
+        current[i] += row[i] * weight;
+      }
+      if (rest > 0 || start + dstHeight == boundary) {
+        // The current target row is complete
+        int out = dstOffset + dstRow * dstPitch;
+        for (int i = 0; i < rowLength; i++) {
+          dst[out + i] = (byte) ((current[i] + total / 2) / total);
+        }
+        dstRow++;
+        for (int i = 0; i < rowLength; i++) {
+          current[i] = row[i] * rest;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Dimension;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * The compression and decompression functions that differ between the TurboJPEG 2 and TurboJPEG 3
+ * APIs.
+ *
+ * <p>All other operations use the TurboJPEG 2 functions, which are still provided by libjpeg-turbo
+ * 3. All methods take a leased handle of the matching type and throw a {@link TurboJpegException}
+ * with the message of the library if the native call fails.
+ */
+interface Backend {
+
+  /** Major version of the TurboJPEG API, 2 or 3. */
+  int getVersion();
+
+  /**
+   * Read the header of a JPEG image into the {@code jpeg*} fields of the handle.
+   *
+   * @param jpegData JPEG data, read from its position to its limit
+   */
+  void decompressHeader(Handle handle, ByteBuffer jpegData) throws TurboJpegException;
+
+  void decompressHeader(Handle handle, byte[] jpegData) throws TurboJpegException;
+
+  /**
+   * Check the subsampling reported by the library for the header of an image. Depending on the
+   * version, the library classifies layouts without a {@link TJSAMP} constant, e.g. 4:1:1, or
+   * reports unusual sampling factors as unknown.
+   *
+   * @return the subsampling
+   * @throws TurboJpegException if the subsampling is not supported
+   */
+  static int checkSubsampling(int subsampling) throws TurboJpegException {
+    for (TJSAMP value : TJSAMP.values()) {
+      if (value.intValue() == subsampling) {
+        return subsampling;
+      }
+    }
+    throw new TurboJpegException("Unsupported chroma subsampling: " + subsampling);
+  }
+
+  /**
+   * Decompress a JPEG image.
+   *
+   * @param jpegData JPEG data, read from its position to its limit
+   * @param factor Scaling factor that results in {@code size}
+   * @param size Scaled dimensions
+   * @param dst Output buffer, a {@link ByteBuffer} or, for packed pixel formats, an {@link
+   *     java.nio.IntBuffer}. It is written from its position, the bytes between the rows of a
+   *     pitched heap buffer are preserved.
+   * @param pitch Number of bytes per row in the output buffer
+   * @param flags {@code TJFLAG_*} flags
+   */
+  void decompress(
+      Handle handle,
+      ByteBuffer jpegData,
+      ScalingFactor factor,
+      Dimension size,
+      TJPF pixelFormat,
+      Buffer dst,
+      int pitch,
+      int flags)
+      throws TurboJpegException;
+
+  /**
+   * Compress an image into a preallocated buffer.
+   *
+   * @param src Pixels of the image, read from the position of the buffer
+   * @param pitch Number of bytes per row in the source buffer
+   * @param subsampling Chroma subsampling, {@link TJSAMP#TJSAMP_GRAY} for grayscale pixels
+   * @param options Quality and compression options, the subsampling of the options is ignored
+   * @param dst Direct output buffer, must have room for {@code tjBufSize(width, height,
+   *     subsampling)} bytes from its position
+   * @return the size of the JPEG image
+   */
+  int compress(
+      Handle handle,
+      Buffer src,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      TJSAMP subsampling,
+      EncodeOptions options,
+      ByteBuffer dst)
+      throws TurboJpegException;
+
+  /**
+   * Compress a planar YUV image into a preallocated buffer, without color conversion and chroma
+   * subsampling.
+   *
+   * @param options Quality and compression options, the subsampling of the options is ignored
+   * @param dst Direct output buffer, must have room for {@code tjBufSize(width, height,
+   *     subsampling)} bytes from its position
+   * @return the size of the JPEG image
+   */
+  int compressFromYuv(Handle handle, YuvImage yuv, EncodeOptions options, ByteBuffer dst)
+      throws TurboJpegException;
+}
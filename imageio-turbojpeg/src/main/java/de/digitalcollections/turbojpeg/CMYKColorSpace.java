@@ -0,0 +1,53 @@
+package de.digitalcollections.turbojpeg;
+
+import java.awt.color.ColorSpace;
+
+/**
+ * A naive CMYK color space without color management, see {@link CmykConverter} for the matching
+ * fast conversion of decoded pixels.
+ *
+ * <p>For an accurate conversion, an ICC profile of the press the image was prepared for is needed.
+ * With the profile, the samples of a decoded CMYK raster can be converted with:
+ *
+ * <pre><code>
+ * ICC_Profile profile = ICC_Profile.getInstance( path );
+ * new ICC_ColorSpace( profile );
+ * </code></pre>
+ */
+class CMYKColorSpace extends ColorSpace {
+
+  private final ColorSpace sRGB = getInstance(CS_sRGB);
+
+  CMYKColorSpace() {
+    super(ColorSpace.TYPE_CMYK, 4);
+  }
+
+  @Override
+  public float[] toRGB(float[] cmyk) {
+    float k = 1 - cmyk[3];
+    return new float[] {(1 - cmyk[0]) * k, (1 - cmyk[1]) * k, (1 - cmyk[2]) * k};
+  }
+
+  @Override
+  public float[] fromRGB(float[] rgbvalue) {
+    float c = 1 - rgbvalue[0];
+    float m = 1 - rgbvalue[1];
+    float y = 1 - rgbvalue[2];
+
+    float k = Math.min(c, Math.min(m, y));
+    if (k >= 1) {
+      return new float[] {0, 0, 0, 1};
+    }
+    return new float[] {(c - k) / (1 - k), (m - k) / (1 - k), (y - k) / (1 - k), k};
+  }
+
+  @Override
+  public float[] toCIEXYZ(float[] colorvalue) {
+    return sRGB.toCIEXYZ(toRGB(colorvalue));
+  }
+
+  @Override
+  public float[] fromCIEXYZ(float[] colorvalue) {
+    return fromRGB(sRGB.fromCIEXYZ(colorvalue));
+  }
+}
@@ -0,0 +1,85 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+
+/**
+ * Converts rows of CMYK pixels decoded by the library to the pixel format of a destination.
+ *
+ * <p>CMYK images written by Adobe applications, i.e. all images with an Adobe (APP14) marker, store
+ * inverted samples, where 255 means no ink. The samples are normalized so that 0 means no ink. The
+ * conversion to RGB uses the same naive formula as {@link CMYKColorSpace}, which is fast but does
+ * not match the colors of a color-managed conversion.
+ */
+final class CmykConverter {
+
+  // Offsets of the channels in the pixel formats, indexed by TJPF value (see tjRedOffset etc.)
+  private static final int[] RED_OFFSETS = {0, 2, 0, 2, 3, 1, -1, 0, 2, 3, 1, -1};
+  private static final int[] GREEN_OFFSETS = {1, 1, 1, 1, 2, 2, -1, 1, 1, 2, 2, -1};
+  private static final int[] BLUE_OFFSETS = {2, 0, 2, 0, 1, 3, -1, 2, 0, 1, 3, -1};
+  // Padding bytes are treated like alpha channels and set to opaque
+  private static final int[] ALPHA_OFFSETS = {-1, -1, 3, 3, 0, 0, -1, 3, 3, 0, 0, -1};
+
+  private final TJPF pixelFormat;
+  private final boolean inverted;
+
+  /**
+   * @param pixelFormat Pixel format of the destination
+   * @param inverted Whether the decoded samples are inverted
+   */
+  CmykConverter(TJPF pixelFormat, boolean inverted) {
+    this.pixelFormat = pixelFormat;
+    this.inverted = inverted;
+  }
+
+  /**
+   * Convert a row of pixels.
+   *
+   * @param src CMYK pixels
+   * @param dst Destination array
+   * @param dstOffset Index of the first pixel in the destination array
+   * @param width Number of pixels
+   */
+  void convertRow(byte[] src, byte[] dst, int dstOffset, int width) {
+    if (pixelFormat == TJPF.TJPF_CMYK) {
+      if (inverted) {
+        for (int i = 0; i < width * 4; i++) {
+          dst[dstOffset + i] = (byte) ~src[i];
+        }
+      } else {
+        System.arraycopy(src, 0, dst, dstOffset, width * 4);
+      }
+      return;
+    }
+    int format = pixelFormat.intValue();
+    int red = RED_OFFSETS[format];
+    int green = GREEN_OFFSETS[format];
+    int blue = BLUE_OFFSETS[format];
+    int alpha = ALPHA_OFFSETS[format];
+    int pixelSize = pixelFormat.getPixelSize();
+    // The amount of each primary is the product of the inverted ink amounts, which are the stored
+    // samples of inverted images
+    int flip = inverted ? 0 : 0xFF;
+    for (int i = 0, s = 0, d = dstOffset; i < width; i++, s += 4, d += pixelSize) {
+      int k = (src[s + 3] & 0xFF) ^ flip;
+      int r = multiply((src[s] & 0xFF) ^ flip, k);
+      int g = multiply((src[s + 1] & 0xFF) ^ flip, k);
+      int b = multiply((src[s + 2] & 0xFF) ^ flip, k);
+      if (pixelFormat == TJPF.TJPF_GRAY) {
+        dst[d] = (byte) ((r * 77 + g * 150 + b * 29 + 128) >> 8);
+        continue;
+      }
+      dst[d + red] = (byte) r;
+      dst[d + green] = (byte) g;
+      dst[d + blue] = (byte) b;
+      if (alpha >= 0) {
+        dst[d + alpha] = (byte) 0xFF;
+      }
+    }
+  }
+
+  /** Multiply two 8-bit values, i.e. {@code round(a * b / 255)} without a division. */
+  private static int multiply(int a, int b) {
+    int t = a * b + 128;
+    return (t + (t >> 8)) >> 8;
+  }
+}
@@ -0,0 +1,27 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJFLAG;
+
+/** Trade-off between decoding speed and accuracy. */
+public enum DecodeSpeed {
+  /** Accurate integer IDCT and smooth ("fancy") chroma upsampling, the library default. */
+  ACCURATE(TJFLAG.TJFLAG_ACCURATEDCT),
+  /** Fast integer IDCT, with a slight loss of accuracy. */
+  FAST(TJFLAG.TJFLAG_FASTDCT),
+  /**
+   * Fast integer IDCT and nearest-neighbor chroma upsampling, which can produce visible artifacts
+   * at sharp color edges of chroma-subsampled images.
+   */
+  FASTEST(TJFLAG.TJFLAG_FASTDCT | TJFLAG.TJFLAG_FASTUPSAMPLE);
+
+  private final int flags;
+
+  DecodeSpeed(int flags) {
+    this.flags = flags;
+  }
+
+  /** The TJFLAG_* flags to pass to the library. */
+  public int getFlags() {
+    return flags;
+  }
+}
@@ -0,0 +1,78 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+
+/**
+ * Options for compressing images, see {@link TurboJpeg#encode(java.awt.image.Raster,
+ * EncodeOptions)}.
+ *
+ * <p>The defaults produce baseline JPEGs with quality 85, 4:2:0 chroma subsampling and the accurate
+ * integer DCT. Progressive encoding and optimized Huffman tables reduce the size of the output by a
+ * few percent at the cost of a slower compression.
+ */
+public class EncodeOptions {
+
+  private int quality = 85;
+  private TJSAMP subsampling;
+  private boolean fastDct;
+  private boolean progressive;
+  private boolean optimizeHuffman;
+
+  public int getQuality() {
+    return quality;
+  }
+
+  /** Set the compression quality, from 1 (worst) to 100 (best). */
+  public void setQuality(int quality) {
+    if (quality < 1 || quality > 100) {
+      throw new IllegalArgumentException("Quality must be between 1 and 100");
+    }
+    this.quality = quality;
+  }
+
+  public TJSAMP getSubsampling() {
+    return subsampling;
+  }
+
+  /**
+   * Set the chroma subsampling of color images, e.g. {@link TJSAMP#TJSAMP_444} to avoid color
+   * bleeding at sharp edges or {@link TJSAMP#TJSAMP_GRAY} to encode them as grayscale images.
+   * Grayscale images are always encoded without chroma.
+   *
+   * @param subsampling the subsampling, or null for the default {@link TJSAMP#TJSAMP_420}
+   */
+  public void setSubsampling(TJSAMP subsampling) {
+    this.subsampling = subsampling;
+  }
+
+  public boolean isFastDct() {
+    return fastDct;
+  }
+
+  /** Use the fast integer forward DCT, with a slight loss of accuracy. */
+  public void setFastDct(boolean fastDct) {
+    this.fastDct = fastDct;
+  }
+
+  public boolean isProgressive() {
+    return progressive;
+  }
+
+  /** Encode a progressive JPEG, which always has optimized Huffman tables. */
+  public void setProgressive(boolean progressive) {
+    this.progressive = progressive;
+  }
+
+  public boolean isOptimizeHuffman() {
+    return optimizeHuffman;
+  }
+
+  /**
+   * Compute optimal Huffman tables for the image instead of using the standard ones, which requires
+   * an additional pass over the image. Only supported with the TurboJPEG 3 API (see {@link
+   * TurboJpeg#getApiVersion()}), the option is ignored for baseline JPEGs otherwise.
+   */
+  public void setOptimizeHuffman(boolean optimizeHuffman) {
+    this.optimizeHuffman = optimizeHuffman;
+  }
+}
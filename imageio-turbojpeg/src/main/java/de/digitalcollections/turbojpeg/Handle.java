@@ -0,0 +1,32 @@
+package de.digitalcollections.turbojpeg;
+
+import java.nio.ByteBuffer;
+import jnr.ffi.Pointer;
+import jnr.ffi.byref.IntByReference;
+
+/**
+ * A native TurboJPEG handle together with reusable holders for the output parameters of the native
+ * calls. Like the handle itself, the holders must only be used by the thread that leased the handle
+ * from its {@link HandlePool}.
+ */
+final class Handle {
+  final Pointer pointer;
+  final IntByReference width = new IntByReference();
+  final IntByReference height = new IntByReference();
+  final IntByReference subsampling = new IntByReference();
+  final IntByReference colorspace = new IntByReference();
+
+  // Header of the image last read with this handle, see Backend#decompressHeader
+  int jpegWidth;
+  int jpegHeight;
+  int jpegSubsampling;
+  int jpegColorspace;
+
+  // Output buffer of a compressor, reused across calls and grown as needed, see TurboJpeg#encode.
+  // Dropped on release if larger than HandlePool#MAX_RETAINED_OUTPUT_BUFFER.
+  ByteBuffer outputBuffer;
+
+  Handle(Pointer pointer) {
+    this.pointer = pointer;
+  }
+}
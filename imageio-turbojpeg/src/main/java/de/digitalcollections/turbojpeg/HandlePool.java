@@ -0,0 +1,99 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.libturbojpeg;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+import jnr.ffi.Pointer;
+
+/**
+ * Bounded pool of TurboJPEG handles of a single type (compressor, decompressor or transformer).
+ *
+ * <p>A handle is leased to a single thread via {@link #acquire()} and must be given back with
+ * {@link #release(Handle)} once the native call is done, it must never be used concurrently. If no
+ * idle handle is available, a new one is created, so callers never block on the pool. At most
+ * {@code size} idle handles are retained, surplus handles are destroyed when they are released. A
+ * size of 0 disables pooling, i.e. every lease creates and destroys its own handle.
+ *
+ * <p>Output buffers of more than {@value #MAX_RETAINED_OUTPUT_BUFFER} bytes are dropped when their
+ * handle is released, so that an idle handle does not hold on to the native memory of a single very
+ * large image.
+ */
+class HandlePool implements AutoCloseable {
+
+  /** Largest output buffer in bytes that is kept with an idle handle. */
+  static final int MAX_RETAINED_OUTPUT_BUFFER = 16 << 20;
+
+  private final libturbojpeg lib;
+  private final Supplier<Pointer> factory;
+  private final BlockingQueue<Handle> idle;
+  private volatile boolean closed;
+
+  HandlePool(libturbojpeg lib, Supplier<Pointer> factory, int size) {
+    if (size < 0) {
+      throw new IllegalArgumentException("Pool size must not be negative");
+    }
+    this.lib = lib;
+    this.factory = factory;
+    this.idle = size > 0 ? new ArrayBlockingQueue<>(size) : null;
+  }
+
+  /**
+   * Lease a handle, either an idle one from the pool or a newly created one.
+   *
+   * @return handle that is exclusively owned by the caller until it is released
+   * @throws TurboJpegException if a new handle could not be initialized
+   */
+  Handle acquire() throws TurboJpegException {
+    Handle handle = idle != null ? idle.poll() : null;
+    if (handle == null) {
+      Pointer pointer = factory.get();
+      if (pointer == null || pointer.address() == 0) {
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+      handle = new Handle(pointer);
+    }
+    return handle;
+  }
+
+  /**
+   * Return a leased handle to the pool. The handle is destroyed if the pool is full or closed.
+   * Oversized output buffers are dropped, see {@link #MAX_RETAINED_OUTPUT_BUFFER}.
+   *
+   * @param handle handle obtained from {@link #acquire()}, may be null
+   */
+  void release(Handle handle) {
+    if (handle == null) {
+      return;
+    }
+    if (handle.outputBuffer != null
+        && handle.outputBuffer.capacity() > MAX_RETAINED_OUTPUT_BUFFER) {
+      handle.outputBuffer = null;
+    }
+    if (closed || idle == null || !idle.offer(handle)) {
+      lib.tjDestroy(handle.pointer);
+    } else if (closed) {
+      // The pool was closed while we were returning the handle, make sure it doesn't leak
+      drain();
+    }
+  }
+
+  /** Number of idle handles currently held by the pool. */
+  int idleCount() {
+    return idle != null ? idle.size() : 0;
+  }
+
+  private void drain() {
+    Handle handle;
+    while (idle != null && (handle = idle.poll()) != null) {
+      lib.tjDestroy(handle.pointer);
+    }
+  }
+
+  /** Destroy all idle handles. Handles released after closing are destroyed immediately. */
+  @Override
+  public void close() {
+    closed = true;
+    drain();
+  }
+}
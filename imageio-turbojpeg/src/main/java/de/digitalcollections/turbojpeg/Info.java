@@ -4,17 +4,22 @@ import de.digitalcollections.turbojpeg.lib.enums.TJCS;
 import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
 import de.digitalcollections.turbojpeg.lib.structs.tjscalingfactor;
 import java.awt.Dimension;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
 
 public class Info {
-  private final int width;
-  private final int height;
-  private final TJSAMP subsampling;
-  private final TJCS colorspace;
-  final List<Dimension> availableSizes;
+  static final Comparator<ScalingFactor> SCALE_DESCENDING =
+      (a, b) -> Long.compare((long) b.getNum() * a.getDenom(), (long) a.getNum() * b.getDenom());
+
+  private int width;
+  private int height;
+  private TJSAMP subsampling;
+  private TJCS colorspace;
+  final List<Dimension> availableSizes = new ArrayList<>();
+  private final List<ScalingFactor> availableFactors = new ArrayList<>();
 
   public int getWidth() {
     return width;
@@ -36,29 +41,125 @@ public class Info {
     return availableSizes;
   }
 
-  private static int getScaled(int dim, int num, int denom) {
-    return (dim * num + denom - 1) / denom;
+  /**
+   * Get the largest size with the aspect ratio of the image that fits into a box, without
+   * upscaling.
+   *
+   * @param box Maximum width and height
+   * @return the size, at least 1×1
+   */
+  public Dimension getSizeToFit(Dimension box) {
+    if (box.width <= 0 || box.height <= 0) {
+      throw new IllegalArgumentException(
+          String.format("Invalid box %dx%d, must be at least 1x1", box.width, box.height));
+    }
+    if (box.width >= width && box.height >= height) {
+      return new Dimension(width, height);
+    }
+    // Compare the aspect ratios without rounding, the other side is rounded to the nearest pixel
+    if ((long) box.width * height <= (long) box.height * width) {
+      return new Dimension(
+          box.width, Math.max(1, (int) Math.round((double) height * box.width / width)));
+    }
+    return new Dimension(
+        Math.max(1, (int) Math.round((double) width * box.height / height)), box.height);
+  }
+
+  /**
+   * Get the index of the smallest available size that is at least as large as the target size in
+   * both dimensions, i.e. the cheapest size to decode before downscaling to the target size.
+   *
+   * @param target Target size, must not exceed the size of the image
+   * @return index into {@link #getAvailableSizes()}
+   */
+  public int getSizeIndexCovering(Dimension target) {
+    if (target.width > width || target.height > height) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Target size %dx%d exceeds the image size %dx%d",
+              target.width, target.height, width, height));
+    }
+    int index = 0;
+    for (int i = 1; i < availableSizes.size(); i++) {
+      Dimension size = availableSizes.get(i);
+      if (size.width < target.width || size.height < target.height) {
+        break;
+      }
+      index = i;
+    }
+    return index;
+  }
+
+  /**
+   * Get the scaling factor that results in the available size with the given index.
+   *
+   * @param index Index into {@link #getAvailableSizes()}
+   * @return scaling factor to pass to the decoder
+   */
+  public ScalingFactor getScalingFactor(int index) {
+    return availableFactors.get(index);
   }
 
   /** Create a new instance with the information parsed from the JPEG image. */
   public Info(int width, int height, int subsampling, int colorspace, tjscalingfactor[] factors) {
+    this(
+        width,
+        height,
+        subsampling,
+        colorspace,
+        Arrays.stream(factors)
+            .filter(f -> f.num.get() > 0 && f.denom.get() > 0)
+            .map(f -> new ScalingFactor(f.num.get(), f.denom.get()))
+            .sorted(SCALE_DESCENDING)
+            .collect(Collectors.toList()));
+  }
+
+  /**
+   * Create a new instance with the information parsed from the JPEG image.
+   *
+   * @param factors Scaling factors supported by the library, sorted from largest to smallest
+   */
+  public Info(int width, int height, int subsampling, int colorspace, List<ScalingFactor> factors) {
+    update(width, height, subsampling, colorspace, factors);
+  }
+
+  /**
+   * Refill this instance in place, so the holder (including the {@link Dimension} instances in the
+   * list of available sizes) can be reused for another image without allocating.
+   */
+  void update(int width, int height, int subsampling, int colorspace, List<ScalingFactor> factors) {
     this.width = width;
     this.height = height;
     this.subsampling = TJSAMP.fromInt(subsampling);
     this.colorspace = TJCS.fromInt(colorspace);
     // The available sizes are determined from the list of scaling factors.
-    this.availableSizes =
-        Arrays.stream(factors)
-            .filter(f -> f.denom.get() > 0)
-            .sorted(Comparator.comparing(f -> -getScaled(width, f.num.get(), f.denom.get())))
-            .map(
-                f ->
-                    new Dimension(
-                        getScaled(width, f.num.get(), f.denom.get()),
-                        getScaled(height, f.num.get(), f.denom.get())))
-            .filter(d -> d.width <= width && d.height <= height && d.width > 0 && d.height > 0)
-            .distinct()
-            .collect(Collectors.toList());
+    int numSizes = 0;
+    for (int i = 0; i < factors.size(); i++) {
+      ScalingFactor factor = factors.get(i);
+      int scaledWidth = factor.scale(width);
+      int scaledHeight = factor.scale(height);
+      if (scaledWidth > width || scaledHeight > height || scaledWidth <= 0 || scaledHeight <= 0) {
+        continue;
+      }
+      if (numSizes > 0) {
+        Dimension previous = availableSizes.get(numSizes - 1);
+        if (previous.width == scaledWidth && previous.height == scaledHeight) {
+          continue;
+        }
+      }
+      if (numSizes < availableSizes.size()) {
+        availableSizes.get(numSizes).setSize(scaledWidth, scaledHeight);
+        availableFactors.set(numSizes, factor);
+      } else {
+        availableSizes.add(new Dimension(scaledWidth, scaledHeight));
+        availableFactors.add(factor);
+      }
+      numSizes++;
+    }
+    while (availableSizes.size() > numSizes) {
+      availableSizes.remove(availableSizes.size() - 1);
+      availableFactors.remove(availableFactors.size() - 1);
+    }
   }
 
   /**
@@ -67,6 +168,11 @@ public class Info {
    * <p>Neccessary to calculate the right cropping alignments.
    */
   public Dimension getMCUSize() {
+    return getMCUSize(subsampling);
+  }
+
+  /** Get the size of the MCU (minimum coded unit) of images with the given subsampling. */
+  public static Dimension getMCUSize(TJSAMP subsampling) {
     switch (subsampling) {
       case TJSAMP_422: // 4:2:2
         return new Dimension(16, 8);
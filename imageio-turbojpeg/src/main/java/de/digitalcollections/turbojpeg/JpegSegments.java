@@ -0,0 +1,253 @@
+package de.digitalcollections.turbojpeg;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** Helpers to navigate the marker segments of a JPEG image held in memory. */
+final class JpegSegments {
+
+  static final int M_SOF0 = 0xC0;
+  static final int M_SOF1 = 0xC1;
+  static final int M_RST0 = 0xD0;
+  static final int M_SOI = 0xD8;
+  static final int M_EOI = 0xD9;
+  static final int M_SOS = 0xDA;
+  static final int M_DRI = 0xDD;
+  static final int M_APP1 = 0xE1;
+  static final int M_APP14 = 0xEE;
+
+  private static final byte[] ADOBE_ID = {'A', 'd', 'o', 'b', 'e'};
+  private static final byte[] EXIF_ID = {'E', 'x', 'i', 'f', 0, 0};
+
+  private static final int TAG_ORIENTATION = 0x0112;
+  private static final int TYPE_SHORT = 3;
+
+  /**
+   * Size of the markers preceding the image data up to which libturbojpeg can write a transformed
+   * image into a preallocated buffer. The buffer size computed by the library only reserves 2048
+   * bytes for the headers, which need to hold the copied markers as well as the regenerated tables.
+   */
+  static final int MAX_PREALLOCATED_HEADER_SIZE = 1024;
+
+  private JpegSegments() {}
+
+  /**
+   * Find the start of the first SOS (start of scan) marker.
+   *
+   * @param jpegData JPEG data, read from its position to its limit, the position is not modified
+   * @return the offset of the SOS marker relative to the buffer position, or -1 if there is none
+   */
+  static int findStartOfScan(ByteBuffer jpegData) {
+    return findSegment(jpegData, M_SOS, null);
+  }
+
+  /**
+   * Check whether the image has an Adobe (APP14) marker, which indicates that the samples of CMYK
+   * and YCCK images are stored inverted.
+   *
+   * @param jpegData JPEG data, read from its position to its limit, the position is not modified
+   */
+  static boolean hasAdobeMarker(ByteBuffer jpegData) {
+    return findSegment(jpegData, M_APP14, ADOBE_ID) >= 0;
+  }
+
+  /**
+   * Read the orientation tag from the first IFD of the EXIF (APP1) segment. Only the segment header
+   * and the entries of the IFD are read, the rest of the metadata is not parsed.
+   *
+   * @param jpegData JPEG data, read from its position to its limit, the position is not modified
+   * @return the orientation from 1 to 8, or 1 if there is no EXIF segment or no valid orientation
+   */
+  static int getExifOrientation(ByteBuffer jpegData) {
+    int offset = findSegment(jpegData, M_APP1, EXIF_ID);
+    if (offset < 0) {
+      return 1;
+    }
+    int segment = jpegData.position() + offset;
+    int length = ((jpegData.get(segment + 2) & 0xFF) << 8) | (jpegData.get(segment + 3) & 0xFF);
+    // Offsets in the TIFF structure are relative to its header, which follows the identifier
+    int tiff = segment + 4 + EXIF_ID.length;
+    int end = Math.min(jpegData.limit(), segment + 2 + length);
+    if (end - tiff < 8) {
+      return 1;
+    }
+    boolean littleEndian;
+    if (jpegData.get(tiff) == 'I' && jpegData.get(tiff + 1) == 'I') {
+      littleEndian = true;
+    } else if (jpegData.get(tiff) == 'M' && jpegData.get(tiff + 1) == 'M') {
+      littleEndian = false;
+    } else {
+      return 1;
+    }
+    if (getShort(jpegData, tiff + 2, littleEndian) != 42) {
+      return 1;
+    }
+    long ifd = getInt(jpegData, tiff + 4, littleEndian) & 0xFFFFFFFFL;
+    if (ifd < 8 || ifd > end - tiff - 2) {
+      return 1;
+    }
+    int pos = tiff + (int) ifd;
+    int entries = getShort(jpegData, pos, littleEndian);
+    pos += 2;
+    for (int i = 0; i < entries && pos + 12 <= end; i++, pos += 12) {
+      if (getShort(jpegData, pos, littleEndian) != TAG_ORIENTATION) {
+        continue;
+      }
+      if (getShort(jpegData, pos + 2, littleEndian) != TYPE_SHORT
+          || getInt(jpegData, pos + 4, littleEndian) != 1) {
+        return 1;
+      }
+      // Values of up to 4 bytes are stored left-aligned in the value field of the entry
+      int orientation = getShort(jpegData, pos + 8, littleEndian);
+      return orientation >= 1 && orientation <= 8 ? orientation : 1;
+    }
+    return 1;
+  }
+
+  /**
+   * Join horizontal strips of an image, each encoded as a sequential JPEG image with the same
+   * tables, into a single image with a restart marker at the start of every strip but the first.
+   *
+   * <p>The encoder pads the entropy-coded data to a whole byte at the end of an image just like
+   * before a restart marker, and the DC predictions start over at both. So the data of the strips
+   * can be concatenated as it is, with RSTn markers in between, under the header of the first strip
+   * with the height of the whole image and a DRI (define restart interval) segment. The height of
+   * every strip but the last one must be a multiple of the MCU height, and {@code restartInterval}
+   * the number of MCUs in each of these strips.
+   *
+   * @param strips JPEG images of the strips from top to bottom, each read from its position to its
+   *     limit, the positions are not modified
+   * @param height height of the whole image
+   * @param restartInterval number of MCUs between two restart markers, from 1 to 65535
+   * @return the joined image in a new heap buffer
+   * @throws IllegalArgumentException if the strips are not sequential images without restart
+   *     markers or if their headers differ in more than the height
+   */
+  static ByteBuffer joinStrips(List<ByteBuffer> strips, int height, int restartInterval) {
+    if (restartInterval < 1 || restartInterval > 0xFFFF) {
+      throw new IllegalArgumentException("Restart interval must be between 1 and 65535");
+    }
+    ByteBuffer first = strips.get(0);
+    int sof = findSegment(first, M_SOF0, null);
+    if (sof < 0) {
+      sof = findSegment(first, M_SOF1, null);
+    }
+    int sos = findStartOfScan(first);
+    if (sof < 0 || sos < 0 || findSegment(first, M_DRI, null) >= 0) {
+      throw new IllegalArgumentException("Strips must be sequential JPEG images without restarts");
+    }
+    int headerLength = sos + 2 + getShort(first, first.position() + sos + 2, false);
+    int length = headerLength + 6 + 2;
+    for (ByteBuffer strip : strips) {
+      int start = strip.position();
+      if (strip.remaining() < headerLength + 2
+          || (strip.get(strip.limit() - 2) & 0xFF) != 0xFF
+          || (strip.get(strip.limit() - 1) & 0xFF) != M_EOI) {
+        throw new IllegalArgumentException("Strips must be complete JPEG images");
+      }
+      for (int i = 0; i < headerLength; i++) {
+        // The height in the frame header is the only difference allowed
+        if (i != sof + 5
+            && i != sof + 6
+            && strip.get(start + i) != first.get(first.position() + i)) {
+          throw new IllegalArgumentException("Strips must be encoded with the same parameters");
+        }
+      }
+      // The entropy-coded data, followed by a restart marker instead of the EOI marker
+      length += strip.remaining() - headerLength;
+    }
+    // There is no restart marker after the last strip
+    length -= 2;
+    ByteBuffer joined = ByteBuffer.allocate(length);
+    ByteBuffer src = first.duplicate();
+    ((Buffer) src).limit(first.position() + sos);
+    joined.put(src);
+    joined.put((byte) 0xFF).put((byte) M_DRI).put((byte) 0).put((byte) 4);
+    joined.put((byte) (restartInterval >> 8)).put((byte) restartInterval);
+    ((Buffer) src).limit(first.position() + headerLength);
+    joined.put(src);
+    joined.put(sof + 5, (byte) (height >> 8)).put(sof + 6, (byte) height);
+    for (int i = 0; i < strips.size(); i++) {
+      ByteBuffer strip = strips.get(i);
+      src = strip.duplicate();
+      ((Buffer) src).position(strip.position() + headerLength).limit(strip.limit() - 2);
+      joined.put(src);
+      if (i < strips.size() - 1) {
+        joined.put((byte) 0xFF).put((byte) (M_RST0 + i % 8));
+      }
+    }
+    joined.put((byte) 0xFF).put((byte) M_EOI);
+    ((Buffer) joined).flip();
+    return joined;
+  }
+
+  private static int getShort(ByteBuffer data, int pos, boolean littleEndian) {
+    int b0 = data.get(pos) & 0xFF;
+    int b1 = data.get(pos + 1) & 0xFF;
+    return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+  }
+
+  private static int getInt(ByteBuffer data, int pos, boolean littleEndian) {
+    int hi = getShort(data, littleEndian ? pos + 2 : pos, littleEndian);
+    int lo = getShort(data, littleEndian ? pos : pos + 2, littleEndian);
+    return (hi << 16) | lo;
+  }
+
+  /**
+   * Find the first segment with the given marker in the header, i.e. up to the first SOS marker.
+   *
+   * @param identifier bytes the payload of the segment has to start with, or null
+   * @return the offset of the marker relative to the buffer position, or -1 if there is none
+   */
+  private static int findSegment(ByteBuffer jpegData, int target, byte[] identifier) {
+    int start = jpegData.position();
+    int limit = jpegData.limit();
+    int pos = start;
+    if (limit - pos < 2
+        || (jpegData.get(pos) & 0xFF) != 0xFF
+        || (jpegData.get(pos + 1) & 0xFF) != M_SOI) {
+      return -1;
+    }
+    pos += 2;
+    while (pos + 4 <= limit) {
+      if ((jpegData.get(pos) & 0xFF) != 0xFF) {
+        return -1;
+      }
+      int marker = jpegData.get(pos + 1) & 0xFF;
+      if (marker == 0xFF) {
+        // Fill byte
+        pos++;
+        continue;
+      }
+      if (marker == target && startsWith(jpegData, pos + 4, limit, identifier)) {
+        return pos - start;
+      }
+      if (marker == M_SOS) {
+        return -1;
+      }
+      if (marker == 0x01 || (marker >= 0xD0 && marker <= M_EOI)) {
+        // Standalone markers without a length
+        pos += 2;
+        continue;
+      }
+      pos += 2 + (((jpegData.get(pos + 2) & 0xFF) << 8) | (jpegData.get(pos + 3) & 0xFF));
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(ByteBuffer jpegData, int pos, int limit, byte[] prefix) {
+    if (prefix == null) {
+      return true;
+    }
+    if (limit - pos < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (jpegData.get(pos + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,290 @@
+package de.digitalcollections.turbojpeg;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of the restart (RSTn) markers in the entropy-coded data of a sequential JPEG image with a
+ * single scan.
+ *
+ * <p>The entropy decoder is reset at every restart marker, so the data between two markers can be
+ * decoded without the data before them. Where a restart interval starts at the beginning of a row
+ * of MCUs, the image can be split into horizontal bands. Each band is turned into a standalone JPEG
+ * image with the original tables, the height of the band in the frame header and its restart
+ * markers renumbered from RST0.
+ *
+ * <p>All offsets are relative to the position of the buffer the index was created from.
+ */
+final class RestartIndex {
+
+  private static final int M_DHT = 0xC4;
+  private static final int M_RST7 = 0xD7;
+
+  private final int width;
+  private final int height;
+  private final int mcuWidth;
+  private final int mcuHeight;
+  private final int restartInterval;
+  // Offset of the height in the frame header
+  private final int heightOffset;
+  // Offset of the entropy-coded data, i.e. the end of the header
+  private final int dataOffset;
+  // Offset of the end of the entropy-coded data, i.e. the EOI marker or the end of the buffer
+  private final int dataEnd;
+  // Offsets of the restart markers, the n-th marker starts the interval n + 1
+  private final int[] markers;
+
+  private RestartIndex(
+      int width,
+      int height,
+      int mcuWidth,
+      int mcuHeight,
+      int restartInterval,
+      int heightOffset,
+      int dataOffset,
+      int dataEnd,
+      int[] markers) {
+    this.width = width;
+    this.height = height;
+    this.mcuWidth = mcuWidth;
+    this.mcuHeight = mcuHeight;
+    this.restartInterval = restartInterval;
+    this.heightOffset = heightOffset;
+    this.dataOffset = dataOffset;
+    this.dataEnd = dataEnd;
+    this.markers = markers;
+  }
+
+  /**
+   * Index the restart markers of a JPEG image.
+   *
+   * @param jpegData JPEG data, read from its position to its limit, the position is not modified
+   * @return the index, or null if the image is not a sequential Huffman-coded image with a single
+   *     scan and restart markers
+   */
+  static RestartIndex parse(ByteBuffer jpegData) {
+    int start = jpegData.position();
+    int limit = jpegData.limit();
+    int pos = start;
+    if (limit - pos < 2
+        || (jpegData.get(pos) & 0xFF) != 0xFF
+        || (jpegData.get(pos + 1) & 0xFF) != JpegSegments.M_SOI) {
+      return null;
+    }
+    pos += 2;
+    int width = 0;
+    int height = 0;
+    int maxH = 0;
+    int maxV = 0;
+    int numComponents = 0;
+    int heightOffset = -1;
+    int restartInterval = 0;
+    // Walk the header up to the start of the scan
+    while (true) {
+      if (pos + 4 > limit || (jpegData.get(pos) & 0xFF) != 0xFF) {
+        return null;
+      }
+      int marker = jpegData.get(pos + 1) & 0xFF;
+      if (marker == 0xFF) {
+        pos++;
+        continue;
+      }
+      int length = getShort(jpegData, pos + 2);
+      if (length < 2 || pos + 2 + length > limit) {
+        return null;
+      }
+      if (marker == JpegSegments.M_SOF0 || marker == JpegSegments.M_SOF1) {
+        if (length < 8) {
+          return null;
+        }
+        heightOffset = pos + 5;
+        height = getShort(jpegData, pos + 5);
+        width = getShort(jpegData, pos + 7);
+        numComponents = jpegData.get(pos + 9) & 0xFF;
+        if (length < 8 + 3 * numComponents) {
+          return null;
+        }
+        for (int i = 0; i < numComponents; i++) {
+          int sampling = jpegData.get(pos + 11 + 3 * i) & 0xFF;
+          maxH = Math.max(maxH, sampling >> 4);
+          maxV = Math.max(maxV, sampling & 0x0F);
+        }
+      } else if (marker >= 0xC2
+          && marker <= 0xCF
+          && marker != M_DHT
+          && marker != 0xC8
+          && marker != 0xCC) {
+        // Progressive, lossless or arithmetic-coded frames
+        return null;
+      } else if (marker == JpegSegments.M_DRI) {
+        restartInterval = getShort(jpegData, pos + 4);
+      } else if (marker == JpegSegments.M_SOS) {
+        int scanComponents = jpegData.get(pos + 4) & 0xFF;
+        if (heightOffset < 0 || scanComponents != numComponents) {
+          return null;
+        }
+        pos += 2 + length;
+        break;
+      }
+      pos += 2 + length;
+    }
+    if (restartInterval == 0 || width == 0 || height == 0 || maxH == 0 || maxV == 0) {
+      return null;
+    }
+    // A scan with a single component is not interleaved, its MCUs are single blocks
+    int mcuWidth = numComponents == 1 ? 8 : 8 * maxH;
+    int mcuHeight = numComponents == 1 ? 8 : 8 * maxV;
+    int dataOffset = pos;
+    int dataEnd = limit;
+    List<Integer> markers = new ArrayList<>();
+    while (pos + 1 < limit) {
+      if ((jpegData.get(pos) & 0xFF) != 0xFF) {
+        pos++;
+        continue;
+      }
+      int marker = jpegData.get(pos + 1) & 0xFF;
+      if (marker == 0x00 || marker == 0xFF) {
+        // Stuffed zero byte or fill byte
+        pos++;
+        continue;
+      }
+      if (marker >= JpegSegments.M_RST0 && marker <= M_RST7) {
+        markers.add(pos - start);
+        pos += 2;
+        continue;
+      }
+      if (marker == JpegSegments.M_EOI) {
+        dataEnd = pos;
+        break;
+      }
+      // Any other marker, e.g. a second scan or DNL
+      return null;
+    }
+    int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+    int mcuRows = (height + mcuHeight - 1) / mcuHeight;
+    long intervals = ((long) mcusPerRow * mcuRows + restartInterval - 1) / restartInterval;
+    if (markers.isEmpty() || markers.size() != intervals - 1) {
+      return null;
+    }
+    return new RestartIndex(
+        width,
+        height,
+        mcuWidth,
+        mcuHeight,
+        restartInterval,
+        heightOffset - start,
+        dataOffset - start,
+        dataEnd - start,
+        markers.stream().mapToInt(Integer::intValue).toArray());
+  }
+
+  private static int getShort(ByteBuffer data, int pos) {
+    return ((data.get(pos) & 0xFF) << 8) | (data.get(pos + 1) & 0xFF);
+  }
+
+  int getMcuHeight() {
+    return mcuHeight;
+  }
+
+  /**
+   * Split the image into at most {@code maxBands} bands of about the same height, at restart
+   * intervals that start a row of MCUs.
+   *
+   * @return the first MCU row of each band, starting with 0
+   */
+  int[] getBandRows(int maxBands) {
+    int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+    int mcuRows = (height + mcuHeight - 1) / mcuHeight;
+    List<Integer> rows = new ArrayList<>();
+    rows.add(0);
+    for (int band = 1; band < maxBands; band++) {
+      int target = (int) ((long) mcuRows * band / maxBands);
+      // First row at or after the target where an interval starts
+      int row = nextSplittableRow(target, mcusPerRow, mcuRows);
+      if (row >= mcuRows) {
+        break;
+      }
+      if (row > rows.get(rows.size() - 1)) {
+        rows.add(row);
+      }
+    }
+    return rows.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private int nextSplittableRow(int row, int mcusPerRow, int mcuRows) {
+    for (; row < mcuRows; row++) {
+      if ((long) row * mcusPerRow % restartInterval == 0) {
+        return row;
+      }
+    }
+    return mcuRows;
+  }
+
+  /**
+   * Extend a band by at least one row of MCUs above and below it, unless it is at the top or bottom
+   * of the image. Decoding the extended band yields the same pixels for the rows of the band as
+   * decoding the whole image, even if the chroma is upsampled from the neighbouring rows.
+   *
+   * @param startRow first MCU row of the band, which starts a restart interval
+   * @param endRow MCU row after the band, or the number of MCU rows for the last band
+   * @return the first MCU row of the extended band and the MCU row after it
+   */
+  int[] getOverlappingRows(int startRow, int endRow) {
+    int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+    int mcuRows = (height + mcuHeight - 1) / mcuHeight;
+    int from = startRow;
+    if (from > 0) {
+      // Last row before the band where an interval starts, row 0 always does
+      do {
+        from--;
+      } while ((long) from * mcusPerRow % restartInterval != 0);
+    }
+    int to = endRow < mcuRows ? nextSplittableRow(endRow + 1, mcusPerRow, mcuRows) : mcuRows;
+    return new int[] {from, to};
+  }
+
+  /** Get the height in pixels of the band between two MCU rows, the last band may be shorter. */
+  int getBandHeight(int startRow, int endRow) {
+    return Math.min(endRow * mcuHeight, height) - startRow * mcuHeight;
+  }
+
+  /**
+   * Build a standalone JPEG image of the rows of MCUs between two rows that start a restart
+   * interval.
+   *
+   * @param jpegData the JPEG data the index was created from
+   * @param startRow first MCU row of the band
+   * @param endRow MCU row after the band, or the number of MCU rows for the last band
+   */
+  ByteBuffer extractBand(ByteBuffer jpegData, int startRow, int endRow) {
+    int mcusPerRow = (width + mcuWidth - 1) / mcuWidth;
+    int firstInterval = (int) ((long) startRow * mcusPerRow / restartInterval);
+    int endInterval =
+        (int)
+            Math.min(
+                markers.length + 1,
+                ((long) endRow * mcusPerRow + restartInterval - 1) / restartInterval);
+    int from = firstInterval == 0 ? dataOffset : markers[firstInterval - 1] + 2;
+    int to = endInterval > markers.length ? dataEnd : markers[endInterval - 1];
+    ByteBuffer band = ByteBuffer.allocate(dataOffset + (to - from) + 2);
+    ByteBuffer src = jpegData.duplicate();
+    int start = jpegData.position();
+    ((Buffer) src).limit(start + dataOffset).position(start);
+    band.put(src);
+    int bandHeight = getBandHeight(startRow, endRow);
+    band.put(heightOffset, (byte) (bandHeight >> 8));
+    band.put(heightOffset + 1, (byte) bandHeight);
+    ((Buffer) src).limit(start + to).position(start + from);
+    band.put(src);
+    band.put((byte) 0xFF).put((byte) JpegSegments.M_EOI);
+    // The decoder expects the markers of each band to start with RST0
+    for (int i = firstInterval; i < endInterval - 1; i++) {
+      int offset = dataOffset + markers[i] - from;
+      band.put(offset + 1, (byte) (JpegSegments.M_RST0 + (i - firstInterval) % 8));
+    }
+    ((Buffer) band).flip();
+    return band;
+  }
+}
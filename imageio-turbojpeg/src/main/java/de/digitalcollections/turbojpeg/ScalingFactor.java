@@ -0,0 +1,50 @@
+package de.digitalcollections.turbojpeg;
+
+/** A scaling factor that libturbojpeg can apply during decompression (in the DCT domain). */
+public final class ScalingFactor {
+  private final int num;
+  private final int denom;
+
+  public ScalingFactor(int num, int denom) {
+    if (num <= 0 || denom <= 0) {
+      throw new IllegalArgumentException("Numerator and denominator must be positive");
+    }
+    this.num = num;
+    this.denom = denom;
+  }
+
+  public int getNum() {
+    return num;
+  }
+
+  public int getDenom() {
+    return denom;
+  }
+
+  /** Scale a dimension the same way libturbojpeg does (i.e. rounding up). */
+  public int scale(int dim) {
+    return (dim * num + denom - 1) / denom;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ScalingFactor)) {
+      return false;
+    }
+    ScalingFactor other = (ScalingFactor) o;
+    return num == other.num && denom == other.denom;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * num + denom;
+  }
+
+  @Override
+  public String toString() {
+    return num + "/" + denom;
+  }
+}
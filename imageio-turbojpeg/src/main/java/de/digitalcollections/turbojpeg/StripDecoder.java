@@ -0,0 +1,85 @@
+package de.digitalcollections.turbojpeg;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes a JPEG image in horizontal strips of whole MCU rows, see {@link
+ * TurboJpeg#decodeStrips(ByteBuffer, Info, Dimension, int, DecodeSpeed)}.
+ *
+ * <p>All strips are decoded into the same raster, so the Java heap needed for decoding is
+ * proportional to the strip height instead of the image height. A strip returned by {@link #next()}
+ * is overwritten by the following call and has to be consumed (e.g. resized or encoded) before.
+ * Instances are not thread-safe.
+ */
+public final class StripDecoder {
+
+  private final TurboJpeg lib;
+  private final ByteBuffer jpegData;
+  private final Info info;
+  private final Dimension size;
+  private final DecodeSpeed speed;
+  private final int stripHeight;
+  private final WritableRaster strip;
+  private int y;
+
+  StripDecoder(
+      TurboJpeg lib,
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      int stripHeight,
+      WritableRaster strip,
+      DecodeSpeed speed) {
+    this.lib = lib;
+    this.jpegData = jpegData;
+    this.info = info;
+    this.size = size;
+    this.speed = speed;
+    this.stripHeight = stripHeight;
+    this.strip = strip;
+  }
+
+  /** Width of the decoded image and the strips. */
+  public int getWidth() {
+    return size.width;
+  }
+
+  /** Height of the decoded image. */
+  public int getHeight() {
+    return size.height;
+  }
+
+  /** Height of all strips but the last one, which may be lower. */
+  public int getStripHeight() {
+    return stripHeight;
+  }
+
+  /** Whether there are strips left to decode. */
+  public boolean hasNext() {
+    return y < size.height;
+  }
+
+  /**
+   * Decode the next strip.
+   *
+   * @return the strip, its minimum y coordinate is the position of the strip in the image. The
+   *     raster is shared with this decoder and is overwritten by the next call.
+   * @throws TurboJpegException if decompression with library fails
+   * @throws NoSuchElementException if all strips have been decoded
+   */
+  public WritableRaster next() throws TurboJpegException {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    int height = Math.min(stripHeight, size.height - y);
+    Rectangle region = new Rectangle(0, y, size.width, height);
+    lib.decodeRegion(jpegData, info, size, region, strip, 0, 0, speed);
+    WritableRaster decoded = strip.createWritableChild(0, 0, size.width, height, 0, y, null);
+    y += height;
+    return decoded;
+  }
+}
@@ -0,0 +1,431 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Generates a static Deep Zoom tile pyramid from a JPEG image.
+ *
+ * <p>The pyramid is written as {@code <name>.dzi} and {@code
+ * <name>_files/<level>/<column>_<row>.jpg} without tile overlap, level 0 being a single pixel and
+ * the highest level the full resolution image. Each level is produced as cheaply as possible:
+ *
+ * <ul>
+ *   <li>The tiles of the full resolution level are cropped losslessly from the source, without
+ *       decoding and re-encoding them, if the tile size is a multiple of the MCU size. These tiles
+ *       keep the quality and chroma subsampling of the source, but not its metadata.
+ *   <li>The levels matching one of the scaling factors of the library (see {@link
+ *       Info#getAvailableSizes()}) are decoded with DCT scaling, one row of tiles at a time. The
+ *       TurboJPEG 2 API (see {@link TurboJpeg#getApiVersion()}) can not skip the rows above a
+ *       region, so these levels are decoded in full once instead and the memory use is proportional
+ *       to the size of the level.
+ *   <li>The levels below the smallest scaling factor are downsampled from the level above with a
+ *       2x2 box filter.
+ * </ul>
+ *
+ * <p>Tiles are processed in parallel on a fixed number of threads, which share the pooled handles
+ * of the {@link TurboJpeg} instance.
+ */
+public class TilePyramidGenerator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TilePyramidGenerator.class);
+
+  private final TurboJpeg lib;
+  private int tileSize = 256;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private EncodeOptions encodeOptions = new EncodeOptions();
+  private DecodeSpeed speed = DecodeSpeed.ACCURATE;
+
+  public TilePyramidGenerator(TurboJpeg lib) {
+    this.lib = lib;
+  }
+
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /** Set the width and height of the tiles, multiples of 16 allow lossless cropping. */
+  public void setTileSize(int tileSize) {
+    if (tileSize <= 0) {
+      throw new IllegalArgumentException("Tile size must be positive");
+    }
+    this.tileSize = tileSize;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Set the number of threads processing tiles. It should not exceed the pool size of the {@link
+   * TurboJpeg} instance, otherwise handles are created and destroyed for each tile.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Parallelism must be positive");
+    }
+    this.parallelism = parallelism;
+  }
+
+  public EncodeOptions getEncodeOptions() {
+    return encodeOptions;
+  }
+
+  /** Set the options for the tiles that are re-encoded. */
+  public void setEncodeOptions(EncodeOptions encodeOptions) {
+    this.encodeOptions = encodeOptions;
+  }
+
+  public DecodeSpeed getSpeed() {
+    return speed;
+  }
+
+  public void setSpeed(DecodeSpeed speed) {
+    this.speed = speed;
+  }
+
+  /**
+   * Generate the tile pyramid of a JPEG image.
+   *
+   * @param jpegData JPEG data, read from its position to its limit
+   * @param outputDir Directory to write the pyramid to, created if needed
+   * @param name Name of the descriptor file and prefix of the tile directory
+   * @return statistics about the generated pyramid
+   * @throws TurboJpegException if decoding, encoding or transforming an image fails
+   * @throws IOException if writing the output fails
+   */
+  public Result generate(ByteBuffer jpegData, Path outputDir, String name)
+      throws TurboJpegException, IOException {
+    long start = System.nanoTime();
+    Info info = lib.getInfo(jpegData);
+    int maxLevel = getMaxLevel(info.getWidth(), info.getHeight());
+    // The deepest level that can be decoded with DCT scaling, all levels below are downsampled
+    int deepestShift = 0;
+    for (int shift = 1; shift <= maxLevel; shift++) {
+      if (info.getAvailableSizes().contains(getLevelSize(info, shift))) {
+        deepestShift = shift;
+      }
+    }
+    Files.createDirectories(outputDir);
+    writeDescriptor(outputDir.resolve(name + ".dzi"), info);
+    Path tilesDir = outputDir.resolve(name + "_files");
+
+    Counters counters = new Counters();
+    // Decoding a row of tiles only decodes the rows it needs with the TurboJPEG 3 API
+    boolean decodeRows = lib.getApiVersion() >= 3;
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    List<Future<?>> tasks = new ArrayList<>();
+    try {
+      BufferedImage levelImage = null;
+      for (int shift = 0; shift <= maxLevel; shift++) {
+        Path levelDir = tilesDir.resolve(Integer.toString(maxLevel - shift));
+        Files.createDirectories(levelDir);
+        Dimension size = getLevelSize(info, shift);
+        boolean lossless = shift == 0 && canCropLosslessly(info);
+        if (lossless) {
+          for (int row = 0; row * tileSize < size.height; row++) {
+            int tileRow = row;
+            tasks.add(
+                executor.submit(
+                    () -> cropTileRow(jpegData.duplicate(), info, tileRow, levelDir, counters)));
+          }
+        } else if (shift < deepestShift && decodeRows) {
+          for (int row = 0; row * tileSize < size.height; row++) {
+            int tileRow = row;
+            tasks.add(
+                executor.submit(
+                    () ->
+                        decodeTileRow(
+                            jpegData.duplicate(), info, size, tileRow, levelDir, counters)));
+          }
+        }
+        if (shift < deepestShift && (lossless || decodeRows)) {
+          continue;
+        }
+        if (shift <= deepestShift) {
+          levelImage = createLevelImage(info, size.width, size.height);
+          lib.decodeRegion(
+              jpegData.duplicate(),
+              info,
+              size,
+              new Rectangle(size),
+              levelImage.getRaster(),
+              0,
+              0,
+              speed);
+        } else {
+          levelImage = downsample(levelImage);
+        }
+        if (lossless) {
+          continue;
+        }
+        BufferedImage image = levelImage;
+        for (int row = 0; row * tileSize < size.height; row++) {
+          int tileRow = row;
+          tasks.add(
+              executor.submit(() -> encodeTileRow(image.getRaster(), tileRow, levelDir, counters)));
+        }
+      }
+      for (Future<?> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while generating the pyramid", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof TurboJpegException) {
+        throw (TurboJpegException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+    Result result =
+        new Result(
+            maxLevel + 1,
+            counters.tiles.get(),
+            counters.losslessTiles.get(),
+            counters.bytes.get(),
+            System.nanoTime() - start);
+    LOG.info("Generated pyramid {}: {}", name, result);
+    return result;
+  }
+
+  /** Number of the full resolution level, i.e. the number of halvings down to a single pixel. */
+  static int getMaxLevel(int width, int height) {
+    int maxDimension = Math.max(width, height);
+    return 32 - Integer.numberOfLeadingZeros(maxDimension - 1);
+  }
+
+  /** Dimensions of the level {@code shift} levels below the full resolution. */
+  private static Dimension getLevelSize(Info info, int shift) {
+    return new Dimension(
+        (int) ((info.getWidth() + (1L << shift) - 1) >> shift),
+        (int) ((info.getHeight() + (1L << shift) - 1) >> shift));
+  }
+
+  private boolean canCropLosslessly(Info info) {
+    Dimension mcuSize = info.getMCUSize();
+    return !isCmyk(info) && tileSize % mcuSize.width == 0 && tileSize % mcuSize.height == 0;
+  }
+
+  private static boolean isCmyk(Info info) {
+    return info.getColorspace() == TJCS.TJCS_CMYK || info.getColorspace() == TJCS.TJCS_YCCK;
+  }
+
+  private static BufferedImage createLevelImage(Info info, int width, int height) {
+    int type =
+        info.getSubsampling() == TJSAMP.TJSAMP_GRAY && !isCmyk(info)
+            ? BufferedImage.TYPE_BYTE_GRAY
+            : BufferedImage.TYPE_3BYTE_BGR;
+    return new BufferedImage(width, height, type);
+  }
+
+  private Void cropTileRow(
+      ByteBuffer jpegData, Info info, int row, Path levelDir, Counters counters)
+      throws TurboJpegException, IOException {
+    List<TransformSpec> transforms = new ArrayList<>();
+    for (int x = 0; x < info.getWidth(); x += tileSize) {
+      TransformSpec transform =
+          new TransformSpec(
+              new Rectangle(
+                  x,
+                  row * tileSize,
+                  Math.min(tileSize, info.getWidth() - x),
+                  Math.min(tileSize, info.getHeight() - row * tileSize)),
+              0);
+      transform.setCopyNone(true);
+      transforms.add(transform);
+    }
+    // All tiles of the row are cropped from a single parse of the source
+    List<ByteBuffer> tiles = lib.transformBatch(jpegData, info, transforms);
+    for (int column = 0; column < tiles.size(); column++) {
+      ByteBuffer tile = tiles.get(column);
+      try (FileChannel channel = openTile(levelDir, column, row)) {
+        while (tile.hasRemaining()) {
+          channel.write(tile);
+        }
+      }
+      counters.add(tile.limit(), true);
+    }
+    return null;
+  }
+
+  private Void decodeTileRow(
+      ByteBuffer jpegData, Info info, Dimension size, int row, Path levelDir, Counters counters)
+      throws TurboJpegException, IOException {
+    Rectangle region =
+        new Rectangle(
+            0, row * tileSize, size.width, Math.min(tileSize, size.height - row * tileSize));
+    BufferedImage strip = createLevelImage(info, region.width, region.height);
+    lib.decodeRegion(jpegData, info, size, region, strip.getRaster(), 0, 0, speed);
+    writeTiles(strip.getRaster(), row, levelDir, counters);
+    return null;
+  }
+
+  private Void encodeTileRow(Raster level, int row, Path levelDir, Counters counters)
+      throws TurboJpegException, IOException {
+    int height = Math.min(tileSize, level.getHeight() - row * tileSize);
+    writeTiles(
+        level.createChild(0, row * tileSize, level.getWidth(), height, 0, 0, null),
+        row,
+        levelDir,
+        counters);
+    return null;
+  }
+
+  /** Encode the tiles of a row, which are read in place from child rasters of the strip. */
+  private void writeTiles(Raster strip, int row, Path levelDir, Counters counters)
+      throws TurboJpegException, IOException {
+    for (int column = 0; column * tileSize < strip.getWidth(); column++) {
+      int x = column * tileSize;
+      Raster tile =
+          strip.createChild(
+              x, 0, Math.min(tileSize, strip.getWidth() - x), strip.getHeight(), 0, 0, null);
+      try (FileChannel channel = openTile(levelDir, column, row)) {
+        counters.add(lib.encode(tile, encodeOptions, channel), false);
+      }
+    }
+  }
+
+  private static FileChannel openTile(Path levelDir, int column, int row) throws IOException {
+    return FileChannel.open(
+        levelDir.resolve(column + "_" + row + ".jpg"),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /** Halve the dimensions of an image, averaging blocks of 2x2 pixels. */
+  static BufferedImage downsample(BufferedImage src) {
+    int srcWidth = src.getWidth();
+    int srcHeight = src.getHeight();
+    BufferedImage dst = new BufferedImage((srcWidth + 1) / 2, (srcHeight + 1) / 2, src.getType());
+    int bands = src.getRaster().getNumBands();
+    byte[] srcData = ((DataBufferByte) src.getRaster().getDataBuffer()).getData();
+    byte[] dstData = ((DataBufferByte) dst.getRaster().getDataBuffer()).getData();
+    int srcStride = srcWidth * bands;
+    int i = 0;
+    for (int y = 0; y < dst.getHeight(); y++) {
+      // The last row and column are repeated for odd dimensions
+      int row0 = 2 * y * srcStride;
+      int row1 = Math.min(2 * y + 1, srcHeight - 1) * srcStride;
+      for (int x = 0; x < dst.getWidth(); x++) {
+        int col0 = 2 * x * bands;
+        int col1 = Math.min(2 * x + 1, srcWidth - 1) * bands;
+        for (int b = 0; b < bands; b++) {
+          int sum =
+              (srcData[row0 + col0 + b] & 0xFF)
+                  + (srcData[row0 + col1 + b] & 0xFF)
+                  + (srcData[row1 + col0 + b] & 0xFF)
+                  + (srcData[row1 + col1 + b] & 0xFF);
+          dstData[i++] = (byte) ((sum + 2) >> 2);
+        }
+      }
+    }
+    return dst;
+  }
+
+  private void writeDescriptor(Path path, Info info) throws IOException {
+    String descriptor =
+        String.format(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n"
+                + "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"jpg\""
+                + " Overlap=\"0\" TileSize=\"%d\">%n"
+                + "  <Size Width=\"%d\" Height=\"%d\"/>%n"
+                + "</Image>%n",
+            tileSize, info.getWidth(), info.getHeight());
+    Files.write(path, descriptor.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static final class Counters {
+    final AtomicInteger tiles = new AtomicInteger();
+    final AtomicInteger losslessTiles = new AtomicInteger();
+    final AtomicLong bytes = new AtomicLong();
+
+    void add(int length, boolean lossless) {
+      tiles.incrementAndGet();
+      if (lossless) {
+        losslessTiles.incrementAndGet();
+      }
+      bytes.addAndGet(length);
+    }
+  }
+
+  /** Statistics about a generated pyramid. */
+  public static final class Result {
+    private final int levels;
+    private final int tiles;
+    private final int losslessTiles;
+    private final long bytes;
+    private final long nanos;
+
+    Result(int levels, int tiles, int losslessTiles, long bytes, long nanos) {
+      this.levels = levels;
+      this.tiles = tiles;
+      this.losslessTiles = losslessTiles;
+      this.bytes = bytes;
+      this.nanos = nanos;
+    }
+
+    public int getLevels() {
+      return levels;
+    }
+
+    public int getTiles() {
+      return tiles;
+    }
+
+    /** Number of tiles that were cropped from the source without re-encoding them. */
+    public int getLosslessTiles() {
+      return losslessTiles;
+    }
+
+    /** Total size of the tiles in bytes. */
+    public long getBytes() {
+      return bytes;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    public double getTilesPerSecond() {
+      return tiles * 1e9 / Math.max(nanos, 1);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d levels, %d tiles (%d lossless), %d bytes in %.1f ms, %.1f tiles/s",
+          levels, tiles, losslessTiles, bytes, nanos / 1e6, getTilesPerSecond());
+    }
+  }
+}
@@ -0,0 +1,202 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJFLAG;
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import de.digitalcollections.turbojpeg.lib.libturbojpeg;
+import java.awt.Dimension;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import jnr.ffi.byref.NativeLongByReference;
+import jnr.ffi.byref.PointerByReference;
+
+/**
+ * Compression and decompression with the TurboJPEG 2 API, which can not optimize the Huffman tables
+ * of baseline images. Error messages are stored globally by the library, so the message of a failed
+ * call may be overwritten by a concurrent call.
+ */
+final class Tj2Backend implements Backend {
+
+  private final libturbojpeg lib;
+  private final Runtime runtime;
+
+  Tj2Backend(libturbojpeg lib) {
+    this.lib = lib;
+    this.runtime = Runtime.getRuntime(lib);
+  }
+
+  @Override
+  public int getVersion() {
+    return 2;
+  }
+
+  @Override
+  public void decompressHeader(Handle handle, ByteBuffer jpegData) throws TurboJpegException {
+    int rv =
+        lib.tjDecompressHeader3(
+            handle.pointer,
+            jpegData,
+            jpegData.remaining(),
+            handle.width,
+            handle.height,
+            handle.subsampling,
+            handle.colorspace);
+    if (rv != 0) {
+      throw new TurboJpegException(lib.tjGetErrorStr());
+    }
+    copyHeader(handle);
+  }
+
+  @Override
+  public void decompressHeader(Handle handle, byte[] jpegData) throws TurboJpegException {
+    int rv =
+        lib.tjDecompressHeader3(
+            handle.pointer,
+            jpegData,
+            jpegData.length,
+            handle.width,
+            handle.height,
+            handle.subsampling,
+            handle.colorspace);
+    if (rv != 0) {
+      throw new TurboJpegException(lib.tjGetErrorStr());
+    }
+    copyHeader(handle);
+  }
+
+  private static void copyHeader(Handle handle) throws TurboJpegException {
+    handle.jpegWidth = handle.width.getValue();
+    handle.jpegHeight = handle.height.getValue();
+    handle.jpegSubsampling = Backend.checkSubsampling(handle.subsampling.getValue());
+    handle.jpegColorspace = handle.colorspace.getValue();
+  }
+
+  @Override
+  public void decompress(
+      Handle handle,
+      ByteBuffer jpegData,
+      ScalingFactor factor,
+      Dimension size,
+      TJPF pixelFormat,
+      Buffer dst,
+      int pitch,
+      int flags)
+      throws TurboJpegException {
+    int rv;
+    if (!dst.isDirect() && pitch > size.width * pixelFormat.getPixelSize()) {
+      // The heap buffer has to be copied to native memory and back, otherwise the copy of the
+      // output would overwrite the bytes between the rows
+      if (dst instanceof IntBuffer) {
+        rv =
+            lib.tjDecompress2(
+                handle.pointer,
+                jpegData,
+                jpegData.remaining(),
+                (IntBuffer) dst,
+                size.width,
+                pitch,
+                size.height,
+                pixelFormat,
+                flags);
+      } else {
+        rv =
+            lib.tjDecompress2(
+                handle.pointer,
+                jpegData,
+                jpegData.remaining(),
+                (ByteBuffer) dst,
+                size.width,
+                pitch,
+                size.height,
+                pixelFormat,
+                flags);
+      }
+    } else {
+      rv =
+          lib.tjDecompress2(
+              handle.pointer,
+              jpegData,
+              jpegData.remaining(),
+              dst,
+              size.width,
+              pitch,
+              size.height,
+              pixelFormat,
+              flags);
+    }
+    if (rv != 0) {
+      throw new TurboJpegException(lib.tjGetErrorStr());
+    }
+  }
+
+  @Override
+  public int compress(
+      Handle handle,
+      Buffer src,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      TJSAMP subsampling,
+      EncodeOptions options,
+      ByteBuffer dst)
+      throws TurboJpegException {
+    // With TJFLAG_NOREALLOC the library writes to our buffer instead of allocating its own
+    PointerByReference bufPtrRef = new PointerByReference(Pointer.wrap(runtime, dst.slice()));
+    NativeLongByReference lenRef = new NativeLongByReference(dst.remaining());
+    int rv =
+        lib.tjCompress2(
+            handle.pointer,
+            src,
+            width,
+            pitch,
+            height,
+            pixelFormat,
+            bufPtrRef,
+            lenRef,
+            subsampling,
+            options.getQuality(),
+            getCompressFlags(options));
+    if (rv != 0) {
+      throw new TurboJpegException(lib.tjGetErrorStr());
+    }
+    return lenRef.getValue().intValue();
+  }
+
+  @Override
+  public int compressFromYuv(Handle handle, YuvImage yuv, EncodeOptions options, ByteBuffer dst)
+      throws TurboJpegException {
+    PointerByReference bufPtrRef = new PointerByReference(Pointer.wrap(runtime, dst.slice()));
+    NativeLongByReference lenRef = new NativeLongByReference(dst.remaining());
+    int rv =
+        lib.tjCompressFromYUVPlanes(
+            handle.pointer,
+            yuv.planePointers,
+            yuv.getWidth(),
+            yuv.getStrides(),
+            yuv.getHeight(),
+            yuv.getSubsampling(),
+            bufPtrRef,
+            lenRef,
+            options.getQuality(),
+            getCompressFlags(options));
+    if (rv != 0) {
+      throw new TurboJpegException(lib.tjGetErrorStr());
+    }
+    return lenRef.getValue().intValue();
+  }
+
+  private static int getCompressFlags(EncodeOptions options) {
+    int flags = TJFLAG.TJFLAG_NOREALLOC;
+    if (options.isFastDct()) {
+      flags |= TJFLAG.TJFLAG_FASTDCT;
+    }
+    if (options.isProgressive()) {
+      flags |= TJFLAG.TJFLAG_PROGRESSIVE;
+    }
+    return flags;
+  }
+}
@@ -0,0 +1,255 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJFLAG;
+import de.digitalcollections.turbojpeg.lib.enums.TJINIT;
+import de.digitalcollections.turbojpeg.lib.enums.TJPARAM;
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import de.digitalcollections.turbojpeg.lib.libturbojpeg3;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.Platform;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import jnr.ffi.byref.NativeLongByReference;
+import jnr.ffi.byref.PointerByReference;
+
+/**
+ * Compression and decompression with the TurboJPEG 3 API.
+ *
+ * <p>Parameters are stored in the handle and persist across calls, so every call sets all of the
+ * parameters it depends on. The cropping region is reset after each cropped decompression, since
+ * the pooled handles are shared with the TurboJPEG 2 functions.
+ */
+final class Tj3Backend implements Backend {
+
+  private final libturbojpeg3 lib;
+  private final Runtime runtime;
+
+  private Tj3Backend(libturbojpeg3 lib) {
+    this.lib = lib;
+    this.runtime = Runtime.getRuntime(lib);
+  }
+
+  /**
+   * Load the TurboJPEG 3 functions of the library.
+   *
+   * @return the backend, or null if the library does not provide the TurboJPEG 3 API or the structs
+   *     passed by value can not be bound on this platform
+   */
+  static Tj3Backend load() {
+    Platform platform = Platform.getNativePlatform();
+    if (platform.getOS() == Platform.OS.WINDOWS
+        || (platform.getCPU() != Platform.CPU.X86_64
+            && platform.getCPU() != Platform.CPU.AARCH64)) {
+      return null;
+    }
+    try {
+      libturbojpeg3 lib = LibraryLoader.create(libturbojpeg3.class).load("turbojpeg");
+      // Missing symbols only fail once they are called
+      Pointer handle = lib.tj3Init(TJINIT.TJINIT_DECOMPRESS);
+      if (handle == null || handle.address() == 0) {
+        return null;
+      }
+      lib.tj3Destroy(handle);
+      return new Tj3Backend(lib);
+    } catch (UnsatisfiedLinkError e) {
+      return null;
+    }
+  }
+
+  /** Pack two consecutive 32-bit struct members into the 64-bit word passing them by value. */
+  static long pack(int first, int second) {
+    return (first & 0xFFFFFFFFL) | ((long) second << 32);
+  }
+
+  @Override
+  public int getVersion() {
+    return 3;
+  }
+
+  @Override
+  public void decompressHeader(Handle handle, ByteBuffer jpegData) throws TurboJpegException {
+    check(handle, lib.tj3DecompressHeader(handle.pointer, jpegData, jpegData.remaining()));
+    copyHeader(handle);
+  }
+
+  @Override
+  public void decompressHeader(Handle handle, byte[] jpegData) throws TurboJpegException {
+    check(handle, lib.tj3DecompressHeader(handle.pointer, jpegData, jpegData.length));
+    copyHeader(handle);
+  }
+
+  private void copyHeader(Handle handle) throws TurboJpegException {
+    handle.jpegWidth = lib.tj3Get(handle.pointer, TJPARAM.TJPARAM_JPEGWIDTH);
+    handle.jpegHeight = lib.tj3Get(handle.pointer, TJPARAM.TJPARAM_JPEGHEIGHT);
+    // TJSAMP_UNKNOWN (-1), 4:1:1 and 4:4:1 have no TJSAMP constant
+    handle.jpegSubsampling =
+        Backend.checkSubsampling(lib.tj3Get(handle.pointer, TJPARAM.TJPARAM_SUBSAMP));
+    handle.jpegColorspace = lib.tj3Get(handle.pointer, TJPARAM.TJPARAM_COLORSPACE);
+  }
+
+  /** Set the decompression parameters and the scaling factor for the next call. */
+  private void setParameters(Handle handle, ScalingFactor factor, int flags)
+      throws TurboJpegException {
+    setFlag(handle, TJPARAM.TJPARAM_BOTTOMUP, flags, TJFLAG.TJFLAG_BOTTOMUP);
+    setFlag(handle, TJPARAM.TJPARAM_FASTUPSAMPLE, flags, TJFLAG.TJFLAG_FASTUPSAMPLE);
+    setFlag(handle, TJPARAM.TJPARAM_FASTDCT, flags, TJFLAG.TJFLAG_FASTDCT);
+    setFlag(handle, TJPARAM.TJPARAM_STOPONWARNING, flags, TJFLAG.TJFLAG_STOPONWARNING);
+    check(
+        handle, lib.tj3SetScalingFactor(handle.pointer, pack(factor.getNum(), factor.getDenom())));
+  }
+
+  private void setFlag(Handle handle, int param, int flags, int flag) throws TurboJpegException {
+    check(handle, lib.tj3Set(handle.pointer, param, (flags & flag) != 0 ? 1 : 0));
+  }
+
+  private void check(Handle handle, int rv) throws TurboJpegException {
+    if (rv != 0) {
+      throw new TurboJpegException(lib.tj3GetErrorStr(handle.pointer));
+    }
+  }
+
+  @Override
+  public void decompress(
+      Handle handle,
+      ByteBuffer jpegData,
+      ScalingFactor factor,
+      Dimension size,
+      TJPF pixelFormat,
+      Buffer dst,
+      int pitch,
+      int flags)
+      throws TurboJpegException {
+    setParameters(handle, factor, flags);
+    int rv;
+    if (!dst.isDirect() && pitch > size.width * pixelFormat.getPixelSize()) {
+      // See Tj2Backend#decompress
+      if (dst instanceof IntBuffer) {
+        rv =
+            lib.tj3Decompress8(
+                handle.pointer,
+                jpegData,
+                jpegData.remaining(),
+                (IntBuffer) dst,
+                pitch,
+                pixelFormat);
+      } else {
+        rv =
+            lib.tj3Decompress8(
+                handle.pointer,
+                jpegData,
+                jpegData.remaining(),
+                (ByteBuffer) dst,
+                pitch,
+                pixelFormat);
+      }
+    } else {
+      rv =
+          lib.tj3Decompress8(
+              handle.pointer, jpegData, jpegData.remaining(), dst, pitch, pixelFormat);
+    }
+    check(handle, rv);
+  }
+
+  /**
+   * Decompress a region of a JPEG image, skipping the MCU columns and rows outside of it. This is
+   * only supported by the TurboJPEG 3 API.
+   *
+   * @param jpegData JPEG data, read from its position to its limit
+   * @param factor Scaling factor
+   * @param region Region in the coordinates of the scaled image. Its left edge must be aligned to
+   *     the scaled MCU width.
+   * @param dst Output buffer for the region
+   * @param pitch Number of bytes per row in the output buffer
+   * @param flags {@code TJFLAG_*} flags
+   */
+  void decompressRegion(
+      Handle handle,
+      ByteBuffer jpegData,
+      ScalingFactor factor,
+      Rectangle region,
+      TJPF pixelFormat,
+      Pointer dst,
+      int pitch,
+      int flags)
+      throws TurboJpegException {
+    // The cropping region is validated against the header and the scaling factor
+    check(handle, lib.tj3DecompressHeader(handle.pointer, jpegData, jpegData.remaining()));
+    setParameters(handle, factor, flags);
+    try {
+      check(
+          handle,
+          lib.tj3SetCroppingRegion(
+              handle.pointer, pack(region.x, region.y), pack(region.width, region.height)));
+      check(
+          handle,
+          lib.tj3Decompress8(
+              handle.pointer, jpegData, jpegData.remaining(), dst, pitch, pixelFormat));
+    } finally {
+      // An empty region disables cropping. The error message has already been read at this point.
+      lib.tj3SetCroppingRegion(handle.pointer, 0, 0);
+    }
+  }
+
+  @Override
+  public int compress(
+      Handle handle,
+      Buffer src,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      TJSAMP subsampling,
+      EncodeOptions options,
+      ByteBuffer dst)
+      throws TurboJpegException {
+    setCompressParameters(handle, subsampling, options);
+    PointerByReference bufPtrRef = new PointerByReference(Pointer.wrap(runtime, dst.slice()));
+    NativeLongByReference lenRef = new NativeLongByReference(dst.remaining());
+    check(
+        handle,
+        lib.tj3Compress8(
+            handle.pointer, src, width, pitch, height, pixelFormat, bufPtrRef, lenRef));
+    return lenRef.getValue().intValue();
+  }
+
+  @Override
+  public int compressFromYuv(Handle handle, YuvImage yuv, EncodeOptions options, ByteBuffer dst)
+      throws TurboJpegException {
+    setCompressParameters(handle, yuv.getSubsampling(), options);
+    PointerByReference bufPtrRef = new PointerByReference(Pointer.wrap(runtime, dst.slice()));
+    NativeLongByReference lenRef = new NativeLongByReference(dst.remaining());
+    check(
+        handle,
+        lib.tj3CompressFromYUVPlanes8(
+            handle.pointer,
+            yuv.planePointers,
+            yuv.getWidth(),
+            yuv.getStrides(),
+            yuv.getHeight(),
+            bufPtrRef,
+            lenRef));
+    return lenRef.getValue().intValue();
+  }
+
+  private void setCompressParameters(Handle handle, TJSAMP subsampling, EncodeOptions options)
+      throws TurboJpegException {
+    check(handle, lib.tj3Set(handle.pointer, TJPARAM.TJPARAM_QUALITY, options.getQuality()));
+    check(handle, lib.tj3Set(handle.pointer, TJPARAM.TJPARAM_SUBSAMP, subsampling.intValue()));
+    check(handle, lib.tj3Set(handle.pointer, TJPARAM.TJPARAM_BOTTOMUP, 0));
+    check(handle, lib.tj3Set(handle.pointer, TJPARAM.TJPARAM_FASTDCT, options.isFastDct() ? 1 : 0));
+    check(
+        handle,
+        lib.tj3Set(handle.pointer, TJPARAM.TJPARAM_PROGRESSIVE, options.isProgressive() ? 1 : 0));
+    check(
+        handle,
+        lib.tj3Set(handle.pointer, TJPARAM.TJPARAM_OPTIMIZE, options.isOptimizeHuffman() ? 1 : 0));
+    // The library writes to our buffer instead of allocating its own
+    check(handle, lib.tj3Set(handle.pointer, TJPARAM.TJPARAM_NOREALLOC, 1));
+  }
+}
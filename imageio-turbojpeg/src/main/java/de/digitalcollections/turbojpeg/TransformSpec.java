@@ -0,0 +1,63 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJXOP;
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+
+/**
+ * A lossless transform of a JPEG image, see {@link TurboJpeg#transformBatch(ByteBuffer, Info,
+ * java.util.List)}.
+ */
+public class TransformSpec {
+
+  private final Rectangle region;
+  private final TJXOP operation;
+  private boolean gray;
+  private boolean copyNone;
+
+  /**
+   * @param region Region to crop out of the image, in the coordinates of the rotated image, or null
+   *     to keep the whole image. Its position must be aligned to the MCU size, its size as well
+   *     unless it extends to the right or bottom edge.
+   * @param rotation Degrees to rotate the image, must be 0, 90, 180 or 270
+   */
+  public TransformSpec(Rectangle region, int rotation) {
+    this(region, TurboJpeg.getRotationTransform(rotation));
+  }
+
+  /**
+   * @param region Region to crop out of the image, in the coordinates of the transformed image, or
+   *     null to keep the whole image
+   * @param operation Lossless operation to apply before cropping, e.g. a flip
+   */
+  public TransformSpec(Rectangle region, TJXOP operation) {
+    this.region = region;
+    this.operation = operation;
+  }
+
+  public Rectangle getRegion() {
+    return region;
+  }
+
+  public TJXOP getOperation() {
+    return operation;
+  }
+
+  public boolean isGray() {
+    return gray;
+  }
+
+  /** Discard the chrominance and produce a grayscale image. */
+  public void setGray(boolean gray) {
+    this.gray = gray;
+  }
+
+  public boolean isCopyNone() {
+    return copyNone;
+  }
+
+  /** Do not copy the metadata segments (e.g. EXIF data or ICC profiles) of the source image. */
+  public void setCopyNone(boolean copyNone) {
+    this.copyNone = copyNone;
+  }
+}
@@ -1,5 +1,7 @@
 package de.digitalcollections.turbojpeg;
 
+import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import de.digitalcollections.turbojpeg.lib.enums.TJFLAG;
 import de.digitalcollections.turbojpeg.lib.enums.TJPF;
 import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
 import de.digitalcollections.turbojpeg.lib.enums.TJXOP;
@@ -9,19 +11,34 @@ import de.digitalcollections.turbojpeg.lib.structs.tjscalingfactor;
 import de.digitalcollections.turbojpeg.lib.structs.tjtransform;
 import java.awt.Dimension;
 import java.awt.Rectangle;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
 import java.awt.image.DataBufferInt;
-import java.awt.image.DataBufferShort;
-import java.awt.image.DataBufferUShort;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
-
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import jnr.ffi.LibraryLoader;
+import jnr.ffi.Memory;
 import jnr.ffi.Pointer;
 import jnr.ffi.Runtime;
 import jnr.ffi.Struct;
@@ -31,16 +48,90 @@ import jnr.ffi.byref.PointerByReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-/** Java bindings for libturbojpeg via JFFI * */
-public class TurboJpeg {
+/**
+ * Java bindings for libturbojpeg via JFFI
+ *
+ * <p>Instances are thread-safe. The native compressor, decompressor and transformer handles are
+ * pooled and reused across calls, call {@link #close()} to release the pooled handles once the
+ * instance is no longer needed. Pooled compressors keep the output buffer of their largest image
+ * until they are released, buffers of more than 16 MiB are not kept.
+ */
+public class TurboJpeg implements AutoCloseable {
+
+  /** System property to configure the number of pooled handles per handle type. */
+  public static final String POOL_SIZE_PROPERTY = "de.digitalcollections.turbojpeg.poolSize";
+
+  /**
+   * System property to configure the highest TurboJPEG API version to use. Set it to 2 to keep
+   * using the TurboJPEG 2 functions of libjpeg-turbo 3.
+   */
+  public static final String API_VERSION_PROPERTY = "de.digitalcollections.turbojpeg.apiVersion";
+
+  /**
+   * Color model of the images CMYK and YCCK JPEGs are decoded to by default. The samples are
+   * normalized, i.e. 0 means no ink, even for the inverted samples of Adobe images.
+   */
+  public static final ColorModel COLOR_MODEL_CMYK =
+      new ComponentColorModel(
+          new CMYKColorSpace(), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
 
   private static final Logger LOG = LoggerFactory.getLogger(TurboJpeg.class);
+  // Gray samples of the eight pixels in a byte of a binary raster, indexed by the value of the byte
+  private static final byte[] BINARY_EXPANSION = createBinaryExpansion();
+
+  // Approximate number of pixels of the strips compressed concurrently by default
+  private static final int PARALLEL_STRIP_PIXELS = 1 << 20;
+
   public libturbojpeg lib;
   public Runtime runtime;
 
+  private final HandlePool compressors;
+  private final HandlePool decompressors;
+  private final HandlePool transformers;
+  private final List<ScalingFactor> scalingFactors;
+  private final Backend backend;
+
+  /**
+   * Load the library with the pool size from the {@value #POOL_SIZE_PROPERTY} system property,
+   * defaulting to the number of available processors.
+   */
   public TurboJpeg() {
+    this(
+        Integer.getInteger(
+            POOL_SIZE_PROPERTY, java.lang.Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Load the library.
+   *
+   * <p>The TurboJPEG 3 API is used for decompression if the library provides it, unless it is
+   * disabled with the {@value #API_VERSION_PROPERTY} system property.
+   *
+   * @param poolSize Maximum number of idle handles to retain per handle type, 0 disables pooling
+   */
+  public TurboJpeg(int poolSize) {
+    this(poolSize, Integer.getInteger(API_VERSION_PROPERTY, 3));
+  }
+
+  TurboJpeg(int poolSize, int maxApiVersion) {
     lib = LibraryLoader.create(libturbojpeg.class).load("turbojpeg");
     runtime = Runtime.getRuntime(lib);
+    compressors = new HandlePool(lib, lib::tjInitCompress, poolSize);
+    decompressors = new HandlePool(lib, lib::tjInitDecompress, poolSize);
+    transformers = new HandlePool(lib, lib::tjInitTransform, poolSize);
+    scalingFactors = loadScalingFactors();
+    Backend tj3 = maxApiVersion >= 3 ? Tj3Backend.load() : null;
+    backend = tj3 != null ? tj3 : new Tj2Backend(lib);
+    LOG.debug("Using the TurboJPEG {} API", backend.getVersion());
+  }
+
+  /**
+   * Get the version of the TurboJPEG API used for decompression.
+   *
+   * @return 3 if the TurboJPEG 3 API of libjpeg-turbo 3.0 or later is used, 2 otherwise
+   */
+  public int getApiVersion() {
+    return backend.getVersion();
   }
 
   /**
@@ -52,48 +143,110 @@ public class TurboJpeg {
    *     fails
    */
   public Info getInfo(byte[] jpegData) throws TurboJpegException {
-    Pointer codec = null;
+    return getInfo(jpegData, null);
+  }
+
+  /**
+   * Return information about the JPEG image in the input buffer, reusing an existing {@link Info}
+   * instance.
+   *
+   * <p>The reused instance (and its list of available sizes) is refilled in place, so repeated
+   * header probes do not allocate new holders. Consequently, it must not be shared between threads
+   * and previously returned values of its getters may change.
+   *
+   * @param jpegData jpeg image data
+   * @param reuse instance to refill, or null to create a new one
+   * @return information about the jpeg image, the same instance as {@code reuse} if it was set
+   * @throws de.digitalcollections.turbojpeg.TurboJpegException if decompressing header with library
+   *     fails
+   */
+  public Info getInfo(byte[] jpegData, Info reuse) throws TurboJpegException {
+    Handle codec = decompressors.acquire();
     try {
-      codec = lib.tjInitDecompress();
+      backend.decompressHeader(codec, jpegData);
+      return toInfo(codec, reuse);
+    } finally {
+      decompressors.release(codec);
+    }
+  }
 
-      IntByReference width = new IntByReference();
-      IntByReference height = new IntByReference();
-      IntByReference jpegSubsamp = new IntByReference();
-      IntByReference jpegColorspace = new IntByReference();
-      int rv =
-          lib.tjDecompressHeader3(
-              codec,
-              ByteBuffer.wrap(jpegData),
-              jpegData.length,
-              width,
-              height,
-              jpegSubsamp,
-              jpegColorspace);
-      if (rv != 0) {
-        throw new TurboJpegException(lib.tjGetErrorStr());
-      }
+  /**
+   * Return information about the JPEG image in the input buffer
+   *
+   * <p>The data between the position and the limit of the buffer is read, the position is not
+   * modified. A direct buffer is passed to the library as-is, without copying it.
+   *
+   * @param jpegData jpeg image data
+   * @return information about the jpeg image
+   * @throws de.digitalcollections.turbojpeg.TurboJpegException if decompressing header with library
+   *     fails
+   */
+  public Info getInfo(ByteBuffer jpegData) throws TurboJpegException {
+    return getInfo(jpegData, null);
+  }
 
-      IntByReference numRef = new IntByReference();
-      Pointer factorPtr = lib.tjGetScalingFactors(numRef);
-      final Integer numOfFactors = numRef.getValue();
-      tjscalingfactor[] factors = new tjscalingfactor[numOfFactors];
-      for (int i = 0; i < numOfFactors; i++) {
-        tjscalingfactor f = new tjscalingfactor(runtime);
-        factorPtr = factorPtr.slice(Struct.size(f));
-        f.useMemory(factorPtr);
-        factors[i] = f;
-      }
-      return new Info(
-          width.getValue(),
-          height.getValue(),
-          jpegSubsamp.getValue(),
-          jpegColorspace.getValue(),
-          factors);
+  /**
+   * Return information about the JPEG image in the input buffer, reusing an existing {@link Info}
+   * instance.
+   *
+   * @param jpegData jpeg image data, read from its position to its limit
+   * @param reuse instance to refill, or null to create a new one
+   * @return information about the jpeg image, the same instance as {@code reuse} if it was set
+   * @throws de.digitalcollections.turbojpeg.TurboJpegException if decompressing header with library
+   *     fails
+   * @see #getInfo(byte[], Info)
+   */
+  public Info getInfo(ByteBuffer jpegData, Info reuse) throws TurboJpegException {
+    Handle codec = decompressors.acquire();
+    try {
+      backend.decompressHeader(codec, jpegData);
+      return toInfo(codec, reuse);
     } finally {
-      if (codec != null && codec.address() != 0) {
-        lib.tjDestroy(codec);
+      decompressors.release(codec);
+    }
+  }
+
+  private Info toInfo(Handle codec, Info reuse) {
+    if (reuse == null) {
+      return new Info(
+          codec.jpegWidth,
+          codec.jpegHeight,
+          codec.jpegSubsampling,
+          codec.jpegColorspace,
+          scalingFactors);
+    }
+    reuse.update(
+        codec.jpegWidth,
+        codec.jpegHeight,
+        codec.jpegSubsampling,
+        codec.jpegColorspace,
+        scalingFactors);
+    return reuse;
+  }
+
+  /**
+   * Get the scaling factors supported by the library, sorted from largest to smallest.
+   *
+   * <p>The factors are queried once when the library is loaded.
+   */
+  public List<ScalingFactor> getScalingFactors() {
+    return scalingFactors;
+  }
+
+  private List<ScalingFactor> loadScalingFactors() {
+    IntByReference numRef = new IntByReference();
+    Pointer factorPtr = lib.tjGetScalingFactors(numRef);
+    int numOfFactors = numRef.getValue();
+    List<ScalingFactor> factors = new ArrayList<>(numOfFactors);
+    for (int i = 0; i < numOfFactors; i++) {
+      tjscalingfactor f = new tjscalingfactor(runtime);
+      f.useMemory(factorPtr.slice((long) i * Struct.size(f)));
+      if (f.num.get() > 0 && f.denom.get() > 0) {
+        factors.add(new ScalingFactor(f.num.get(), f.denom.get()));
       }
     }
+    factors.sort(Info.SCALE_DESCENDING);
+    return Collections.unmodifiableList(factors);
   }
 
   /**
@@ -108,260 +261,2136 @@ public class TurboJpeg {
    */
   public BufferedImage decode(byte[] jpegData, Info info, Dimension size)
       throws TurboJpegException {
-    Pointer codec = null;
-    try {
-      codec = lib.tjInitDecompress();
-      int width = info.getWidth();
-      int height = info.getHeight();
-      if (size != null) {
-        if (!info.getAvailableSizes().contains(size)) {
-          throw new IllegalArgumentException(
-              String.format("Invalid size, must be one of %s", info.getAvailableSizes()));
-        } else {
-          width = size.width;
-          height = size.height;
-        }
-      }
-      boolean isGray = info.getSubsampling() == TJSAMP.TJSAMP_GRAY;
-      int imgType;
-      if (isGray) {
-        imgType = BufferedImage.TYPE_BYTE_GRAY;
-      } else {
-        imgType = BufferedImage.TYPE_3BYTE_BGR;
-      }
-      BufferedImage img = new BufferedImage(width, height, imgType);
-      // Wrap the underlying data buffer of the image with a ByteBuffer, so we can pass it over the
-      // ABI
-      ByteBuffer outBuf = asByteBuffer(img.getRaster().getDataBuffer());
-      int rv =
-          lib.tjDecompress2(
-              codec,
-              ByteBuffer.wrap(jpegData),
-              jpegData.length,
-              outBuf,
-              width,
-              isGray ? width : width * 3,
-              height,
-              isGray ? TJPF.TJPF_GRAY : TJPF.TJPF_BGR,
-              0);
-      if (rv != 0) {
-        LOG.error("Could not decompress JPEG (dimensions: {}x{}, gray: {})", width, height, isGray);
-        throw new TurboJpegException(lib.tjGetErrorStr());
-      }
+    return decode(ByteBuffer.wrap(jpegData), info, size);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into a BufferedImage.
+   *
+   * <p>The data between the position and the limit of the buffer is decoded. The buffer remains
+   * owned by the caller and its position is not modified. A direct buffer is passed to the library
+   * as-is, the contents of a heap buffer are copied to native memory for the duration of the call.
+   *
+   * @param jpegData JPEG data input buffer
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @return The decoded image
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage decode(ByteBuffer jpegData, Info info, Dimension size)
+      throws TurboJpegException {
+    return decode(jpegData, info, size, DecodeSpeed.ACCURATE);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into a BufferedImage, trading accuracy for speed.
+   *
+   * <p>Grayscale images are decoded to {@code TYPE_BYTE_GRAY}, CMYK and YCCK images to a
+   * byte-interleaved CMYK image with the {@link #COLOR_MODEL_CMYK} color model and all other images
+   * to {@code TYPE_3BYTE_BGR}.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param speed Decoding speed
+   * @return The decoded image
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage decode(ByteBuffer jpegData, Info info, Dimension size, DecodeSpeed speed)
+      throws TurboJpegException {
+    Dimension dims = getTargetSize(info, size);
+    BufferedImage img = createImage(info, dims.width, dims.height);
+    if (isCmyk(info)) {
+      // The samples are normalized while they are copied from native memory
+      decode(jpegData, info, dims, img.getRaster(), 0, 0, speed);
       return img;
-    } finally {
-      if (codec != null && codec.address() != 0) {
-        lib.tjDestroy(codec);
-      }
     }
+    boolean isGray = info.getSubsampling() == TJSAMP.TJSAMP_GRAY;
+    // Wrap the underlying data buffer of the image with a ByteBuffer, so we can pass it over the
+    // ABI
+    ByteBuffer outBuf =
+        ByteBuffer.wrap(((DataBufferByte) img.getRaster().getDataBuffer()).getData())
+            .order(runtime.byteOrder());
+    TJPF pixelFormat = isGray ? TJPF.TJPF_GRAY : TJPF.TJPF_BGR;
+    decompress(
+        jpegData, info, dims, pixelFormat, outBuf, dims.width * pixelFormat.getPixelSize(), speed);
+    return img;
   }
 
   /**
-   * Encode an image to JPEG
+   * Decode the JPEG image in the input buffer into a BufferedImage that fits into a box, keeping
+   * the aspect ratio, e.g. for thumbnails.
    *
-   * @param img image as rectangle of pixels
-   * @param quality compression quality
-   * @return jpeg image
-   * @throws de.digitalcollections.turbojpeg.TurboJpegException if compression with library fails
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param box Maximum width and height of the decoded image, it is never upscaled
+   * @return The decoded image
+   * @throws TurboJpegException if decompression with library fails
+   * @see #decodeToSize(ByteBuffer, Info, Dimension, DecodeSpeed)
    */
-  public ByteBuffer encode(Raster img, int quality) throws TurboJpegException {
-    Pointer codec = null;
-    PointerByReference bufPtrRef = null;
-    try {
-      TJPF pixelFmt;
-      switch (img.getNumBands()) {
-        case 4:
-          pixelFmt = TJPF.TJPF_BGRX; // 4BYTE_BGRA
-          break;
-        case 3:
-          pixelFmt = TJPF.TJPF_BGR; // 3BYTE_BGR
-          break;
-        case 1:
-          pixelFmt = TJPF.TJPF_GRAY; // 1BYTE_GRAY
-          break;
-        default:
-          throw new IllegalArgumentException("Illegal sample format");
-      }
-      // TODO: Make sampling format configurable
-      TJSAMP sampling = pixelFmt == TJPF.TJPF_GRAY ? TJSAMP.TJSAMP_GRAY : TJSAMP.TJSAMP_420;
-      codec = lib.tjInitCompress();
-
-      // Allocate JPEG target buffer
-      int bufSize = (int) lib.tjBufSize(img.getWidth(), img.getHeight(), sampling);
-      Pointer bufPtr = lib.tjAlloc(bufSize);
-      bufPtrRef = new PointerByReference(bufPtr);
-      NativeLongByReference lenPtr = new NativeLongByReference(bufSize);
-
-      // Wrap source image data buffer with ByteBuffer to pass it over the ABI
-      ByteBuffer inBuf;
-      if (img.getNumBands() == 1 && img.getSampleModel().getSampleSize(0) == 1) {
-        // For binary images, we need to convert our (0, 1) binary values into (0, 255) greyscale
-        // values
-        int[] buf = new int[img.getWidth() * img.getHeight()];
-        img.getPixels(0, 0, img.getWidth(), img.getHeight(), buf);
-        byte[] byteBuf = new byte[buf.length];
-        for (int i = 0; i < buf.length; i++) {
-          byteBuf[i] = (byte) (buf[i] == 0 ? 0x00 : 0xFF);
-        }
-        inBuf = ByteBuffer.wrap(byteBuf).order(runtime.byteOrder());
-      } else {
-        inBuf = asByteBuffer(img.getDataBuffer());
-      }
-      int rv =
-          lib.tjCompress2(
-              codec,
-              inBuf,
-              img.getWidth(),
-              0,
-              img.getHeight(),
-              pixelFmt,
-              bufPtrRef,
-              lenPtr,
-              sampling,
-              quality,
-              0);
-      if (rv != 0) {
-        LOG.error(
-            "Could not compress image (dimensions: {}x{}, format: {}, sampling: {}, quality: {}",
-            img.getWidth(),
-            img.getHeight(),
-            pixelFmt,
-            sampling,
-            quality);
-        throw new TurboJpegException(lib.tjGetErrorStr());
-      }
-      ByteBuffer outBuf =
-          ByteBuffer.allocate(lenPtr.getValue().intValue()).order(runtime.byteOrder());
-      bufPtrRef.getValue().get(0, outBuf.array(), 0, lenPtr.getValue().intValue());
-      ((Buffer) outBuf).rewind();
-      return outBuf;
-    } finally {
-      if (codec != null && codec.address() != 0) {
-        lib.tjDestroy(codec);
-      }
-      if (bufPtrRef != null
-          && bufPtrRef.getValue() != null
-          && bufPtrRef.getValue().address() != 0) {
-        lib.tjFree(bufPtrRef.getValue());
-      }
+  public BufferedImage decodeToFit(ByteBuffer jpegData, Info info, Dimension box)
+      throws TurboJpegException {
+    return decodeToFit(jpegData, info, box, DecodeSpeed.ACCURATE);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into a BufferedImage that fits into a box, trading
+   * accuracy for speed.
+   *
+   * @param speed Decoding speed
+   * @see #decodeToFit(ByteBuffer, Info, Dimension)
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage decodeToFit(ByteBuffer jpegData, Info info, Dimension box, DecodeSpeed speed)
+      throws TurboJpegException {
+    return decodeToSize(jpegData, info, info.getSizeToFit(box), speed);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into a BufferedImage of an arbitrary size not larger
+   * than the image.
+   *
+   * <p>The image is decoded at the smallest available size that is at least as large as the target
+   * size (see {@link Info#getSizeIndexCovering(Dimension)}), so most of the downscaling happens in
+   * the DCT domain. The remaining downscaling averages the area covered by each target pixel and
+   * reads the decoded pixels straight from the data array of the decoded image. The result has the
+   * same type as the images returned by {@link #decode(ByteBuffer, Info, Dimension, DecodeSpeed)}.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param targetSize Exact dimensions of the decoded image
+   * @param speed Decoding speed
+   * @return The decoded image
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public BufferedImage decodeToSize(
+      ByteBuffer jpegData, Info info, Dimension targetSize, DecodeSpeed speed)
+      throws TurboJpegException {
+    Dimension decodedSize = info.getAvailableSizes().get(info.getSizeIndexCovering(targetSize));
+    BufferedImage decoded = decode(jpegData, info, decodedSize, speed);
+    if (decodedSize.equals(targetSize)) {
+      return decoded;
     }
+    BufferedImage img = createImage(info, targetSize.width, targetSize.height);
+    int channels = decoded.getRaster().getNumBands();
+    new AreaResampler(
+            decodedSize.width, decodedSize.height, targetSize.width, targetSize.height, channels)
+        .resample(
+            ((DataBufferByte) decoded.getRaster().getDataBuffer()).getData(),
+            0,
+            decodedSize.width * channels,
+            ((DataBufferByte) img.getRaster().getDataBuffer()).getData(),
+            0,
+            targetSize.width * channels);
+    return img;
   }
 
   /**
-   * Transform a JPEG image without decoding it fully
+   * Decode the JPEG image in the input buffer into a BufferedImage, decoding horizontal bands of
+   * the image concurrently.
    *
-   * @param jpegData JPEG input buffer
-   * @param info Information about the JPEG (from {@link #getInfo(byte[])}
-   * @param region Source region to crop out of JPEG
-   * @param rotation Degrees to rotate the JPEG, must be 90, 180 or 270
-   * @return The transformed JPEG data
-   * @throws TurboJpegException if image transformation fails
+   * <p>The bands are split at restart markers: the entropy decoder is reset at each of them, so the
+   * data of every band can be decoded on its own. Each band is turned into a standalone JPEG with
+   * the tables of the image and the height of the band, and decoded straight into its rows of the
+   * output image. Only sequential images with a single scan whose restart intervals start at the
+   * beginning of rows of MCUs can be split. Other images, as well as CMYK and YCCK images, are
+   * decoded on the calling thread like with {@link #decode(ByteBuffer, Info, Dimension,
+   * DecodeSpeed)}.
+   *
+   * <p>With vertical chroma subsampling, the chroma of the rows next to the boundaries of a band is
+   * upsampled from the rows of the neighbouring bands. Such bands are decoded with at least one
+   * extra row of MCUs above and below them into a separate buffer, and only their own rows are
+   * copied to the output image, so the result is the same as with a regular decode.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param speed Decoding speed
+   * @param executor Executor to decode the bands with
+   * @param maxBands Maximum number of bands, e.g. the number of threads of the executor
+   * @return The decoded image
+   * @throws TurboJpegException if decompression with library fails
    */
-  public ByteBuffer transform(byte[] jpegData, Info info, Rectangle region, int rotation)
+  public BufferedImage decodeParallel(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      DecodeSpeed speed,
+      ExecutorService executor,
+      int maxBands)
       throws TurboJpegException {
-    Pointer codec = null;
-    PointerByReference bufPtrRef = null;
+    RestartIndex index = isCmyk(info) ? null : RestartIndex.parse(jpegData);
+    int[] bandRows = index != null ? index.getBandRows(maxBands) : null;
+    if (bandRows == null || bandRows.length < 2) {
+      return decode(jpegData, info, size, speed);
+    }
+    Dimension dims = getTargetSize(info, size);
+    ScalingFactor factor = getScalingFactor(info, dims);
+    BufferedImage img = createImage(info, dims.width, dims.height);
+    byte[] data = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    TJPF pixelFormat = info.getSubsampling() == TJSAMP.TJSAMP_GRAY ? TJPF.TJPF_GRAY : TJPF.TJPF_BGR;
+    int pitch = dims.width * pixelFormat.getPixelSize();
+    int mcuRows = (info.getHeight() + index.getMcuHeight() - 1) / index.getMcuHeight();
+    // The chroma of a row is upsampled from the rows above and below it with vertical subsampling
+    boolean overlap = index.getMcuHeight() > 8;
+    List<Future<?>> tasks = new ArrayList<>(bandRows.length);
     try {
-      codec = lib.tjInitTransform();
-      tjtransform transform = new tjtransform(runtime);
-
-      int width = info.getWidth();
-      int height = info.getHeight();
-      boolean flipCoords = rotation == 90 || rotation == 270;
-      if (region != null) {
-        Dimension mcuSize = info.getMCUSize();
-        if (((region.x + region.width) != width && region.width % mcuSize.width != 0)
-            || ((region.y + region.height) != height && region.height % mcuSize.height != 0)) {
-          throw new IllegalArgumentException(
-              String.format(
-                  "Invalid cropping region %d×%d, width must be divisible by %d, height by %d",
-                  region.width, region.height, mcuSize.width, mcuSize.height));
-        }
-        transform.options.set(TJXOPT.TJXOPT_CROP | TJXOPT.TJXOPT_TRIM);
-        transform.r.x.set(region.x);
-        transform.r.y.set(region.y);
-        // If any cropping dimension equals the original dimension, libturbojpeg requires it to be
-        // set to 0
-        if ((region.x + region.width) >= (flipCoords ? info.getHeight() : info.getWidth())) {
-          transform.r.w.set(0);
-        } else {
-          transform.r.w.set(region.width);
-        }
-        if ((region.y + region.height) >= (flipCoords ? info.getWidth() : info.getHeight())) {
-          transform.r.h.set(0);
-        } else {
-          transform.r.h.set(region.height);
-        }
+      for (int i = 0; i < bandRows.length; i++) {
+        int startRow = bandRows[i];
+        int endRow = i + 1 < bandRows.length ? bandRows[i + 1] : mcuRows;
+        int[] decodeRows =
+            overlap ? index.getOverlappingRows(startRow, endRow) : new int[] {startRow, endRow};
+        // Full rows of MCUs are scaled without rounding
+        int top = scaleMcuRows(startRow, index.getMcuHeight(), factor);
+        int bandHeight = factor.scale(index.getBandHeight(startRow, endRow));
+        int skip = top - scaleMcuRows(decodeRows[0], index.getMcuHeight(), factor);
+        Dimension decodeSize =
+            new Dimension(
+                dims.width, factor.scale(index.getBandHeight(decodeRows[0], decodeRows[1])));
+        tasks.add(
+            executor.submit(
+                () -> {
+                  ByteBuffer band = index.extractBand(jpegData, decodeRows[0], decodeRows[1]);
+                  ByteBuffer dst =
+                      decodeSize.height == bandHeight
+                          ? ByteBuffer.wrap(data, top * pitch, bandHeight * pitch)
+                          : ByteBuffer.allocate(decodeSize.height * pitch);
+                  Handle codec = decompressors.acquire();
+                  try {
+                    backend.decompress(
+                        codec, band, factor, decodeSize, pixelFormat, dst, pitch, speed.getFlags());
+                  } finally {
+                    decompressors.release(codec);
+                  }
+                  if (dst.array() != data) {
+                    System.arraycopy(
+                        dst.array(), skip * pitch, data, top * pitch, bandHeight * pitch);
+                  }
+                  return null;
+                }));
       }
-      if (rotation != 0) {
-        TJXOP op;
-        switch (rotation) {
-          case 90:
-            op = TJXOP.TJXOP_ROT90;
-            break;
-          case 180:
-            op = TJXOP.TJXOP_ROT180;
-            break;
-          case 270:
-            op = TJXOP.TJXOP_ROT270;
-            break;
-          default:
-            throw new IllegalArgumentException("Invalid rotation, must be 90, 180 or 270");
-        }
-        transform.op.set(op.intValue());
+      for (Future<?> task : tasks) {
+        task.get();
       }
-      Buffer inBuf = ByteBuffer.wrap(jpegData).order(runtime.byteOrder());
-      NativeLongByReference lenRef = new NativeLongByReference();
-      bufPtrRef = new PointerByReference();
-      int rv = lib.tjTransform(codec, inBuf, jpegData.length, 1, bufPtrRef, lenRef, transform, 0);
-      if (rv != 0) {
-        LOG.error(
-            "Could not compress image (crop: {},{},{},{}, rotate: {})",
-            transform.r.x,
-            transform.r.y,
-            transform.r.w,
-            transform.r.h,
-            rotation);
-        throw new TurboJpegException(lib.tjGetErrorStr());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TurboJpegException("Interrupted while decoding bands");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      LOG.error(
+          "Could not decompress band of JPEG (dimensions: {}x{}, bands: {})",
+          dims.width,
+          dims.height,
+          bandRows.length);
+      if (cause instanceof TurboJpegException) {
+        throw (TurboJpegException) cause;
       }
-      ByteBuffer outBuf =
-          ByteBuffer.allocate(lenRef.getValue().intValue()).order(runtime.byteOrder());
-      bufPtrRef.getValue().get(0, outBuf.array(), 0, lenRef.getValue().intValue());
-      ((Buffer) outBuf).rewind();
-      return outBuf;
-    } finally {
-      if (codec != null && codec.address() != 0) {
-        lib.tjDestroy(codec);
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
       }
-      if (bufPtrRef != null
-          && bufPtrRef.getValue() != null
-          && bufPtrRef.getValue().address() != 0) {
-        lib.tjFree(bufPtrRef.getValue());
+      throw new IllegalStateException(cause);
+    } finally {
+      for (Future<?> task : tasks) {
+        task.cancel(true);
       }
     }
+    return img;
+  }
+
+  /** Get the scaled height of a number of full rows of MCUs, which needs no rounding. */
+  private static int scaleMcuRows(int rows, int mcuHeight, ScalingFactor factor) {
+    return (int) ((long) rows * mcuHeight * factor.getNum() / factor.getDenom());
+  }
+
+  /** Create an image of the default type for decoding the JPEG image, see {@link #decode}. */
+  private static BufferedImage createImage(Info info, int width, int height) {
+    if (isCmyk(info)) {
+      return new BufferedImage(
+          COLOR_MODEL_CMYK,
+          COLOR_MODEL_CMYK.createCompatibleWritableRaster(width, height),
+          false,
+          null);
+    }
+    int imgType;
+    if (info.getSubsampling() == TJSAMP.TJSAMP_GRAY) {
+      imgType = BufferedImage.TYPE_BYTE_GRAY;
+    } else {
+      imgType = BufferedImage.TYPE_3BYTE_BGR;
+    }
+    return new BufferedImage(width, height, imgType);
+  }
+
+  private static boolean isCmyk(Info info) {
+    return info.getColorspace() == TJCS.TJCS_CMYK || info.getColorspace() == TJCS.TJCS_YCCK;
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into a caller-owned output buffer.
+   *
+   * <p>Both buffers remain owned by the caller and are only accessed for the duration of the call,
+   * their positions are not modified. The pixels are written starting at the position of the output
+   * buffer. If both buffers are direct, no data is copied between the Java heap and native memory.
+   *
+   * <p>CMYK and YCCK images can only be decoded to {@link TJPF#TJPF_CMYK}, the samples of Adobe
+   * images are written as stored, i.e. inverted.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param pixelFormat Pixel format to decode to
+   * @param dst Output buffer, must have room for {@code pitch * (height - 1) + width * pixelSize}
+   *     bytes
+   * @param pitch Number of bytes per row in the output buffer, or 0 for tightly packed rows
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public void decode(
+      ByteBuffer jpegData, Info info, Dimension size, TJPF pixelFormat, ByteBuffer dst, int pitch)
+      throws TurboJpegException {
+    decode(jpegData, info, size, pixelFormat, dst, pitch, DecodeSpeed.ACCURATE);
   }
 
-  private ByteBuffer asByteBuffer(DataBuffer dataBuffer) {
-    ByteBuffer byteBuffer;
-    if (dataBuffer instanceof DataBufferByte) {
-      byte[] pixelData = ((DataBufferByte) dataBuffer).getData();
-      byteBuffer = ByteBuffer.wrap(pixelData).order(runtime.byteOrder());
-    } else if (dataBuffer instanceof DataBufferUShort) {
-      short[] pixelData = ((DataBufferUShort) dataBuffer).getData();
-      byteBuffer = ByteBuffer.allocate(pixelData.length * 2).order(runtime.byteOrder());
-      byteBuffer.asShortBuffer().put(ShortBuffer.wrap(pixelData));
-    } else if (dataBuffer instanceof DataBufferShort) {
-      short[] pixelData = ((DataBufferShort) dataBuffer).getData();
-      byteBuffer = ByteBuffer.allocate(pixelData.length * 2).order(runtime.byteOrder());
-      byteBuffer.asShortBuffer().put(ShortBuffer.wrap(pixelData));
-    } else if (dataBuffer instanceof DataBufferInt) {
-      int[] pixelData = ((DataBufferInt) dataBuffer).getData();
-      byteBuffer = ByteBuffer.allocate(pixelData.length * 4).order(runtime.byteOrder());
-      byteBuffer.asIntBuffer().put(IntBuffer.wrap(pixelData));
+  /**
+   * Decode the JPEG image in the input buffer into a caller-owned output buffer, trading accuracy
+   * for speed.
+   *
+   * @param speed Decoding speed
+   * @see #decode(ByteBuffer, Info, Dimension, TJPF, ByteBuffer, int)
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public void decode(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      TJPF pixelFormat,
+      ByteBuffer dst,
+      int pitch,
+      DecodeSpeed speed)
+      throws TurboJpegException {
+    Dimension dims = getTargetSize(info, size);
+    int rowSize = dims.width * pixelFormat.getPixelSize();
+    if (pitch == 0) {
+      pitch = rowSize;
+    } else if (pitch < rowSize) {
+      throw new IllegalArgumentException(
+          String.format("Invalid pitch %d, must be at least %d", pitch, rowSize));
     }
-    else {
-      throw new IllegalArgumentException("Unsupported DataBuffer type: " + dataBuffer.getClass());
+    long requiredSize = (long) pitch * (dims.height - 1) + rowSize;
+    if (dst.remaining() < requiredSize) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Output buffer too small, %d bytes required but only %d remaining",
+              requiredSize, dst.remaining()));
     }
-    return byteBuffer;
+    decompress(jpegData, info, dims, pixelFormat, dst, pitch, speed);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into an existing raster.
+   *
+   * <p>The rows are written with the scanline stride of the raster, so the image can be decoded
+   * into a part of a larger raster without allocating an intermediate image. CMYK and YCCK images
+   * are decoded like a region covering the whole image instead, see {@link
+   * #decodeRegion(ByteBuffer, Info, Dimension, Rectangle, WritableRaster, int, int, DecodeSpeed)}.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param dst Destination raster, a byte-interleaved gray, BGR, RGB, ABGR or CMYK raster or an
+   *     int-packed RGB, ARGB or BGR raster (i.e. the rasters of the corresponding BufferedImage
+   *     types and of {@link #COLOR_MODEL_CMYK}). CMYK rasters are only supported for CMYK and YCCK
+   *     images, which are converted to RGB for the other rasters. Only the luminance of YCbCr
+   *     images is decoded into gray rasters, the chroma components are skipped by the library.
+   * @param x Horizontal offset in the destination raster, relative to its minimum x coordinate
+   * @param y Vertical offset in the destination raster, relative to its minimum y coordinate
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public void decode(
+      ByteBuffer jpegData, Info info, Dimension size, WritableRaster dst, int x, int y)
+      throws TurboJpegException {
+    decode(jpegData, info, size, dst, x, y, DecodeSpeed.ACCURATE);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into an existing raster, trading accuracy for speed.
+   *
+   * @param speed Decoding speed
+   * @see #decode(ByteBuffer, Info, Dimension, WritableRaster, int, int)
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public void decode(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      WritableRaster dst,
+      int x,
+      int y,
+      DecodeSpeed speed)
+      throws TurboJpegException {
+    Dimension dims = getTargetSize(info, size);
+    if (isCmyk(info)) {
+      decodeRegion(jpegData, info, dims, new Rectangle(dims), dst, x, y, speed);
+      return;
+    }
+    TJPF pixelFormat = getPixelFormat(dst);
+    checkDecodable(info, pixelFormat);
+    if (x < 0 || y < 0 || x + dims.width > dst.getWidth() || y + dims.height > dst.getHeight()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Decoded image (%dx%d+%d+%d) exceeds the destination bounds (%dx%d)",
+              dims.width, dims.height, x, y, dst.getWidth(), dst.getHeight()));
+    }
+    int stride = getScanlineStride(dst);
+    int start = getDataOffset(dst, x, y);
+    if (dst.getDataBuffer() instanceof DataBufferInt) {
+      // Each int holds a whole pixel, in the byte order of the pixel format on this platform
+      int[] data = ((DataBufferInt) dst.getDataBuffer()).getData();
+      int length = stride * (dims.height - 1) + dims.width;
+      decompress(
+          jpegData,
+          info,
+          dims,
+          pixelFormat,
+          IntBuffer.wrap(data, start, length),
+          stride * 4,
+          speed);
+    } else {
+      byte[] data = ((DataBufferByte) dst.getDataBuffer()).getData();
+      int length = stride * (dims.height - 1) + dims.width * pixelFormat.getPixelSize();
+      decompress(
+          jpegData, info, dims, pixelFormat, ByteBuffer.wrap(data, start, length), stride, speed);
+    }
+  }
+
+  /** Get the number of data array elements per row of a raster supported by the library. */
+  private static int getScanlineStride(Raster raster) {
+    SampleModel sm = raster.getSampleModel();
+    if (sm instanceof SinglePixelPackedSampleModel) {
+      return ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+    }
+    return ((PixelInterleavedSampleModel) sm).getScanlineStride();
+  }
+
+  /**
+   * Get the index of the first element of the pixel at the given position in the data array of a
+   * pixel-interleaved or single-pixel-packed raster.
+   */
+  private static int getDataOffset(Raster raster, int x, int y) {
+    int row = raster.getMinY() + y - raster.getSampleModelTranslateY();
+    int column = raster.getMinX() + x - raster.getSampleModelTranslateX();
+    SampleModel sampleModel = raster.getSampleModel();
+    if (sampleModel instanceof SinglePixelPackedSampleModel) {
+      SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) sampleModel;
+      return raster.getDataBuffer().getOffset() + row * sm.getScanlineStride() + column;
+    }
+    PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) sampleModel;
+    int firstBand = Arrays.stream(sm.getBandOffsets()).min().orElse(0);
+    return raster.getDataBuffer().getOffset()
+        + row * sm.getScanlineStride()
+        + column * sm.getPixelStride()
+        + firstBand;
+  }
+
+  /**
+   * Decode a region of the JPEG image in the input buffer into a BufferedImage of exactly the size
+   * of the region.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param region Region to decode, in the coordinates of the image at the target size
+   * @param speed Decoding speed
+   * @return The decoded region
+   * @throws TurboJpegException if decompression with library fails
+   * @see #decodeRegion(ByteBuffer, Info, Dimension, Rectangle, WritableRaster, int, int,
+   *     DecodeSpeed)
+   */
+  public BufferedImage decodeRegion(
+      ByteBuffer jpegData, Info info, Dimension size, Rectangle region, DecodeSpeed speed)
+      throws TurboJpegException {
+    BufferedImage img = createImage(info, region.width, region.height);
+    decodeRegion(jpegData, info, size, region, img.getRaster(), 0, 0, speed);
+    return img;
+  }
+
+  /**
+   * Decode a region of the JPEG image in the input buffer into an existing raster.
+   *
+   * <p>Only the MCU rows and columns that intersect the region are decoded. With the TurboJPEG 3
+   * API, the rows and MCU columns outside of the region are skipped during decompression, otherwise
+   * the intersecting MCUs are cropped losslessly first. The region is decoded in native memory, and
+   * only its pixels are copied to the destination.
+   *
+   * <p>CMYK and YCCK images are decoded to CMYK pixels, which are normalized (see {@link
+   * #COLOR_MODEL_CMYK}) or converted to RGB with a fast, naive formula while they are copied.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param region Region to decode, in the coordinates of the image at the target size
+   * @param dst Destination raster, a byte-interleaved gray, BGR, RGB, ABGR or CMYK raster or an
+   *     int-packed RGB, ARGB or BGR raster (i.e. the rasters of the corresponding BufferedImage
+   *     types and of {@link #COLOR_MODEL_CMYK}). CMYK rasters are only supported for CMYK and YCCK
+   *     images, which are converted to RGB for the other rasters.
+   * @param x Horizontal offset in the destination raster, relative to its minimum x coordinate
+   * @param y Vertical offset in the destination raster, relative to its minimum y coordinate
+   * @param speed Decoding speed
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public void decodeRegion(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      Rectangle region,
+      WritableRaster dst,
+      int x,
+      int y,
+      DecodeSpeed speed)
+      throws TurboJpegException {
+    Dimension dims = getTargetSize(info, size);
+    if (region.x < 0
+        || region.y < 0
+        || region.width <= 0
+        || region.height <= 0
+        || region.x + region.width > dims.width
+        || region.y + region.height > dims.height) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Selected region (%dx%d+%d+%d) exceeds the image boundaries (%dx%d).",
+              region.width, region.height, region.x, region.y, dims.width, dims.height));
+    }
+    TJPF dstFormat = getPixelFormat(dst);
+    checkDecodable(info, dstFormat);
+    if (x < 0
+        || y < 0
+        || x + region.width > dst.getWidth()
+        || y + region.height > dst.getHeight()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Decoded region (%dx%d+%d+%d) exceeds the destination bounds (%dx%d)",
+              region.width, region.height, x, y, dst.getWidth(), dst.getHeight()));
+    }
+    TJPF pixelFormat = dstFormat;
+    CmykConverter converter = null;
+    if (isCmyk(info)) {
+      pixelFormat = TJPF.TJPF_CMYK;
+      converter = new CmykConverter(dstFormat, JpegSegments.hasAdobeMarker(jpegData));
+    }
+    ScalingFactor factor = getScalingFactor(info, dims);
+    if (backend instanceof Tj3Backend) {
+      decodeRegionCropped(
+          (Tj3Backend) backend,
+          jpegData,
+          info,
+          factor,
+          region,
+          pixelFormat,
+          converter,
+          dst,
+          x,
+          y,
+          speed);
+    } else {
+      decodeRegionTransformed(
+          jpegData, info, factor, region, pixelFormat, converter, dst, x, y, speed);
+    }
+  }
+
+  /** Check that the image can be decoded into a destination of the given pixel format. */
+  private static void checkDecodable(Info info, TJPF pixelFormat) {
+    if (pixelFormat == TJPF.TJPF_CMYK && !isCmyk(info)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Image with colorspace %s can not be decoded to CMYK", info.getColorspace()));
+    }
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer in horizontal strips, with memory proportional to the
+   * strip height instead of the image height.
+   *
+   * <p>Each strip is decoded as a region with {@link #decodeRegion(ByteBuffer, Info, Dimension,
+   * Rectangle, WritableRaster, int, int, DecodeSpeed)}. With the TurboJPEG 3 API (see {@link
+   * #getApiVersion()}), the library skips the rows above the strip, which only requires entropy
+   * decoding them, and its memory use is bounded as well. With the TurboJPEG 2 API, every strip is
+   * cropped losslessly first, which needs native memory for the coefficients of the whole image.
+   * Progressive images always need the coefficients of the whole image. Higher strips reduce the
+   * number of passes over the image data.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit. It must not be
+   *     modified while the strips are decoded.
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param mcuRows Number of MCU rows per strip
+   * @param speed Decoding speed
+   * @return the decoder of the strips, from top to bottom
+   */
+  public StripDecoder decodeStrips(
+      ByteBuffer jpegData, Info info, Dimension size, int mcuRows, DecodeSpeed speed) {
+    if (mcuRows <= 0) {
+      throw new IllegalArgumentException("Number of MCU rows must be positive");
+    }
+    Dimension dims = getTargetSize(info, size);
+    ScalingFactor factor = getScalingFactor(info, dims);
+    int stripHeight =
+        (int) Math.min((long) mcuRows * factor.scale(info.getMCUSize().height), dims.height);
+    WritableRaster strip = createImage(info, dims.width, stripHeight).getRaster();
+    return new StripDecoder(this, jpegData, info, dims, stripHeight, strip, speed);
+  }
+
+  /** Decode a region with the cropped decompression of the TurboJPEG 3 API. */
+  private void decodeRegionCropped(
+      Tj3Backend tj3,
+      ByteBuffer jpegData,
+      Info info,
+      ScalingFactor factor,
+      Rectangle region,
+      TJPF pixelFormat,
+      CmykConverter converter,
+      WritableRaster dst,
+      int x,
+      int y,
+      DecodeSpeed speed)
+      throws TurboJpegException {
+    // Rows outside of the region are skipped, but the left edge has to be aligned to the scaled
+    // MCU width
+    int mcuWidth = factor.scale(info.getMCUSize().width);
+    int cropX = region.x - region.x % mcuWidth;
+    Rectangle crop = new Rectangle(cropX, region.y, region.x + region.width - cropX, region.height);
+    int pixelSize = pixelFormat.getPixelSize();
+    Pointer pixels = allocatePixels((long) crop.width * crop.height * pixelSize, region);
+    Handle codec = null;
+    try {
+      codec = decompressors.acquire();
+      tj3.decompressRegion(
+          codec,
+          jpegData,
+          factor,
+          crop,
+          pixelFormat,
+          pixels,
+          crop.width * pixelSize,
+          speed.getFlags());
+      copyRegion(pixels, crop.width, region.x - cropX, 0, region, pixelSize, converter, dst, x, y);
+    } catch (TurboJpegException e) {
+      LOG.error(
+          "Could not decompress JPEG region (crop: {}, scale: {}, format: {})",
+          crop,
+          factor,
+          pixelFormat);
+      throw e;
+    } finally {
+      decompressors.release(codec);
+      lib.tjFree(pixels);
+    }
+  }
+
+  /**
+   * Decode a region with the TurboJPEG 2 API, which has no cropped decompression. The MCU rows and
+   * columns that intersect the region are cropped losslessly and decoded in full.
+   */
+  private void decodeRegionTransformed(
+      ByteBuffer jpegData,
+      Info info,
+      ScalingFactor factor,
+      Rectangle region,
+      TJPF pixelFormat,
+      CmykConverter converter,
+      WritableRaster dst,
+      int x,
+      int y,
+      DecodeSpeed speed)
+      throws TurboJpegException {
+    // Map the region to the source image and expand it to the MCU grid. The scaled sizes of
+    // MCU-aligned coordinates are integral, since the scaling denominators are at most 8.
+    Dimension mcuSize = info.getMCUSize();
+    int sourceX = (int) ((long) region.x * factor.getDenom() / factor.getNum());
+    int sourceY = (int) ((long) region.y * factor.getDenom() / factor.getNum());
+    sourceX -= sourceX % mcuSize.width;
+    sourceY -= sourceY % mcuSize.height;
+    int sourceEndX =
+        alignUp(
+            ceilDiv((long) (region.x + region.width) * factor.getDenom(), factor.getNum()),
+            mcuSize.width,
+            info.getWidth());
+    int sourceEndY =
+        alignUp(
+            ceilDiv((long) (region.y + region.height) * factor.getDenom(), factor.getNum()),
+            mcuSize.height,
+            info.getHeight());
+    Rectangle crop = new Rectangle(sourceX, sourceY, sourceEndX - sourceX, sourceEndY - sourceY);
+    int cropWidth = factor.scale(crop.width);
+    int cropHeight = factor.scale(crop.height);
+    int offsetX = region.x - (int) ((long) sourceX * factor.getNum() / factor.getDenom());
+    int offsetY = region.y - (int) ((long) sourceY * factor.getNum() / factor.getDenom());
+    int pixelSize = pixelFormat.getPixelSize();
+    boolean isCropped = crop.width != info.getWidth() || crop.height != info.getHeight();
+
+    Handle codec = null;
+    PointerByReference croppedRef = null;
+    Pointer pixels = null;
+    try {
+      NativeLongByReference croppedLen = new NativeLongByReference();
+      if (isCropped) {
+        // The cropped image stays in the buffer allocated by the library
+        tjtransform transform = createTransform(info, crop, TJXOP.TJXOP_NONE);
+        croppedRef = new PointerByReference();
+        Handle transformer = transformers.acquire();
+        int rv;
+        try {
+          rv =
+              lib.tjTransform(
+                  transformer.pointer,
+                  jpegData,
+                  jpegData.remaining(),
+                  1,
+                  croppedRef,
+                  croppedLen,
+                  transform,
+                  0);
+        } finally {
+          transformers.release(transformer);
+        }
+        if (rv != 0) {
+          LOG.error("Could not crop image (crop: {})", crop);
+          throw new TurboJpegException(lib.tjGetErrorStr());
+        }
+      }
+      pixels = allocatePixels((long) cropWidth * cropHeight * pixelSize, region);
+      codec = decompressors.acquire();
+      int rv;
+      if (isCropped) {
+        rv =
+            lib.tjDecompress2(
+                codec.pointer,
+                croppedRef.getValue(),
+                croppedLen.getValue().longValue(),
+                pixels,
+                cropWidth,
+                cropWidth * pixelSize,
+                cropHeight,
+                pixelFormat,
+                speed.getFlags());
+      } else {
+        rv =
+            lib.tjDecompress2(
+                codec.pointer,
+                jpegData,
+                jpegData.remaining(),
+                pixels,
+                cropWidth,
+                cropWidth * pixelSize,
+                cropHeight,
+                pixelFormat,
+                speed.getFlags());
+      }
+      if (rv != 0) {
+        LOG.error(
+            "Could not decompress JPEG region (crop: {}, dimensions: {}x{}, format: {})",
+            crop,
+            cropWidth,
+            cropHeight,
+            pixelFormat);
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+      copyRegion(pixels, cropWidth, offsetX, offsetY, region, pixelSize, converter, dst, x, y);
+    } finally {
+      decompressors.release(codec);
+      if (pixels != null) {
+        lib.tjFree(pixels);
+      }
+      if (croppedRef != null
+          && croppedRef.getValue() != null
+          && croppedRef.getValue().address() != 0) {
+        lib.tjFree(croppedRef.getValue());
+      }
+    }
+  }
+
+  /** Allocate native memory for the decoded pixels of a region. */
+  private Pointer allocatePixels(long size, Rectangle region) throws TurboJpegException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Region is too large: " + region);
+    }
+    Pointer pixels = lib.tjAlloc((int) size);
+    if (pixels == null || pixels.address() == 0) {
+      throw new TurboJpegException(lib.tjGetErrorStr());
+    }
+    return pixels;
+  }
+
+  /**
+   * Copy the rows of a region from the decoded pixels to the destination raster.
+   *
+   * @param pixels Decoded pixels, tightly packed
+   * @param width Width of the decoded pixels
+   * @param offsetX Horizontal offset of the region in the decoded pixels
+   * @param offsetY Vertical offset of the region in the decoded pixels
+   * @param converter Converter of decoded CMYK pixels, or null to copy the pixels as-is
+   */
+  private static void copyRegion(
+      Pointer pixels,
+      int width,
+      int offsetX,
+      int offsetY,
+      Rectangle region,
+      int pixelSize,
+      CmykConverter converter,
+      WritableRaster dst,
+      int x,
+      int y) {
+    int stride = getScanlineStride(dst);
+    int start = getDataOffset(dst, x, y);
+    DataBuffer buffer = dst.getDataBuffer();
+    byte[] cmykRow = null;
+    ByteBuffer convertedRow = null;
+    if (converter != null) {
+      cmykRow = new byte[region.width * pixelSize];
+      if (buffer instanceof DataBufferInt) {
+        convertedRow = ByteBuffer.allocate(region.width * 4).order(ByteOrder.nativeOrder());
+      }
+    }
+    for (int row = 0; row < region.height; row++) {
+      long srcOffset = ((long) (offsetY + row) * width + offsetX) * pixelSize;
+      if (converter != null) {
+        pixels.get(srcOffset, cmykRow, 0, cmykRow.length);
+        if (convertedRow != null) {
+          // The int pixel formats match the byte order of the ints on this platform
+          converter.convertRow(cmykRow, convertedRow.array(), 0, region.width);
+          int[] data = ((DataBufferInt) buffer).getData();
+          convertedRow.asIntBuffer().get(data, start + row * stride, region.width);
+        } else {
+          byte[] data = ((DataBufferByte) buffer).getData();
+          converter.convertRow(cmykRow, data, start + row * stride, region.width);
+        }
+      } else if (buffer instanceof DataBufferInt) {
+        int[] data = ((DataBufferInt) buffer).getData();
+        pixels.get(srcOffset, data, start + row * stride, region.width);
+      } else {
+        byte[] data = ((DataBufferByte) buffer).getData();
+        pixels.get(srcOffset, data, start + row * stride, region.width * pixelSize);
+      }
+    }
+  }
+
+  private static int ceilDiv(long dividend, long divisor) {
+    return (int) ((dividend + divisor - 1) / divisor);
+  }
+
+  /** Round up to a multiple of the alignment, but not beyond the limit. */
+  private static int alignUp(int value, int alignment, int limit) {
+    return Math.min((value + alignment - 1) / alignment * alignment, limit);
+  }
+
+  private static TJPF getPixelFormat(WritableRaster raster) {
+    TJPF pixelFormat = findPixelFormat(raster);
+    if (pixelFormat == null) {
+      throw new IllegalArgumentException(
+          "Unsupported destination, must be a byte-interleaved gray, BGR, RGB, ABGR or CMYK raster"
+              + " or an int-packed RGB, ARGB or BGR raster");
+    }
+    return pixelFormat;
+  }
+
+  /**
+   * Get the pixel format matching the layout of a raster, so that the library can read or write its
+   * data array directly.
+   *
+   * @return the pixel format, or null if the layout is not supported by the library
+   */
+  private static TJPF findPixelFormat(Raster raster) {
+    if (raster.getDataBuffer() instanceof DataBufferByte
+        && raster.getSampleModel() instanceof PixelInterleavedSampleModel) {
+      PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+      int[] offsets = sm.getBandOffsets();
+      if (offsets.length == 1 && sm.getPixelStride() == 1) {
+        return TJPF.TJPF_GRAY;
+      }
+      if (offsets.length == 3 && sm.getPixelStride() == 3) {
+        if (offsets[0] == 2 && offsets[1] == 1 && offsets[2] == 0) {
+          return TJPF.TJPF_BGR;
+        }
+        if (offsets[0] == 0 && offsets[1] == 1 && offsets[2] == 2) {
+          return TJPF.TJPF_RGB;
+        }
+      }
+      if (offsets.length == 4
+          && sm.getPixelStride() == 4
+          && offsets[0] == 3
+          && offsets[1] == 2
+          && offsets[2] == 1
+          && offsets[3] == 0) {
+        // TYPE_4BYTE_ABGR, the library sets the alpha channel to opaque
+        return TJPF.TJPF_AGBR;
+      }
+      if (offsets.length == 4
+          && sm.getPixelStride() == 4
+          && offsets[0] == 0
+          && offsets[1] == 1
+          && offsets[2] == 2
+          && offsets[3] == 3) {
+        // COLOR_MODEL_CMYK
+        return TJPF.TJPF_CMYK;
+      }
+    }
+    if (raster.getDataBuffer() instanceof DataBufferInt
+        && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+      // The library writes bytes, so the pixel format depends on the byte order of the ints
+      boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+      int[] masks = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getBitMasks();
+      if (masks.length >= 3 && masks[0] == 0xFF0000 && masks[1] == 0xFF00 && masks[2] == 0xFF) {
+        if (masks.length == 3) {
+          // TYPE_INT_RGB
+          return littleEndian ? TJPF.TJPF_BGRX : TJPF.TJPF_XRGB;
+        }
+        if (masks[3] == 0xFF000000) {
+          // TYPE_INT_ARGB(_PRE), the library sets the alpha channel to opaque
+          return littleEndian ? TJPF.TJPF_BGRA : TJPF.TJPF_ARGB;
+        }
+      }
+      if (masks.length == 3 && masks[0] == 0xFF && masks[1] == 0xFF00 && masks[2] == 0xFF0000) {
+        // TYPE_INT_BGR
+        return littleEndian ? TJPF.TJPF_RGBX : TJPF.TJPF_XBGR;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Allocate a planar YUV image with native plane buffers.
+   *
+   * @param width Width of the image
+   * @param height Height of the image
+   * @param subsampling Chroma subsampling of the image
+   * @return the image, with tightly packed planes
+   */
+  public YuvImage createYuvImage(int width, int height, TJSAMP subsampling) {
+    int[][] planeSizes = getPlaneSizes(width, height, subsampling);
+    return new YuvImage(runtime, width, height, subsampling, planeSizes[0], planeSizes[1]);
+  }
+
+  /**
+   * Wrap existing planes in a YUV image, e.g. planes produced by another stage of a pipeline with
+   * padded rows.
+   *
+   * @param width Width of the image
+   * @param height Height of the image
+   * @param subsampling Chroma subsampling of the image
+   * @param planes Direct buffers holding the Y, Cb and Cr planes, or only the Y plane for {@link
+   *     TJSAMP#TJSAMP_GRAY}, starting at their positions. The buffers are shared with the image.
+   * @param strides Number of bytes between the starts of two consecutive rows of each plane
+   * @return the image
+   */
+  public YuvImage createYuvImage(
+      int width, int height, TJSAMP subsampling, ByteBuffer[] planes, int[] strides) {
+    int[][] planeSizes = getPlaneSizes(width, height, subsampling);
+    int numPlanes = planeSizes[0].length;
+    if (planes.length != numPlanes || strides.length != numPlanes) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Expected %d planes and strides for subsampling %s", numPlanes, subsampling));
+    }
+    for (int i = 0; i < numPlanes; i++) {
+      if (!planes[i].isDirect()) {
+        throw new IllegalArgumentException(String.format("Plane %d must be a direct buffer", i));
+      }
+      if (strides[i] < planeSizes[0][i]) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Invalid stride %d for plane %d, must be at least %d",
+                strides[i], i, planeSizes[0][i]));
+      }
+      long requiredSize = (long) strides[i] * (planeSizes[1][i] - 1) + planeSizes[0][i];
+      if (planes[i].remaining() < requiredSize) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Plane %d too small, %d bytes required but only %d remaining",
+                i, requiredSize, planes[i].remaining()));
+      }
+    }
+    return new YuvImage(
+        runtime,
+        width,
+        height,
+        subsampling,
+        planeSizes[0],
+        planeSizes[1],
+        planes.clone(),
+        strides.clone());
+  }
+
+  /** Compute the widths and heights of the planes of a YUV image. */
+  private int[][] getPlaneSizes(int width, int height, TJSAMP subsampling) {
+    int numPlanes = subsampling == TJSAMP.TJSAMP_GRAY ? 1 : 3;
+    int[] planeWidths = new int[numPlanes];
+    int[] planeHeights = new int[numPlanes];
+    for (int i = 0; i < numPlanes; i++) {
+      planeWidths[i] = lib.tjPlaneWidth(i, width, subsampling);
+      planeHeights[i] = lib.tjPlaneHeight(i, height, subsampling);
+      if (planeWidths[i] <= 0 || planeHeights[i] <= 0) {
+        throw new IllegalArgumentException(
+            String.format("Invalid YUV image %dx%d, subsampling %s", width, height, subsampling));
+      }
+    }
+    return new int[][] {planeWidths, planeHeights};
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into YCbCr planes, without color conversion and
+   * chroma upsampling.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @return The decoded planes
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public YuvImage decodeToYuv(ByteBuffer jpegData, Info info, Dimension size)
+      throws TurboJpegException {
+    return decodeToYuv(jpegData, info, size, null);
+  }
+
+  /**
+   * Decode the JPEG image in the input buffer into YCbCr planes, reusing the planes of an existing
+   * image if it is compatible.
+   *
+   * @param jpegData JPEG data input buffer, read from its position to its limit
+   * @param info Information about the JPEG image in the buffer
+   * @param size Target decompressed dimensions, must be among the available sizes (see {@link
+   *     Info#getAvailableSizes()})
+   * @param reuse Image to decode into, or null. A new image is allocated if it does not match the
+   *     decoded size and subsampling.
+   * @return The decoded planes, the same instance as {@code reuse} if it was compatible
+   * @throws TurboJpegException if decompression with library fails
+   */
+  public YuvImage decodeToYuv(ByteBuffer jpegData, Info info, Dimension size, YuvImage reuse)
+      throws TurboJpegException {
+    Dimension dims = getTargetSize(info, size);
+    YuvImage yuv = reuse;
+    if (yuv == null || !yuv.isCompatible(dims.width, dims.height, info.getSubsampling())) {
+      yuv = createYuvImage(dims.width, dims.height, info.getSubsampling());
+    }
+    Handle codec = decompressors.acquire();
+    try {
+      int rv =
+          lib.tjDecompressToYUVPlanes(
+              codec.pointer,
+              jpegData,
+              jpegData.remaining(),
+              yuv.planePointers,
+              dims.width,
+              yuv.getStrides(),
+              dims.height,
+              0);
+      if (rv != 0) {
+        LOG.error(
+            "Could not decompress JPEG to YUV (dimensions: {}x{}, subsampling: {})",
+            dims.width,
+            dims.height,
+            info.getSubsampling());
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+      return yuv;
+    } finally {
+      decompressors.release(codec);
+    }
+  }
+
+  /**
+   * Convert a planar YUV image to packed pixels.
+   *
+   * @param yuv The YUV image
+   * @param pixelFormat Pixel format to convert to
+   * @param dst Output buffer, must have room for {@code pitch * (height - 1) + width * pixelSize}
+   *     bytes
+   * @param pitch Number of bytes per row in the output buffer, or 0 for tightly packed rows
+   * @throws TurboJpegException if the conversion with library fails
+   */
+  public void decodeYuv(YuvImage yuv, TJPF pixelFormat, ByteBuffer dst, int pitch)
+      throws TurboJpegException {
+    int rowSize = yuv.getWidth() * pixelFormat.getPixelSize();
+    if (pitch == 0) {
+      pitch = rowSize;
+    } else if (pitch < rowSize) {
+      throw new IllegalArgumentException(
+          String.format("Invalid pitch %d, must be at least %d", pitch, rowSize));
+    }
+    long requiredSize = (long) pitch * (yuv.getHeight() - 1) + rowSize;
+    if (dst.remaining() < requiredSize) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Output buffer too small, %d bytes required but only %d remaining",
+              requiredSize, dst.remaining()));
+    }
+    Handle codec = decompressors.acquire();
+    try {
+      int rv =
+          lib.tjDecodeYUVPlanes(
+              codec.pointer,
+              yuv.planePointers,
+              yuv.getStrides(),
+              yuv.getSubsampling(),
+              dst,
+              yuv.getWidth(),
+              pitch,
+              yuv.getHeight(),
+              pixelFormat,
+              0);
+      if (rv != 0) {
+        LOG.error(
+            "Could not decode YUV image (dimensions: {}x{}, format: {})",
+            yuv.getWidth(),
+            yuv.getHeight(),
+            pixelFormat);
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+    } finally {
+      decompressors.release(codec);
+    }
+  }
+
+  private Dimension getTargetSize(Info info, Dimension size) {
+    if (size == null) {
+      return new Dimension(info.getWidth(), info.getHeight());
+    }
+    if (!info.getAvailableSizes().contains(size)) {
+      throw new IllegalArgumentException(
+          String.format("Invalid size, must be one of %s", info.getAvailableSizes()));
+    }
+    return size;
+  }
+
+  private ScalingFactor getScalingFactor(Info info, Dimension size) {
+    int index = info.getAvailableSizes().indexOf(size);
+    return index < 0 ? new ScalingFactor(1, 1) : info.getScalingFactor(index);
+  }
+
+  private void decompress(
+      ByteBuffer jpegData,
+      Info info,
+      Dimension size,
+      TJPF pixelFormat,
+      Buffer dst,
+      int pitch,
+      DecodeSpeed speed)
+      throws TurboJpegException {
+    Handle codec = decompressors.acquire();
+    try {
+      backend.decompress(
+          codec,
+          jpegData,
+          getScalingFactor(info, size),
+          size,
+          pixelFormat,
+          dst,
+          pitch,
+          speed.getFlags());
+    } catch (TurboJpegException e) {
+      LOG.error(
+          "Could not decompress JPEG (dimensions: {}x{}, format: {})",
+          size.width,
+          size.height,
+          pixelFormat);
+      throw e;
+    } finally {
+      decompressors.release(codec);
+    }
+  }
+
+  /**
+   * Encode an image to JPEG
+   *
+   * <p>The image is compressed into a native output buffer that is reused across calls (see {@link
+   * #encode(Raster, int, WritableByteChannel)}) and then copied to a new heap buffer of the exact
+   * size of the JPEG data.
+   *
+   * <p>The pixels of byte-interleaved gray, BGR, RGB and ABGR rasters and of int-packed RGB, ARGB
+   * and BGR rasters are read in place, including child rasters of larger images. Binary rasters are
+   * expanded to gray samples, rasters with any other layout are converted to RGB first.
+   *
+   * @param img image as rectangle of pixels
+   * @param quality compression quality
+   * @return jpeg image
+   * @throws de.digitalcollections.turbojpeg.TurboJpegException if compression with library fails
+   */
+  public ByteBuffer encode(Raster img, int quality) throws TurboJpegException {
+    return encode(img, toOptions(quality));
+  }
+
+  /**
+   * Encode an image to JPEG with the given compression options.
+   *
+   * @param img image as rectangle of pixels
+   * @param options compression options
+   * @return jpeg image
+   * @throws TurboJpegException if compression with library fails
+   * @see #encode(Raster, int)
+   */
+  public ByteBuffer encode(Raster img, EncodeOptions options) throws TurboJpegException {
+    Handle codec = compressors.acquire();
+    try {
+      return copyToHeap(compress(codec, img, options));
+    } finally {
+      compressors.release(codec);
+    }
+  }
+
+  /**
+   * Encode an image to JPEG and write it to a channel.
+   *
+   * <p>The image is compressed into a direct output buffer that is owned by the pooled compressor
+   * handle and reused across calls, it is only reallocated if a larger image needs more space.
+   * Buffers of more than 16 MiB are dropped when the handle is returned to the pool. The compressed
+   * data is written to the channel straight from that buffer, so no Java heap memory proportional
+   * to the size of the JPEG data is allocated.
+   *
+   * @param img image as rectangle of pixels
+   * @param quality compression quality
+   * @param channel channel to write the JPEG data to
+   * @return the number of bytes written
+   * @throws TurboJpegException if compression with library fails
+   * @throws IOException if writing to the channel fails
+   */
+  public int encode(Raster img, int quality, WritableByteChannel channel)
+      throws TurboJpegException, IOException {
+    return encode(img, toOptions(quality), channel);
+  }
+
+  /**
+   * Encode an image to JPEG with the given compression options and write it to a channel.
+   *
+   * @param img image as rectangle of pixels
+   * @param options compression options
+   * @param channel channel to write the JPEG data to
+   * @return the number of bytes written
+   * @throws TurboJpegException if compression with library fails
+   * @throws IOException if writing to the channel fails
+   * @see #encode(Raster, int, WritableByteChannel)
+   */
+  public int encode(Raster img, EncodeOptions options, WritableByteChannel channel)
+      throws TurboJpegException, IOException {
+    Handle codec = compressors.acquire();
+    try {
+      return writeFully(compress(codec, img, options), channel);
+    } finally {
+      compressors.release(codec);
+    }
+  }
+
+  /**
+   * Encode an image to JPEG, compressing horizontal strips of the image concurrently.
+   *
+   * <p>The strips are about a megapixel large, see {@link #encodeParallel(Raster, EncodeOptions,
+   * ExecutorService, int)}.
+   *
+   * @param img image as rectangle of pixels
+   * @param options compression options
+   * @param executor Executor to compress the strips with
+   * @return jpeg image
+   * @throws TurboJpegException if compression with library fails
+   */
+  public ByteBuffer encodeParallel(Raster img, EncodeOptions options, ExecutorService executor)
+      throws TurboJpegException {
+    int mcuHeight = Info.getMCUSize(getSubsampling(img, options)).height;
+    int mcuRows = Math.max(1, PARALLEL_STRIP_PIXELS / (img.getWidth() * mcuHeight));
+    return encodeParallel(img, options, executor, mcuRows);
+  }
+
+  /**
+   * Encode an image to JPEG, compressing horizontal strips of the image concurrently.
+   *
+   * <p>The image is split into strips of whole MCU rows, which are compressed with pooled
+   * compressor handles on the executor. The entropy-coded data of the strips is joined into a
+   * single JPEG image with the header of the first strip and a restart marker at the start of every
+   * other strip. The output only depends on the image, the options and the strip height, not on the
+   * number of threads of the executor. It decodes to the same pixels as the output of {@link
+   * #encode(Raster, EncodeOptions)}, which is only smaller by the restart markers.
+   *
+   * <p>The Huffman tables of progressive images and of images with optimized tables depend on the
+   * whole image, so these are compressed on the calling thread like with {@link #encode(Raster,
+   * EncodeOptions)}, as well as images that fit into a single strip and images with more than 65535
+   * MCUs per row.
+   *
+   * @param img image as rectangle of pixels
+   * @param options compression options
+   * @param executor Executor to compress the strips with
+   * @param mcuRows Number of MCU rows per strip, it is reduced if the strips hold more than 65535
+   *     MCUs, the maximum restart interval
+   * @return jpeg image
+   * @throws TurboJpegException if compression with library fails
+   */
+  public ByteBuffer encodeParallel(
+      Raster img, EncodeOptions options, ExecutorService executor, int mcuRows)
+      throws TurboJpegException {
+    if (mcuRows <= 0) {
+      throw new IllegalArgumentException("Number of MCU rows must be positive");
+    }
+    Dimension mcuSize = Info.getMCUSize(getSubsampling(img, options));
+    int mcusPerRow = (img.getWidth() + mcuSize.width - 1) / mcuSize.width;
+    // The restart interval can not hold a single row of MCUs of images that are too wide
+    int stripRows = Math.min(mcuRows, 0xFFFF / mcusPerRow);
+    int stripHeight = stripRows * mcuSize.height;
+    if (options.isProgressive()
+        || options.isOptimizeHuffman()
+        || stripRows == 0
+        || stripHeight >= img.getHeight()) {
+      return encode(img, options);
+    }
+    List<Future<ByteBuffer>> tasks = new ArrayList<>();
+    try {
+      for (int y = 0; y < img.getHeight(); y += stripHeight) {
+        Raster strip =
+            img.createChild(
+                img.getMinX(),
+                img.getMinY() + y,
+                img.getWidth(),
+                Math.min(stripHeight, img.getHeight() - y),
+                img.getMinX(),
+                img.getMinY() + y,
+                null);
+        tasks.add(executor.submit(() -> encode(strip, options)));
+      }
+      List<ByteBuffer> strips = new ArrayList<>(tasks.size());
+      for (Future<ByteBuffer> task : tasks) {
+        strips.add(task.get());
+      }
+      ByteBuffer jpegData =
+          JpegSegments.joinStrips(strips, img.getHeight(), stripRows * mcusPerRow);
+      return jpegData.order(runtime.byteOrder());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TurboJpegException("Interrupted while encoding strips");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      LOG.error(
+          "Could not compress strip of image (dimensions: {}x{}, strips: {})",
+          img.getWidth(),
+          img.getHeight(),
+          tasks.size());
+      if (cause instanceof TurboJpegException) {
+        throw (TurboJpegException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      for (Future<ByteBuffer> task : tasks) {
+        task.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Encode a planar YUV image to JPEG, without color conversion and chroma subsampling.
+   *
+   * <p>Together with {@link #encodeToYuv(Raster, TJSAMP, YuvImage)}, this splits {@link
+   * #encode(Raster, EncodeOptions)} into two steps, so that the planes can be processed in between,
+   * or so that planes produced by another stage of a pipeline, e.g. a resizer working on YCbCr
+   * data, can be compressed directly.
+   *
+   * @param yuv the YUV image, its subsampling is used instead of the one of the options
+   * @param options compression options
+   * @return jpeg image
+   * @throws TurboJpegException if compression with library fails
+   */
+  public ByteBuffer encodeYuv(YuvImage yuv, EncodeOptions options) throws TurboJpegException {
+    Handle codec = compressors.acquire();
+    try {
+      return copyToHeap(compressYuv(codec, yuv, options));
+    } finally {
+      compressors.release(codec);
+    }
+  }
+
+  /**
+   * Encode a planar YUV image to JPEG and write it to a channel, see {@link #encode(Raster, int,
+   * WritableByteChannel)}.
+   *
+   * @param yuv the YUV image, its subsampling is used instead of the one of the options
+   * @param options compression options
+   * @param channel channel to write the JPEG data to
+   * @return the number of bytes written
+   * @throws TurboJpegException if compression with library fails
+   * @throws IOException if writing to the channel fails
+   */
+  public int encodeYuv(YuvImage yuv, EncodeOptions options, WritableByteChannel channel)
+      throws TurboJpegException, IOException {
+    Handle codec = compressors.acquire();
+    try {
+      return writeFully(compressYuv(codec, yuv, options), channel);
+    } finally {
+      compressors.release(codec);
+    }
+  }
+
+  /**
+   * Convert an image to YCbCr planes and subsample the chrominance, which is the first half of
+   * {@link #encode(Raster, EncodeOptions)}.
+   *
+   * @param img image as rectangle of pixels
+   * @param subsampling Chroma subsampling of the planes, grayscale images are always converted to a
+   *     single plane
+   * @return the planes
+   * @throws TurboJpegException if the conversion with library fails
+   */
+  public YuvImage encodeToYuv(Raster img, TJSAMP subsampling) throws TurboJpegException {
+    return encodeToYuv(img, subsampling, null);
+  }
+
+  /**
+   * Convert an image to YCbCr planes, reusing the planes of an existing image if it is compatible.
+   *
+   * @param img image as rectangle of pixels
+   * @param subsampling Chroma subsampling of the planes, grayscale images are always converted to a
+   *     single plane
+   * @param reuse Image to convert into, or null. A new image is allocated if it does not match the
+   *     size of the image and the subsampling.
+   * @return the planes, the same instance as {@code reuse} if it was compatible
+   * @throws TurboJpegException if the conversion with library fails
+   */
+  public YuvImage encodeToYuv(Raster img, TJSAMP subsampling, YuvImage reuse)
+      throws TurboJpegException {
+    PixelSource src = getPixelSource(img);
+    TJPF pixelFmt = src.pixelFormat;
+    TJSAMP sampling = pixelFmt == TJPF.TJPF_GRAY ? TJSAMP.TJSAMP_GRAY : subsampling;
+    YuvImage yuv = reuse;
+    if (yuv == null || !yuv.isCompatible(img.getWidth(), img.getHeight(), sampling)) {
+      yuv = createYuvImage(img.getWidth(), img.getHeight(), sampling);
+    }
+    Handle codec = compressors.acquire();
+    try {
+      int rv =
+          lib.tjEncodeYUVPlanes(
+              codec.pointer,
+              src.buffer,
+              img.getWidth(),
+              src.pitch,
+              img.getHeight(),
+              pixelFmt,
+              yuv.planePointers,
+              yuv.getStrides(),
+              sampling,
+              0);
+      if (rv != 0) {
+        LOG.error(
+            "Could not convert image to YUV (dimensions: {}x{}, format: {}, sampling: {})",
+            img.getWidth(),
+            img.getHeight(),
+            pixelFmt,
+            sampling);
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+      return yuv;
+    } finally {
+      compressors.release(codec);
+    }
+  }
+
+  private static EncodeOptions toOptions(int quality) {
+    EncodeOptions options = new EncodeOptions();
+    options.setQuality(quality);
+    return options;
+  }
+
+  /** Copy JPEG data from the output buffer of a compressor to a new heap buffer. */
+  private ByteBuffer copyToHeap(ByteBuffer jpegData) {
+    ByteBuffer outBuf = ByteBuffer.allocate(jpegData.remaining()).order(runtime.byteOrder());
+    outBuf.put(jpegData);
+    ((Buffer) outBuf).rewind();
+    return outBuf;
+  }
+
+  private static int writeFully(ByteBuffer jpegData, WritableByteChannel channel)
+      throws IOException {
+    int length = jpegData.remaining();
+    while (jpegData.hasRemaining()) {
+      channel.write(jpegData);
+    }
+    return length;
+  }
+
+  /** Get the subsampling to compress an image with, rasters with a single band are gray. */
+  private static TJSAMP getSubsampling(Raster img, EncodeOptions options) {
+    if (img.getNumBands() == 1) {
+      return TJSAMP.TJSAMP_GRAY;
+    }
+    return options.getSubsampling() != null ? options.getSubsampling() : TJSAMP.TJSAMP_420;
+  }
+
+  /**
+   * Compress an image into the output buffer of the compressor handle.
+   *
+   * @return a view of the JPEG data in the output buffer, valid until the handle is released
+   */
+  private ByteBuffer compress(Handle codec, Raster img, EncodeOptions options)
+      throws TurboJpegException {
+    PixelSource src = getPixelSource(img);
+    TJPF pixelFmt = src.pixelFormat;
+    TJSAMP sampling = getSubsampling(img, options);
+    ensureOutputBuffer(codec, img.getWidth(), img.getHeight(), sampling);
+    int length;
+    try {
+      length =
+          backend.compress(
+              codec,
+              src.buffer,
+              img.getWidth(),
+              src.pitch,
+              img.getHeight(),
+              pixelFmt,
+              sampling,
+              options,
+              codec.outputBuffer);
+    } catch (TurboJpegException e) {
+      LOG.error(
+          "Could not compress image (dimensions: {}x{}, format: {}, sampling: {}, quality: {}",
+          img.getWidth(),
+          img.getHeight(),
+          pixelFmt,
+          sampling,
+          options.getQuality());
+      throw e;
+    }
+    return getJpegData(codec, length);
+  }
+
+  /**
+   * Compress a YUV image into the output buffer of the compressor handle, see {@link #compress}.
+   */
+  private ByteBuffer compressYuv(Handle codec, YuvImage yuv, EncodeOptions options)
+      throws TurboJpegException {
+    ensureOutputBuffer(codec, yuv.getWidth(), yuv.getHeight(), yuv.getSubsampling());
+    int length;
+    try {
+      length = backend.compressFromYuv(codec, yuv, options, codec.outputBuffer);
+    } catch (TurboJpegException e) {
+      LOG.error(
+          "Could not compress YUV image (dimensions: {}x{}, sampling: {}, quality: {}",
+          yuv.getWidth(),
+          yuv.getHeight(),
+          yuv.getSubsampling(),
+          options.getQuality());
+      throw e;
+    }
+    return getJpegData(codec, length);
+  }
+
+  /**
+   * Get the pixels of an image to compress. Rasters with a layout supported by the library are
+   * passed as they are, including the rows and columns outside of a child raster, which the library
+   * skips using the scanline stride as pitch. Binary rasters are expanded to gray samples and all
+   * other rasters are copied to an interleaved RGB or gray raster.
+   */
+  private PixelSource getPixelSource(Raster img) {
+    if (img.getNumBands() == 1 && img.getSampleModel().getSampleSize(0) == 1) {
+      return new PixelSource(
+          ByteBuffer.wrap(expandBinary(img)).order(runtime.byteOrder()),
+          img.getWidth(),
+          TJPF.TJPF_GRAY);
+    }
+    TJPF pixelFormat = findPixelFormat(img);
+    if (pixelFormat == TJPF.TJPF_CMYK) {
+      throw new IllegalArgumentException("Encoding CMYK rasters is not supported");
+    }
+    if (pixelFormat == null) {
+      img = toInterleavedRaster(img);
+      pixelFormat = img.getNumBands() == 1 ? TJPF.TJPF_GRAY : TJPF.TJPF_RGB;
+    }
+    int stride = getScanlineStride(img);
+    int start = getDataOffset(img, 0, 0);
+    if (img.getDataBuffer() instanceof DataBufferInt) {
+      // Each int holds a whole pixel, in the byte order of the pixel format on this platform
+      int[] data = ((DataBufferInt) img.getDataBuffer()).getData();
+      int length = stride * (img.getHeight() - 1) + img.getWidth();
+      return new PixelSource(IntBuffer.wrap(data, start, length), stride * 4, pixelFormat);
+    }
+    byte[] data = ((DataBufferByte) img.getDataBuffer()).getData();
+    int length = stride * (img.getHeight() - 1) + img.getWidth() * pixelFormat.getPixelSize();
+    return new PixelSource(ByteBuffer.wrap(data, start, length), stride, pixelFormat);
+  }
+
+  /**
+   * Expand a binary raster to gray samples, 0 for unset and 255 for set bits. Packed rows are
+   * expanded eight pixels at a time with a lookup table.
+   */
+  private static byte[] expandBinary(Raster img) {
+    int width = img.getWidth();
+    int height = img.getHeight();
+    byte[] gray = new byte[width * height];
+    if (!(img.getSampleModel() instanceof MultiPixelPackedSampleModel)
+        || !(img.getDataBuffer() instanceof DataBufferByte)) {
+      int[] samples = img.getSamples(img.getMinX(), img.getMinY(), width, height, 0, (int[]) null);
+      for (int i = 0; i < samples.length; i++) {
+        gray[i] = (byte) (samples[i] == 0 ? 0x00 : 0xFF);
+      }
+      return gray;
+    }
+    MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel) img.getSampleModel();
+    byte[] data = ((DataBufferByte) img.getDataBuffer()).getData();
+    int column = img.getMinX() - img.getSampleModelTranslateX();
+    int firstRow = img.getMinY() - img.getSampleModelTranslateY();
+    int firstBit = sm.getBitOffset(column);
+    for (int y = 0; y < height; y++) {
+      int rowStart = img.getDataBuffer().getOffset() + sm.getOffset(column, firstRow + y);
+      int dst = y * width;
+      int x = 0;
+      if (firstBit == 0) {
+        for (; x + 8 <= width; x += 8) {
+          System.arraycopy(
+              BINARY_EXPANSION, (data[rowStart + (x >> 3)] & 0xFF) * 8, gray, dst + x, 8);
+        }
+      }
+      // Trailing pixels, or all pixels of rows that do not start at a byte boundary
+      for (; x < width; x++) {
+        int bit = firstBit + x;
+        gray[dst + x] =
+            (byte) ((data[rowStart + (bit >> 3)] & (0x80 >> (bit & 7))) == 0 ? 0 : 0xFF);
+      }
+    }
+    return gray;
+  }
+
+  private static byte[] createBinaryExpansion() {
+    byte[] table = new byte[256 * 8];
+    for (int value = 0; value < 256; value++) {
+      for (int bit = 0; bit < 8; bit++) {
+        table[value * 8 + bit] = (byte) ((value & (0x80 >> bit)) == 0 ? 0 : 0xFF);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Copy a raster with a layout that is not supported by the library to a byte-interleaved RGB
+   * raster, or a gray raster if it has less than three bands. The samples are scaled to 8 bits.
+   */
+  private static WritableRaster toInterleavedRaster(Raster img) {
+    int numBands = img.getNumBands() < 3 ? 1 : 3;
+    int width = img.getWidth();
+    WritableRaster copy =
+        Raster.createInterleavedRaster(
+            DataBuffer.TYPE_BYTE, width, img.getHeight(), numBands, null);
+    int[] samples = new int[width];
+    for (int band = 0; band < numBands; band++) {
+      long max = (1L << Math.min(img.getSampleModel().getSampleSize(band), 31)) - 1;
+      for (int y = 0; y < img.getHeight(); y++) {
+        img.getSamples(img.getMinX(), img.getMinY() + y, width, 1, band, samples);
+        for (int x = 0; x < width; x++) {
+          samples[x] = (int) ((samples[x] * 255L + max / 2) / max);
+        }
+        copy.setSamples(0, y, width, 1, band, samples);
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Make sure that the output buffer of the handle is at least as large as the worst case size of a
+   * JPEG image computed by the library.
+   */
+  private void ensureOutputBuffer(Handle codec, int width, int height, TJSAMP sampling) {
+    long bufSize = lib.tjBufSize(width, height, sampling);
+    if (bufSize <= 0 || bufSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(String.format("Image is too large: %dx%d", width, height));
+    }
+    if (codec.outputBuffer == null || codec.outputBuffer.capacity() < bufSize) {
+      codec.outputBuffer = ByteBuffer.allocateDirect((int) bufSize);
+    }
+  }
+
+  private static ByteBuffer getJpegData(Handle codec, int length) {
+    ByteBuffer jpegData = codec.outputBuffer.duplicate();
+    ((Buffer) jpegData).clear();
+    ((Buffer) jpegData).limit(length);
+    return jpegData;
+  }
+
+  /**
+   * Transform a JPEG image without decoding it fully
+   *
+   * @param jpegData JPEG input buffer
+   * @param info Information about the JPEG (from {@link #getInfo(byte[])}
+   * @param region Source region to crop out of JPEG
+   * @param rotation Degrees to rotate the JPEG, must be 90, 180 or 270
+   * @return The transformed JPEG data
+   * @throws TurboJpegException if image transformation fails
+   */
+  public ByteBuffer transform(byte[] jpegData, Info info, Rectangle region, int rotation)
+      throws TurboJpegException {
+    return transform(ByteBuffer.wrap(jpegData), info, region, rotation);
+  }
+
+  /**
+   * Transform a JPEG image without decoding it fully
+   *
+   * <p>The output is written to a buffer allocated by the library and then copied to a new heap
+   * buffer. Use {@link #transform(ByteBuffer, Info, Rectangle, int, ByteBuffer)} to transform into
+   * a caller-owned native buffer instead.
+   *
+   * @param jpegData JPEG input buffer, read from its position to its limit
+   * @param info Information about the JPEG (from {@link #getInfo(ByteBuffer)}
+   * @param region Source region to crop out of JPEG
+   * @param rotation Degrees to rotate the JPEG, must be 90, 180 or 270
+   * @return The transformed JPEG data
+   * @throws TurboJpegException if image transformation fails
+   */
+  public ByteBuffer transform(ByteBuffer jpegData, Info info, Rectangle region, int rotation)
+      throws TurboJpegException {
+    return transform(jpegData, info, region, getRotationTransform(rotation));
+  }
+
+  /**
+   * Transform a JPEG image without decoding it fully, applying any of the lossless operations of
+   * the library, e.g. the flips needed for EXIF orientations (see {@link
+   * #getOrientationTransform(int)}).
+   *
+   * @param jpegData JPEG input buffer, read from its position to its limit
+   * @param info Information about the JPEG (from {@link #getInfo(ByteBuffer)}
+   * @param region Source region to crop out of JPEG, in the coordinates of the transformed image
+   * @param op Operation to apply before cropping
+   * @return The transformed JPEG data
+   * @throws TurboJpegException if image transformation fails
+   * @see #transform(ByteBuffer, Info, Rectangle, int)
+   */
+  public ByteBuffer transform(ByteBuffer jpegData, Info info, Rectangle region, TJXOP op)
+      throws TurboJpegException {
+    Handle codec = null;
+    PointerByReference bufPtrRef = null;
+    try {
+      tjtransform transform = createTransform(info, region, op);
+      codec = transformers.acquire();
+      NativeLongByReference lenRef = new NativeLongByReference();
+      bufPtrRef = new PointerByReference();
+      int rv =
+          lib.tjTransform(
+              codec.pointer, jpegData, jpegData.remaining(), 1, bufPtrRef, lenRef, transform, 0);
+      if (rv != 0) {
+        LOG.error(
+            "Could not transform image (crop: {},{},{},{}, operation: {})",
+            transform.r.x,
+            transform.r.y,
+            transform.r.w,
+            transform.r.h,
+            op);
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+      ByteBuffer outBuf =
+          ByteBuffer.allocate(lenRef.getValue().intValue()).order(runtime.byteOrder());
+      bufPtrRef.getValue().get(0, outBuf.array(), 0, lenRef.getValue().intValue());
+      ((Buffer) outBuf).rewind();
+      return outBuf;
+    } finally {
+      transformers.release(codec);
+      if (bufPtrRef != null
+          && bufPtrRef.getValue() != null
+          && bufPtrRef.getValue().address() != 0) {
+        lib.tjFree(bufPtrRef.getValue());
+      }
+    }
+  }
+
+  /**
+   * Transform a JPEG image without decoding it fully, into a caller-owned direct buffer.
+   *
+   * <p>Both buffers remain owned by the caller and are only accessed for the duration of the call,
+   * their positions are not modified. The transformed image is written starting at the position of
+   * the output buffer. If the input buffer is direct as well, no data is copied between the Java
+   * heap and native memory.
+   *
+   * @param jpegData JPEG input buffer, read from its position to its limit
+   * @param info Information about the JPEG (from {@link #getInfo(ByteBuffer)}
+   * @param region Source region to crop out of JPEG
+   * @param rotation Degrees to rotate the JPEG, must be 90, 180 or 270
+   * @param dst Direct output buffer, must have at least {@link #getTransformBufferSize(ByteBuffer,
+   *     Info, Rectangle, int)} bytes remaining
+   * @return The number of bytes written to the output buffer
+   * @throws TurboJpegException if image transformation fails
+   */
+  public int transform(
+      ByteBuffer jpegData, Info info, Rectangle region, int rotation, ByteBuffer dst)
+      throws TurboJpegException {
+    return transform(jpegData, info, region, getRotationTransform(rotation), dst);
+  }
+
+  /**
+   * Transform a JPEG image without decoding it fully, into a caller-owned direct buffer.
+   *
+   * @param op Operation to apply before cropping
+   * @see #transform(ByteBuffer, Info, Rectangle, int, ByteBuffer)
+   * @see #transform(ByteBuffer, Info, Rectangle, TJXOP)
+   */
+  public int transform(ByteBuffer jpegData, Info info, Rectangle region, TJXOP op, ByteBuffer dst)
+      throws TurboJpegException {
+    if (!dst.isDirect()) {
+      throw new IllegalArgumentException("Output buffer must be a direct buffer");
+    }
+    int requiredSize = getTransformBufferSize(jpegData, info, region, op);
+    if (requiredSize < 0) {
+      throw new IllegalArgumentException(
+          "Image can not be transformed into a preallocated buffer, its header is too large");
+    }
+    if (dst.remaining() < requiredSize) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Output buffer too small, %d bytes required but only %d remaining",
+              requiredSize, dst.remaining()));
+    }
+    tjtransform transform = createTransform(info, region, op);
+    Handle codec = transformers.acquire();
+    try {
+      // With TJFLAG_NOREALLOC the library writes to our buffer instead of allocating its own
+      PointerByReference bufPtrRef = new PointerByReference(Pointer.wrap(runtime, dst.slice()));
+      NativeLongByReference lenRef = new NativeLongByReference(dst.remaining());
+      int rv =
+          lib.tjTransform(
+              codec.pointer,
+              jpegData,
+              jpegData.remaining(),
+              1,
+              bufPtrRef,
+              lenRef,
+              transform,
+              TJFLAG.TJFLAG_NOREALLOC);
+      if (rv != 0) {
+        LOG.error(
+            "Could not transform image (crop: {},{},{},{}, operation: {})",
+            transform.r.x,
+            transform.r.y,
+            transform.r.w,
+            transform.r.h,
+            op);
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+      return lenRef.getValue().intValue();
+    } finally {
+      transformers.release(codec);
+    }
+  }
+
+  /**
+   * Get the size of the output buffer needed for {@link #transform(ByteBuffer, Info, Rectangle,
+   * int, ByteBuffer)}.
+   *
+   * <p>The library reserves a fixed amount of space for the markers in a preallocated output
+   * buffer, images with large metadata segments (e.g. ICC profiles) can thus only be transformed
+   * into a buffer allocated by the library.
+   *
+   * @param jpegData JPEG input buffer, read from its position to its limit
+   * @param info Information about the JPEG (from {@link #getInfo(ByteBuffer)}
+   * @param region Source region to crop out of JPEG
+   * @param rotation Degrees to rotate the JPEG, must be 0, 90, 180 or 270
+   * @return The required size in bytes, or -1 if the image can not be transformed into a
+   *     preallocated buffer
+   */
+  public int getTransformBufferSize(
+      ByteBuffer jpegData, Info info, Rectangle region, int rotation) {
+    return getTransformBufferSize(jpegData, info, region, getRotationTransform(rotation));
+  }
+
+  /**
+   * Get the size of the output buffer needed for {@link #transform(ByteBuffer, Info, Rectangle,
+   * TJXOP, ByteBuffer)}, see {@link #getTransformBufferSize(ByteBuffer, Info, Rectangle, int)}.
+   */
+  public int getTransformBufferSize(ByteBuffer jpegData, Info info, Rectangle region, TJXOP op) {
+    int headerSize = JpegSegments.findStartOfScan(jpegData);
+    if (headerSize < 0 || headerSize > JpegSegments.MAX_PREALLOCATED_HEADER_SIZE) {
+      return -1;
+    }
+    int width = info.getWidth();
+    int height = info.getHeight();
+    if (region != null) {
+      // The region may refer to the rotated image and a zero width or height extends it to the
+      // edge, so fall back to the larger image dimension for the upper bound
+      int maxDim = Math.max(width, height);
+      width = region.width > 0 ? Math.min(region.width, maxDim) : maxDim;
+      height = region.height > 0 ? Math.min(region.height, maxDim) : maxDim;
+    }
+    // The library determines the size of the output buffer from the dimensions of the output
+    // image, which are swapped for some operations
+    long size =
+        Math.max(
+            lib.tjBufSize(width, height, info.getSubsampling()),
+            lib.tjBufSize(height, width, info.getSubsampling()));
+    if (size <= 0 || size > Integer.MAX_VALUE) {
+      return -1;
+    }
+    return (int) size;
+  }
+
+  /**
+   * Apply several lossless transforms to a JPEG image, e.g. to cut it into tiles. The source image
+   * is only parsed and entropy-decoded once for all transforms.
+   *
+   * @param jpegData JPEG input buffer
+   * @param info Information about the JPEG (from {@link #getInfo(byte[])}
+   * @param transforms Transforms to apply
+   * @return The transformed JPEG data, in the order of the transforms
+   * @throws TurboJpegException if image transformation fails
+   * @see #transformBatch(ByteBuffer, Info, List)
+   */
+  public List<ByteBuffer> transformBatch(byte[] jpegData, Info info, List<TransformSpec> transforms)
+      throws TurboJpegException {
+    return transformBatch(ByteBuffer.wrap(jpegData), info, transforms);
+  }
+
+  /**
+   * Apply several lossless transforms to a JPEG image with a single call to the library, which
+   * parses and entropy-decodes the source image only once instead of once per transform.
+   *
+   * <p>All transforms are validated before the library is called, so an {@link
+   * IllegalArgumentException} is thrown if any of the regions is not aligned to the MCU size. The
+   * outputs are written to buffers allocated by the library and then copied to new heap buffers.
+   *
+   * @param jpegData JPEG input buffer, read from its position to its limit
+   * @param info Information about the JPEG (from {@link #getInfo(ByteBuffer)}
+   * @param transforms Transforms to apply
+   * @return The transformed JPEG data, in the order of the transforms
+   * @throws TurboJpegException if image transformation fails
+   */
+  public List<ByteBuffer> transformBatch(
+      ByteBuffer jpegData, Info info, List<TransformSpec> transforms) throws TurboJpegException {
+    int n = transforms.size();
+    if (n == 0) {
+      return Collections.emptyList();
+    }
+    // The library expects a contiguous array of structs
+    int structSize = Struct.size(new tjtransform(runtime));
+    Pointer transformArray = Memory.allocateDirect(runtime, n * structSize, true);
+    for (int i = 0; i < n; i++) {
+      TransformSpec spec = transforms.get(i);
+      tjtransform transform = new tjtransform(runtime);
+      transform.useMemory(transformArray.slice((long) i * structSize, structSize));
+      try {
+        initTransform(transform, info, spec.getRegion(), spec.getOperation(), spec.isGray());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException(
+            String.format("Invalid transform %d: %s", i, e.getMessage()), e);
+      }
+      int options = transform.options.get();
+      if (spec.isGray()) {
+        options |= TJXOPT.TJXOPT_GRAY;
+      }
+      if (spec.isCopyNone()) {
+        options |= TJXOPT.TJXOPT_COPYNONE;
+      }
+      transform.options.set(options);
+    }
+    // Output buffers are allocated by the library, their pointers and sizes are returned in arrays
+    Pointer dstBufs = Memory.allocateDirect(runtime, n * runtime.addressSize(), true);
+    Pointer dstSizes = Memory.allocateDirect(runtime, n * runtime.longSize(), true);
+    Handle codec = transformers.acquire();
+    try {
+      int rv =
+          lib.tjTransform(
+              codec.pointer,
+              jpegData,
+              jpegData.remaining(),
+              n,
+              dstBufs,
+              dstSizes,
+              transformArray,
+              0);
+      if (rv != 0) {
+        LOG.error("Could not transform image ({} transforms)", n);
+        throw new TurboJpegException(lib.tjGetErrorStr());
+      }
+      List<ByteBuffer> outputs = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        Pointer dstBuf = dstBufs.getPointer((long) i * runtime.addressSize());
+        int length = (int) dstSizes.getNativeLong((long) i * runtime.longSize());
+        ByteBuffer outBuf = ByteBuffer.allocate(length).order(runtime.byteOrder());
+        dstBuf.get(0, outBuf.array(), 0, length);
+        outputs.add(outBuf);
+      }
+      return outputs;
+    } finally {
+      transformers.release(codec);
+      // The library may have allocated some of the buffers before failing
+      for (int i = 0; i < n; i++) {
+        Pointer dstBuf = dstBufs.getPointer((long) i * runtime.addressSize());
+        if (dstBuf != null && dstBuf.address() != 0) {
+          lib.tjFree(dstBuf);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the lossless operation that rotates an image clockwise.
+   *
+   * @param rotation Degrees to rotate the image, must be 0, 90, 180 or 270
+   */
+  public static TJXOP getRotationTransform(int rotation) {
+    switch (rotation) {
+      case 0:
+        return TJXOP.TJXOP_NONE;
+      case 90:
+        return TJXOP.TJXOP_ROT90;
+      case 180:
+        return TJXOP.TJXOP_ROT180;
+      case 270:
+        return TJXOP.TJXOP_ROT270;
+      default:
+        throw new IllegalArgumentException("Invalid rotation, must be 90, 180 or 270");
+    }
+  }
+
+  /**
+   * Get the lossless operation that displays an image upright.
+   *
+   * @param orientation EXIF orientation of the image, see {@link #getExifOrientation(ByteBuffer)}
+   * @return the operation, {@link TJXOP#TJXOP_NONE} for invalid orientations
+   */
+  public static TJXOP getOrientationTransform(int orientation) {
+    switch (orientation) {
+      case 2:
+        return TJXOP.TJXOP_HFLIP;
+      case 3:
+        return TJXOP.TJXOP_ROT180;
+      case 4:
+        return TJXOP.TJXOP_VFLIP;
+      case 5:
+        return TJXOP.TJXOP_TRANSPOSE;
+      case 6:
+        return TJXOP.TJXOP_ROT90;
+      case 7:
+        return TJXOP.TJXOP_TRANSVERSE;
+      case 8:
+        return TJXOP.TJXOP_ROT270;
+      default:
+        return TJXOP.TJXOP_NONE;
+    }
+  }
+
+  /**
+   * Read the orientation tag from the EXIF metadata of a JPEG image, without decoding anything
+   * else.
+   *
+   * @param jpegData JPEG data, read from its position to its limit, the position is not modified
+   * @return the orientation from 1 (upright) to 8, or 1 if the image has no valid orientation tag
+   */
+  public static int getExifOrientation(ByteBuffer jpegData) {
+    return JpegSegments.getExifOrientation(jpegData);
+  }
+
+  /**
+   * Check whether an operation can be applied to the whole image without trimming or leaving
+   * untransformed the partial MCUs at its right or bottom edge.
+   *
+   * @param info Information about the JPEG (from {@link #getInfo(ByteBuffer)}
+   * @param op Operation to apply
+   */
+  public static boolean isPerfectTransform(Info info, TJXOP op) {
+    Dimension mcuSize = info.getMCUSize();
+    boolean alignedWidth = info.getWidth() % mcuSize.width == 0;
+    boolean alignedHeight = info.getHeight() % mcuSize.height == 0;
+    switch (op) {
+      case TJXOP_HFLIP:
+      case TJXOP_ROT270:
+        return alignedWidth;
+      case TJXOP_VFLIP:
+      case TJXOP_ROT90:
+        return alignedHeight;
+      case TJXOP_ROT180:
+      case TJXOP_TRANSVERSE:
+        return alignedWidth && alignedHeight;
+      default:
+        return true;
+    }
+  }
+
+  /** Whether an operation swaps the width and height of the image. */
+  static boolean isTransposing(TJXOP op) {
+    return op == TJXOP.TJXOP_TRANSPOSE
+        || op == TJXOP.TJXOP_TRANSVERSE
+        || op == TJXOP.TJXOP_ROT90
+        || op == TJXOP.TJXOP_ROT270;
+  }
+
+  private tjtransform createTransform(Info info, Rectangle region, TJXOP op) {
+    tjtransform transform = new tjtransform(runtime);
+    initTransform(transform, info, region, op, false);
+    return transform;
+  }
+
+  /**
+   * Set up a transform, the region is in the coordinates of the rotated image.
+   *
+   * @param gray Whether the output is grayscale, the luminance of all subsamplings is cropped in
+   *     blocks of 8x8 pixels
+   */
+  private static void initTransform(
+      tjtransform transform, Info info, Rectangle region, TJXOP op, boolean gray) {
+    boolean flipCoords = isTransposing(op);
+    if (region != null) {
+      // The rotated image has rotated MCUs
+      Dimension mcuSize = gray ? new Dimension(8, 8) : info.getMCUSize();
+      int mcuWidth = flipCoords ? mcuSize.height : mcuSize.width;
+      int mcuHeight = flipCoords ? mcuSize.width : mcuSize.height;
+      int width = flipCoords ? info.getHeight() : info.getWidth();
+      int height = flipCoords ? info.getWidth() : info.getHeight();
+      if ((region.x + region.width < width && region.width % mcuWidth != 0)
+          || (region.y + region.height < height && region.height % mcuHeight != 0)) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Invalid cropping region %d×%d, width must be divisible by %d, height by %d",
+                region.width, region.height, mcuWidth, mcuHeight));
+      }
+      if (region.x % mcuWidth != 0 || region.y % mcuHeight != 0) {
+        throw new IllegalArgumentException(
+            String.format(
+                "Invalid cropping region offset %d,%d, x must be divisible by %d, y by %d",
+                region.x, region.y, mcuWidth, mcuHeight));
+      }
+      transform.options.set(TJXOPT.TJXOPT_CROP | TJXOPT.TJXOPT_TRIM);
+      transform.r.x.set(region.x);
+      transform.r.y.set(region.y);
+      // If any cropping dimension equals the original dimension, libturbojpeg requires it to be
+      // set to 0
+      if (region.x + region.width >= width) {
+        transform.r.w.set(0);
+      } else {
+        transform.r.w.set(region.width);
+      }
+      if (region.y + region.height >= height) {
+        transform.r.h.set(0);
+      } else {
+        transform.r.h.set(region.height);
+      }
+    }
+    if (op != TJXOP.TJXOP_NONE) {
+      transform.op.set(op.intValue());
+    }
+  }
+
+  /** Pixels of an image to compress, in a layout supported by the library. */
+  private static final class PixelSource {
+    final Buffer buffer;
+    // Number of bytes per row
+    final int pitch;
+    final TJPF pixelFormat;
+
+    PixelSource(Buffer buffer, int pitch, TJPF pixelFormat) {
+      this.buffer = buffer;
+      this.pitch = pitch;
+      this.pixelFormat = pixelFormat;
+    }
+  }
+
+  /** Destroy all pooled native handles. */
+  @Override
+  public void close() {
+    compressors.close();
+    decompressors.close();
+    transformers.close();
   }
 }
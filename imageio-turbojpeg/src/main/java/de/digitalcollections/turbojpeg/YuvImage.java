@@ -0,0 +1,147 @@
+package de.digitalcollections.turbojpeg;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Planar YCbCr image, as decoded by {@link TurboJpeg#decodeToYuv(ByteBuffer, Info,
+ * java.awt.Dimension, YuvImage)} or converted by {@link
+ * TurboJpeg#encodeToYuv(java.awt.image.Raster, TJSAMP, YuvImage)}, and compressed by {@link
+ * TurboJpeg#encodeYuv(YuvImage, EncodeOptions)}.
+ *
+ * <p>The planes are held in native memory. Grayscale images only have a luminance plane, all other
+ * images have a luminance and two chrominance planes, whose size depends on the chroma subsampling.
+ * Instances can be passed back to the decoder to reuse the plane buffers for images with the same
+ * size and subsampling. Planes produced elsewhere, e.g. with padded rows, can be wrapped with
+ * {@link TurboJpeg#createYuvImage(int, int, TJSAMP, ByteBuffer[], int[])}.
+ */
+public final class YuvImage {
+
+  private final int width;
+  private final int height;
+  private final TJSAMP subsampling;
+  private final ByteBuffer[] planes;
+  private final int[] strides;
+  private final int[] planeWidths;
+  private final int[] planeHeights;
+  // Native array with the addresses of the planes, as expected by libturbojpeg
+  final Pointer planePointers;
+
+  YuvImage(
+      Runtime runtime,
+      int width,
+      int height,
+      TJSAMP subsampling,
+      int[] planeWidths,
+      int[] planeHeights) {
+    this(
+        runtime,
+        width,
+        height,
+        subsampling,
+        planeWidths,
+        planeHeights,
+        allocatePlanes(planeWidths, planeHeights),
+        planeWidths.clone());
+  }
+
+  /**
+   * @param planes Direct buffers holding the planes, starting at their positions
+   * @param strides Number of bytes between the starts of two consecutive rows of each plane
+   */
+  YuvImage(
+      Runtime runtime,
+      int width,
+      int height,
+      TJSAMP subsampling,
+      int[] planeWidths,
+      int[] planeHeights,
+      ByteBuffer[] planes,
+      int[] strides) {
+    this.width = width;
+    this.height = height;
+    this.subsampling = subsampling;
+    this.planeWidths = planeWidths;
+    this.planeHeights = planeHeights;
+    this.strides = strides;
+    this.planes = new ByteBuffer[planes.length];
+    this.planePointers = Memory.allocateDirect(runtime, 3 * runtime.addressSize(), true);
+    for (int i = 0; i < planes.length; i++) {
+      this.planes[i] = planes[i].slice();
+      planePointers.putAddress(
+          (long) i * runtime.addressSize(), Pointer.wrap(runtime, this.planes[i]).address());
+    }
+  }
+
+  /** Allocate tightly packed planes, which share a single native allocation. */
+  private static ByteBuffer[] allocatePlanes(int[] planeWidths, int[] planeHeights) {
+    int totalSize = 0;
+    for (int i = 0; i < planeWidths.length; i++) {
+      totalSize += planeWidths[i] * planeHeights[i];
+    }
+    ByteBuffer data = ByteBuffer.allocateDirect(totalSize);
+    ByteBuffer[] planes = new ByteBuffer[planeWidths.length];
+    int offset = 0;
+    for (int i = 0; i < planes.length; i++) {
+      int planeSize = planeWidths[i] * planeHeights[i];
+      ((Buffer) data).limit(offset + planeSize).position(offset);
+      planes[i] = data.slice();
+      offset += planeSize;
+    }
+    return planes;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public TJSAMP getSubsampling() {
+    return subsampling;
+  }
+
+  /** Number of planes, 1 for grayscale images and 3 otherwise. */
+  public int getNumPlanes() {
+    return planes.length;
+  }
+
+  /**
+   * Get the buffer holding a plane. The buffer is shared with this image and overwritten when the
+   * image is reused for decoding or color conversion.
+   *
+   * @param index Index of the plane, 0 for Y, 1 for Cb and 2 for Cr
+   * @return the plane data, the rows are {@link #getStride(int)} bytes apart
+   */
+  public ByteBuffer getPlane(int index) {
+    return planes[index];
+  }
+
+  /** Number of bytes between the starts of two consecutive rows of a plane. */
+  public int getStride(int index) {
+    return strides[index];
+  }
+
+  public int getPlaneWidth(int index) {
+    return planeWidths[index];
+  }
+
+  public int getPlaneHeight(int index) {
+    return planeHeights[index];
+  }
+
+  int[] getStrides() {
+    return strides;
+  }
+
+  /** Whether the plane buffers can hold an image with the given dimensions and subsampling. */
+  public boolean isCompatible(int width, int height, TJSAMP subsampling) {
+    return this.width == width && this.height == height && this.subsampling == subsampling;
+  }
+}
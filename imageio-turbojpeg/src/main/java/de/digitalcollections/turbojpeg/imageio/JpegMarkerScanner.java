@@ -0,0 +1,255 @@
+package de.digitalcollections.turbojpeg.imageio;
+
+import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.io.EOFException;
+import java.io.IOException;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Incremental scanner for the marker segments at the start of a JPEG stream.
+ *
+ * <p>Only the segments up to the first SOS (start of scan) marker are looked at, the entropy-coded
+ * image data is never read. Segments that are not of interest are skipped without being read, and
+ * scanning stops after a fixed number of bytes, so the cost of a probe does not depend on the size
+ * of the image.
+ */
+final class JpegMarkerScanner {
+
+  /** Default limit for the number of bytes to scan before giving up. */
+  static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+  private static final int M_SOI = 0xD8;
+  private static final int M_EOI = 0xD9;
+  private static final int M_SOS = 0xDA;
+  private static final int M_APP0 = 0xE0;
+  private static final int M_APP14 = 0xEE;
+  private static final int M_TEM = 0x01;
+
+  private JpegMarkerScanner() {}
+
+  /** Information gathered from the marker segments preceding the image data. */
+  static final class Header {
+    private int sofMarker = -1;
+    private int precision;
+    private int width;
+    private int height;
+    private int[] componentIds = new int[0];
+    // Horizontal and vertical sampling factors of the components
+    private int[] hSampling = new int[0];
+    private int[] vSampling = new int[0];
+    private boolean jfif;
+    private int adobeTransform = -1;
+
+    /** The SOFn marker that started the frame, e.g. 0xC0 for baseline JPEGs. */
+    int getSofMarker() {
+      return sofMarker;
+    }
+
+    int getPrecision() {
+      return precision;
+    }
+
+    int getWidth() {
+      return width;
+    }
+
+    int getHeight() {
+      return height;
+    }
+
+    int getNumComponents() {
+      return componentIds.length;
+    }
+
+    boolean isProgressive() {
+      return sofMarker == 0xC2 || sofMarker == 0xC6 || sofMarker == 0xCA || sofMarker == 0xCE;
+    }
+
+    boolean isLossless() {
+      return sofMarker == 0xC3 || sofMarker == 0xC7 || sofMarker == 0xCB || sofMarker == 0xCF;
+    }
+
+    /**
+     * Determine the chroma subsampling of the image the same way libturbojpeg does: the first
+     * component (and the K component of CMYK and YCCK images) has the sampling factors of the
+     * subsampling, all other components are sampled once per MCU. The sampling factors of grayscale
+     * images have no meaning.
+     *
+     * @return the subsampling, or null for layouts that libturbojpeg cannot classify, e.g. 4:1:1
+     */
+    TJSAMP getSubsampling() {
+      if (componentIds.length == 1) {
+        return TJSAMP.TJSAMP_GRAY;
+      }
+      if (componentIds.length != 3 && componentIds.length != 4) {
+        return null;
+      }
+      for (TJSAMP subsampling : TJSAMP.values()) {
+        if (subsampling != TJSAMP.TJSAMP_GRAY && hasSampling(subsampling)) {
+          return subsampling;
+        }
+      }
+      return null;
+    }
+
+    private boolean hasSampling(TJSAMP subsampling) {
+      int h = Info.getMCUSize(subsampling).width / 8;
+      int v = Info.getMCUSize(subsampling).height / 8;
+      for (int i = 0; i < componentIds.length; i++) {
+        boolean full = i == 0 || i == 3;
+        if (hSampling[i] != (full ? h : 1) || vSampling[i] != (full ? v : 1)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Whether the image has a JFIF (APP0) marker. */
+    boolean isJfif() {
+      return jfif;
+    }
+
+    /** The color transform from the Adobe (APP14) marker, or -1 if there is no such marker. */
+    int getAdobeTransform() {
+      return adobeTransform;
+    }
+
+    /**
+     * Determine the colorspace of the image the same way libjpeg does, i.e. from the number of
+     * components and the JFIF/Adobe markers, falling back to the component identifiers.
+     */
+    TJCS getColorspace() {
+      switch (componentIds.length) {
+        case 1:
+          return TJCS.TJCS_GRAY;
+        case 3:
+          if (jfif) {
+            return TJCS.TJCS_YCbCr;
+          }
+          if (adobeTransform >= 0) {
+            return adobeTransform == 0 ? TJCS.TJCS_RGB : TJCS.TJCS_YCbCr;
+          }
+          if (componentIds[0] == 'R' && componentIds[1] == 'G' && componentIds[2] == 'B') {
+            return TJCS.TJCS_RGB;
+          }
+          return TJCS.TJCS_YCbCr;
+        case 4:
+          return adobeTransform == 2 ? TJCS.TJCS_YCCK : TJCS.TJCS_CMYK;
+        default:
+          return null;
+      }
+    }
+  }
+
+  /**
+   * Scan the marker segments starting at the current stream position.
+   *
+   * <p>The stream is left positioned somewhere inside the header, callers should mark and reset the
+   * stream around the call if they need to read it again.
+   *
+   * @param stream stream positioned at the SOI marker
+   * @param maxBytes maximum number of bytes to scan
+   * @return the header information or null if the stream does not start with a JPEG header that is
+   *     complete within the first {@code maxBytes} bytes
+   * @throws IOException if reading from the stream fails
+   */
+  static Header scan(ImageInputStream stream, long maxBytes) throws IOException {
+    long start = stream.getStreamPosition();
+    try {
+      if (readByte(stream) != 0xFF || readByte(stream) != M_SOI) {
+        return null;
+      }
+      Header header = new Header();
+      while (stream.getStreamPosition() - start < maxBytes) {
+        if (readByte(stream) != 0xFF) {
+          // Garbage between segments, we do not attempt to resynchronize
+          return null;
+        }
+        int marker = readByte(stream);
+        while (marker == 0xFF) {
+          // Fill bytes
+          marker = readByte(stream);
+        }
+        if (marker == M_TEM || (marker >= 0xD0 && marker <= 0xD7)) {
+          // Standalone markers without a length
+          continue;
+        }
+        if (marker == M_EOI) {
+          return null;
+        }
+        int length = readUnsignedShort(stream);
+        if (length < 2) {
+          return null;
+        }
+        long segmentEnd = stream.getStreamPosition() + length - 2;
+        if (isStartOfFrame(marker)) {
+          readStartOfFrame(stream, marker, header);
+        } else if (marker == M_APP0 && length >= 7) {
+          header.jfif |= readSignature(stream, "JFIF\0");
+        } else if (marker == M_APP14 && length >= 14) {
+          if (readSignature(stream, "Adobe")) {
+            // Skip version, flags0 and flags1
+            stream.skipBytes(6);
+            header.adobeTransform = readByte(stream);
+          }
+        } else if (marker == M_SOS) {
+          return header.sofMarker >= 0 ? header : null;
+        }
+        stream.seek(segmentEnd);
+      }
+      return null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private static boolean isStartOfFrame(int marker) {
+    // C4 (DHT), C8 (JPG) and CC (DAC) share the range, but are no frame headers
+    return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+  }
+
+  private static void readStartOfFrame(ImageInputStream stream, int marker, Header header)
+      throws IOException {
+    header.sofMarker = marker;
+    header.precision = readByte(stream);
+    header.height = readUnsignedShort(stream);
+    header.width = readUnsignedShort(stream);
+    int numComponents = readByte(stream);
+    header.componentIds = new int[numComponents];
+    header.hSampling = new int[numComponents];
+    header.vSampling = new int[numComponents];
+    for (int i = 0; i < numComponents; i++) {
+      header.componentIds[i] = readByte(stream);
+      int sampling = readByte(stream);
+      header.hSampling[i] = sampling >> 4;
+      header.vSampling[i] = sampling & 0x0F;
+      // Skip quantization table selector
+      stream.skipBytes(1);
+    }
+  }
+
+  private static boolean readSignature(ImageInputStream stream, String signature)
+      throws IOException {
+    for (int i = 0; i < signature.length(); i++) {
+      if (readByte(stream) != signature.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int readByte(ImageInputStream stream) throws IOException {
+    int b = stream.read();
+    if (b < 0) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  /** Read a big-endian unsigned short, independent of the byte order set on the stream. */
+  private static int readUnsignedShort(ImageInputStream stream) throws IOException {
+    return (readByte(stream) << 8) | readByte(stream);
+  }
+}
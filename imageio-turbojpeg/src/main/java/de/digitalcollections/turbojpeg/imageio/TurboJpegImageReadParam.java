@@ -1,16 +1,28 @@
 package de.digitalcollections.turbojpeg.imageio;
 
+import de.digitalcollections.turbojpeg.DecodeSpeed;
 import javax.imageio.plugins.jpeg.JPEGImageReadParam;
 
 /**
  * Parameters for reading JPEG images.
  *
- * <p>Currently the only extra setting apart from the default ImageIO ones is setting the rotation
- * degree.
+ * <p>Apart from the default ImageIO ones, the rotation degree, automatic orientation and the
+ * decoding speed can be set.
+ *
+ * <p>A source render size can be set to decode the image to an arbitrary size, see {@link
+ * TurboJpegImageReader#read(int, javax.imageio.ImageReadParam)}. To fit the image into a box, the
+ * size can be computed with {@link de.digitalcollections.turbojpeg.Info#getSizeToFit(
+ * java.awt.Dimension)}, or from the dimensions of the first image of the reader.
  */
 public class TurboJpegImageReadParam extends JPEGImageReadParam {
 
   private int rotationDegree;
+  private DecodeSpeed decodeSpeed = DecodeSpeed.ACCURATE;
+  private boolean autoOrient;
+
+  public TurboJpegImageReadParam() {
+    canSetSourceRenderSize = true;
+  }
 
   public int getRotationDegree() {
     return rotationDegree;
@@ -23,4 +35,34 @@ public class TurboJpegImageReadParam extends JPEGImageReadParam {
     }
     throw new IllegalArgumentException("Illegal rotation, must be 90, 180 or 270");
   }
+
+  public DecodeSpeed getDecodeSpeed() {
+    return decodeSpeed;
+  }
+
+  /**
+   * Set the trade-off between decoding speed and accuracy, e.g. {@link DecodeSpeed#FASTEST} for
+   * previews.
+   */
+  public void setDecodeSpeed(DecodeSpeed decodeSpeed) {
+    if (decodeSpeed == null) {
+      throw new IllegalArgumentException("Decode speed must not be null");
+    }
+    this.decodeSpeed = decodeSpeed;
+  }
+
+  public boolean isAutoOrient() {
+    return autoOrient;
+  }
+
+  /**
+   * Display the image upright according to the orientation in its EXIF metadata, by flipping and
+   * rotating it losslessly before decoding. The rotation degree is applied to the upright image.
+   *
+   * <p>Like with rotations, source regions refer to the image as stored, i.e. before it is
+   * oriented, and the dimensions reported by the reader are the stored ones.
+   */
+  public void setAutoOrient(boolean autoOrient) {
+    this.autoOrient = autoOrient;
+  }
 }
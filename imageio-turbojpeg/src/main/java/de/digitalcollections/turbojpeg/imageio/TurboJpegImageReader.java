@@ -1,20 +1,43 @@
 package de.digitalcollections.turbojpeg.imageio;
 
 import static java.awt.image.BufferedImage.TYPE_3BYTE_BGR;
+import static java.awt.image.BufferedImage.TYPE_4BYTE_ABGR;
 import static java.awt.image.BufferedImage.TYPE_BYTE_GRAY;
+import static java.awt.image.BufferedImage.TYPE_CUSTOM;
+import static java.awt.image.BufferedImage.TYPE_INT_ARGB;
+import static java.awt.image.BufferedImage.TYPE_INT_BGR;
+import static java.awt.image.BufferedImage.TYPE_INT_RGB;
 
+import de.digitalcollections.turbojpeg.DecodeSpeed;
 import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.ScalingFactor;
+import de.digitalcollections.turbojpeg.StripDecoder;
 import de.digitalcollections.turbojpeg.TurboJpeg;
 import de.digitalcollections.turbojpeg.TurboJpegException;
 import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import de.digitalcollections.turbojpeg.lib.enums.TJXOP;
 import java.awt.Dimension;
+import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
+import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
@@ -28,47 +51,106 @@ public class TurboJpegImageReader extends ImageReader {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TurboJpegImageReader.class);
 
+  // Image types that are decoded directly, the first one is the default for color images
+  private static final int[] IMAGE_TYPES = {
+    TYPE_3BYTE_BGR, TYPE_INT_RGB, TYPE_INT_ARGB, TYPE_INT_BGR, TYPE_4BYTE_ABGR
+  };
+
+  // Default type for CMYK and YCCK images
+  private static final ImageTypeSpecifier CMYK_TYPE =
+      new ImageTypeSpecifier(
+          TurboJpeg.COLOR_MODEL_CMYK, TurboJpeg.COLOR_MODEL_CMYK.createCompatibleSampleModel(1, 1));
+
   private final TurboJpeg lib;
   private ByteBuffer jpegData;
   private Info info;
+  // Failure to read the header of the current input, thrown on the first access to the image
+  private TurboJpegException infoError;
+  // Holder for the information about transformed images, reused across reads
+  private Info transformedInfo;
+  // Native output buffer for transformed images, reused across reads
+  private ByteBuffer transformBuffer;
+  // Decoded image for reads into a destination that need additional cropping, reused across reads
+  private BufferedImage scratchImage;
 
   protected TurboJpegImageReader(ImageReaderSpi originatingProvider, TurboJpeg lib) {
     super(originatingProvider);
     this.lib = lib;
   }
 
+  /**
+   * Set the input source.
+   *
+   * <p>Besides {@link ImageInputStream}s, {@link File}s and {@link Path}s are accepted. These are
+   * memory-mapped and decoded straight from the mapping, without reading the file into the Java
+   * heap.
+   */
   @Override
   public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
     super.setInput(input, seekForwardOnly, ignoreMetadata);
+    info = null;
+    infoError = null;
     if (input == null) {
       return;
     }
-    if (input instanceof ImageInputStream) {
-      try {
+    try {
+      if (input instanceof ImageInputStream) {
         jpegData = bufferFromStream((ImageInputStream) input);
-        info = lib.getInfo(jpegData.array());
-      } catch (IOException e) {
-        LOGGER.error(e.getMessage());
-        throw new IllegalArgumentException("Failed to read input.");
-      } catch (TurboJpegException e) {
-        // NOTE: We do not cancel here, since this does not neccesarily have to be a problem, e.g.
-        // if setInput is
-        // called from the TIFFImageReader.
-        // Users should have checked with the TurboJpegImageReaderSpi#canDecode method beforehand,
-        // anyways.
+      } else if (input instanceof File) {
+        jpegData = mapFile(((File) input).toPath());
+      } else if (input instanceof Path) {
+        jpegData = mapFile((Path) input);
+      } else {
+        throw new IllegalArgumentException("Bad input.");
       }
-    } else {
-      throw new IllegalArgumentException("Bad input.");
+      info = lib.getInfo(jpegData);
+    } catch (IOException e) {
+      LOGGER.error(e.getMessage());
+      throw new IllegalArgumentException("Failed to read input.");
+    } catch (TurboJpegException e) {
+      // NOTE: We do not fail here, since this does not neccesarily have to be a problem, e.g. if
+      // setInput is called from the TIFFImageReader. The error is raised once the image is used.
+      infoError = e;
+    }
+  }
+
+  /**
+   * Get the information about the current input.
+   *
+   * @throws IllegalStateException if no input is set or its header could not be read
+   */
+  private Info getInfo() {
+    if (info != null) {
+      return info;
+    }
+    if (infoError != null) {
+      throw new IllegalStateException(
+          "Could not read JPEG header: " + infoError.getMessage(), infoError);
     }
+    throw new IllegalStateException("No input set.");
   }
 
   private void checkIndex(int imageIndex) {
-    if (imageIndex >= info.getAvailableSizes().size()) {
+    if (imageIndex >= getInfo().getAvailableSizes().size()) {
       throw new IndexOutOfBoundsException("bad index");
     }
   }
 
+  /**
+   * Read the remainder of the stream into a buffer. If the length of the stream is known, the data
+   * is read into an exactly sized buffer, otherwise it is read in chunks.
+   */
   static ByteBuffer bufferFromStream(ImageInputStream stream) throws IOException {
+    long length = stream.length();
+    if (length >= 0) {
+      long remaining = length - stream.getStreamPosition();
+      if (remaining > Integer.MAX_VALUE) {
+        throw new IOException("Input is too large: " + remaining + " bytes");
+      }
+      byte[] buf = new byte[(int) Math.max(remaining, 0)];
+      stream.readFully(buf);
+      return ByteBuffer.wrap(buf);
+    }
     ByteArrayOutputStream bos = new ByteArrayOutputStream();
     final byte[] buf = new byte[8192];
     int n;
@@ -78,6 +160,20 @@ public class TurboJpegImageReader extends ImageReader {
     return ByteBuffer.wrap(bos.toByteArray());
   }
 
+  /**
+   * Map the file into memory. The mapping stays valid after the channel is closed and is released
+   * once the buffer is garbage collected.
+   */
+  static ByteBuffer mapFile(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Input is too large: " + size + " bytes");
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+  }
+
   @Override
   public ImageReadParam getDefaultReadParam() {
     return new TurboJpegImageReadParam();
@@ -89,7 +185,7 @@ public class TurboJpegImageReader extends ImageReader {
    */
   @Override
   public int getNumImages(boolean allowSearch) {
-    return info.getAvailableSizes().size();
+    return getInfo().getAvailableSizes().size();
   }
 
   private Dimension getDimension(int imageIndex) {
@@ -105,15 +201,67 @@ public class TurboJpegImageReader extends ImageReader {
 
   @Override
   public int getHeight(int imageIndex) {
+    checkIndex(imageIndex);
     return info.getAvailableSizes().get(imageIndex).height;
   }
 
+  /**
+   * The default type is {@code TYPE_BYTE_GRAY} for grayscale, a 4-band CMYK type (see {@link
+   * TurboJpeg#COLOR_MODEL_CMYK}) for CMYK and YCCK and {@code TYPE_3BYTE_BGR} for other color
+   * images. The other types are decoded directly as well, with the color conversion done by the
+   * library, and can be selected with {@link ImageReadParam#setDestinationType}. CMYK images are
+   * converted to these types with a fast, naive formula without color management.
+   */
   @Override
   public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) {
-    return Stream.of(
-            ImageTypeSpecifier.createFromBufferedImageType(
-                info.getColorspace() == TJCS.TJCS_GRAY ? TYPE_BYTE_GRAY : TYPE_3BYTE_BGR))
-        .iterator();
+    checkIndex(imageIndex);
+    IntStream types = Arrays.stream(IMAGE_TYPES);
+    if (info.getColorspace() == TJCS.TJCS_GRAY) {
+      types = IntStream.concat(IntStream.of(TYPE_BYTE_GRAY), types);
+    } else {
+      // Only the luminance is decoded, see #getDestination
+      types = IntStream.concat(types, IntStream.of(TYPE_BYTE_GRAY));
+    }
+    Stream<ImageTypeSpecifier> specifiers =
+        types.mapToObj(ImageTypeSpecifier::createFromBufferedImageType);
+    if (info.getColorspace() == TJCS.TJCS_CMYK || info.getColorspace() == TJCS.TJCS_YCCK) {
+      specifiers = Stream.concat(Stream.of(CMYK_TYPE), specifiers);
+    }
+    return specifiers.iterator();
+  }
+
+  /**
+   * Get the destination image of the read parameters. If only a destination type is set, an image
+   * of that type is created that fits the decoded image at the destination offset.
+   *
+   * <p>Selecting only the first source band is equivalent to a {@code TYPE_BYTE_GRAY} destination
+   * type. Color images are decoded to gray destinations by decoding only their luminance, which
+   * skips the decoding, upsampling and color conversion of the chroma components.
+   *
+   * @return the destination, or null to decode into a new image of the default type
+   * @throws IIOException if the destination type is not supported
+   */
+  private BufferedImage getDestination(int imageIndex, ImageReadParam param, int width, int height)
+      throws IIOException {
+    if (param == null || param.getDestination() != null) {
+      return param != null ? param.getDestination() : null;
+    }
+    ImageTypeSpecifier type = param.getDestinationType();
+    if (type == null && isLuminanceOnly(param)) {
+      type = ImageTypeSpecifier.createFromBufferedImageType(TYPE_BYTE_GRAY);
+    }
+    if (type == null) {
+      return null;
+    }
+    Iterator<ImageTypeSpecifier> supported = getImageTypes(imageIndex);
+    while (supported.hasNext()) {
+      if (supported.next().equals(type)) {
+        Point offset = param.getDestinationOffset();
+        return type.createBufferedImage(
+            width + Math.max(offset.x, 0), height + Math.max(offset.y, 0));
+      }
+    }
+    throw new IIOException("Unsupported destination type");
   }
 
   /**
@@ -133,32 +281,35 @@ public class TurboJpegImageReader extends ImageReader {
    * @return The region that needs to be cropped from the image cropped to the expanded rectangle
    */
   Rectangle adjustRegion(Dimension mcuSize, Rectangle region, int rotation, Dimension imageSize) {
+    return adjustRegion(mcuSize, region, TurboJpeg.getRotationTransform(rotation), imageSize);
+  }
+
+  /**
+   * Like {@link #adjustRegion(Dimension, Rectangle, int, Dimension)}, for any lossless operation
+   * including flips.
+   */
+  Rectangle adjustRegion(Dimension mcuSize, Rectangle region, TJXOP op, Dimension imageSize) {
     if (region == null) {
       return null;
     }
-    final int originalWidth = imageSize.width;
-    final int originalHeight = imageSize.height;
-
-    // Recalculate the cropping region based on the desired rotation.
+    // Recalculate the cropping region based on the desired operation: transpose, then flip in the
+    // dimensions of the transposed image
     final Rectangle originalRegion = (Rectangle) region.clone();
-    if (rotation == 90) {
-      int x = region.x;
-      region.x = originalHeight - region.height - region.y;
-      region.y = x;
-    }
-    if (rotation == 180) {
-      region.x = originalWidth - region.width - region.x;
-      region.y = originalHeight - region.height - region.y;
+    int bits = getOperationBits(op);
+    int width = imageSize.width;
+    int height = imageSize.height;
+    if ((bits & TRANSPOSE) != 0) {
+      // The library crops the transposed image, whose MCUs are transposed as well
+      region.setBounds(region.y, region.x, region.height, region.width);
+      width = imageSize.height;
+      height = imageSize.width;
+      mcuSize = new Dimension(mcuSize.height, mcuSize.width);
     }
-    if (rotation == 270) {
-      int x = region.x;
-      region.x = region.y;
-      region.y = originalWidth - region.width - x;
+    if ((bits & FLIP_X) != 0) {
+      region.x = width - region.width - region.x;
     }
-    if (rotation == 90 || rotation == 270) {
-      int w = region.width;
-      region.width = region.height;
-      region.height = w;
+    if ((bits & FLIP_Y) != 0) {
+      region.y = height - region.height - region.y;
     }
 
     // Calculate how much of the region returned from libjpeg has to be cropped on the JVM-side
@@ -166,14 +317,14 @@ public class TurboJpegImageReader extends ImageReader {
         new Rectangle(
             0,
             0,
-            region.width == 0 ? originalWidth - region.x : region.width,
-            region.height == 0 ? originalHeight - region.y : region.height);
+            region.width == 0 ? width - region.x : region.width,
+            region.height == 0 ? height - region.y : region.height);
     // X-Offset + Width
     if (region.x % mcuSize.width != 0) {
       extraCrop.x = region.x % mcuSize.width;
       region.x -= extraCrop.x;
       if (region.width > 0) {
-        region.width = Math.min(region.width + extraCrop.x, originalWidth - region.x);
+        region.width = Math.min(region.width + extraCrop.x, width - region.x);
       }
     }
     // Y-Offset + Height
@@ -181,22 +332,22 @@ public class TurboJpegImageReader extends ImageReader {
       extraCrop.y = region.y % mcuSize.height;
       region.y -= extraCrop.y;
       if (region.height > 0) {
-        region.height = Math.min(region.height + extraCrop.y, originalHeight - region.y);
+        region.height = Math.min(region.height + extraCrop.y, height - region.y);
       }
     }
 
-    if ((region.x + region.width) != originalWidth && region.width % mcuSize.width != 0) {
+    if ((region.x + region.width) != width && region.width % mcuSize.width != 0) {
       region.width =
           Math.min(
               (int) (mcuSize.width * (Math.ceil(region.getWidth() / mcuSize.width))),
-              imageSize.width - region.x);
+              width - region.x);
     }
 
-    if ((region.y + region.height) != originalHeight && region.height % mcuSize.height != 0) {
+    if ((region.y + region.height) != height && region.height % mcuSize.height != 0) {
       region.height =
           Math.min(
               (int) (mcuSize.height * (Math.ceil(region.getHeight() / mcuSize.height))),
-              imageSize.height - region.y);
+              height - region.y);
     }
 
     boolean modified =
@@ -211,6 +362,65 @@ public class TurboJpegImageReader extends ImageReader {
     }
   }
 
+  // Lossless operations expressed as an optional transposition followed by optional flips
+  private static final int TRANSPOSE = 1;
+  private static final int FLIP_X = 2;
+  private static final int FLIP_Y = 4;
+  private static final TJXOP[] OPERATIONS = {
+    TJXOP.TJXOP_NONE,
+    TJXOP.TJXOP_TRANSPOSE,
+    TJXOP.TJXOP_HFLIP,
+    TJXOP.TJXOP_ROT90,
+    TJXOP.TJXOP_VFLIP,
+    TJXOP.TJXOP_ROT270,
+    TJXOP.TJXOP_ROT180,
+    TJXOP.TJXOP_TRANSVERSE
+  };
+
+  private static int getOperationBits(TJXOP op) {
+    for (int bits = 0; bits < OPERATIONS.length; bits++) {
+      if (OPERATIONS[bits] == op) {
+        return bits;
+      }
+    }
+    throw new IllegalArgumentException("Unsupported operation " + op);
+  }
+
+  /** Get the operation equivalent to applying {@code first} and then {@code then}. */
+  static TJXOP combine(TJXOP first, TJXOP then) {
+    int a = getOperationBits(first);
+    int b = getOperationBits(then);
+    int flips = a & (FLIP_X | FLIP_Y);
+    if ((b & TRANSPOSE) != 0 && (flips == FLIP_X || flips == FLIP_Y)) {
+      // Transposing turns the horizontal flip of the first operation into a vertical one
+      flips ^= FLIP_X | FLIP_Y;
+    }
+    return OPERATIONS[((a ^ b) & TRANSPOSE) | (flips ^ (b & (FLIP_X | FLIP_Y)))];
+  }
+
+  /** Apply a lossless operation to a decoded image. */
+  static BufferedImage applyOperation(BufferedImage img, TJXOP op) {
+    int bits = getOperationBits(op);
+    if (bits == 0) {
+      return img;
+    }
+    boolean transpose = (bits & TRANSPOSE) != 0;
+    int width = transpose ? img.getHeight() : img.getWidth();
+    int height = transpose ? img.getWidth() : img.getHeight();
+    double scaleX = (bits & FLIP_X) != 0 ? -1 : 1;
+    double scaleY = (bits & FLIP_Y) != 0 ? -1 : 1;
+    double translateX = scaleX < 0 ? width : 0;
+    double translateY = scaleY < 0 ? height : 0;
+    AffineTransform transform =
+        transpose
+            ? new AffineTransform(0, scaleY, scaleX, 0, translateX, translateY)
+            : new AffineTransform(scaleX, 0, 0, scaleY, translateX, translateY);
+    WritableRaster raster = img.getRaster().createCompatibleWritableRaster(width, height);
+    new AffineTransformOp(transform, AffineTransformOp.TYPE_NEAREST_NEIGHBOR)
+        .filter(img.getRaster(), raster);
+    return new BufferedImage(img.getColorModel(), raster, img.isAlphaPremultiplied(), null);
+  }
+
   /**
    * While the regular cropping parameters are applied to the unscaled source image, the additional
    * extra cropping on the Java side of things is applied to the decoded and possibly scaled image.
@@ -259,25 +469,77 @@ public class TurboJpegImageReader extends ImageReader {
         Math.min((int) Math.ceil(scaleFactor * sourceRegion.height), nativeHeight - sourceRegion.y);
   }
 
+  /**
+   * Read the image, with the source region, destination and the parameters of {@link
+   * TurboJpegImageReadParam}.
+   *
+   * <p>If a source render size is set, the image is decoded to exactly that size, regardless of the
+   * image index: it is decoded at the smallest available resolution at least as large and then
+   * downscaled by area averaging (see {@link TurboJpeg#decodeToSize(ByteBuffer, Info, Dimension,
+   * DecodeSpeed)}). Source regions, rotation, orientations other than upright, source subsampling,
+   * source bands and destinations (or their types) are not supported with a source render size.
+   *
+   * <p>Color images are decoded to {@code TYPE_BYTE_GRAY} if that is the destination type or only
+   * the first source band is selected. Only the luminance is decoded in that case, which skips the
+   * chroma components.
+   *
+   * <p>Source subsampling is mapped onto the scaling of the decoder where possible, i.e. the image
+   * is decoded at 1/2, 1/4 or 1/8 of its size if that factor divides both subsampling steps and the
+   * origin of the subsampling grid. The remaining steps are taken by decimating the decoded pixels.
+   * Subsampling is not supported together with rotation or orientations other than upright.
+   */
   @Override
   public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
     checkIndex(imageIndex);
     ByteBuffer data = jpegData;
     try {
-      int rotation = 0;
+      TJXOP op = TJXOP.TJXOP_NONE;
+      TJXOP orientation = TJXOP.TJXOP_NONE;
+      DecodeSpeed speed = DecodeSpeed.ACCURATE;
       Rectangle region = null;
       Rectangle extraCrop = null;
       if (param instanceof TurboJpegImageReadParam) {
-        rotation = ((TurboJpegImageReadParam) param).getRotationDegree();
+        TurboJpegImageReadParam turboParam = (TurboJpegImageReadParam) param;
+        op = TurboJpeg.getRotationTransform(turboParam.getRotationDegree());
+        speed = turboParam.getDecodeSpeed();
+        if (turboParam.isAutoOrient()) {
+          orientation = TurboJpeg.getOrientationTransform(TurboJpeg.getExifOrientation(jpegData));
+          op = combine(orientation, op);
+        }
+      }
+      if (param != null && param.getSourceRenderSize() != null) {
+        if (op != TJXOP.TJXOP_NONE
+            || param.getSourceRegion() != null
+            || isSubsampled(param)
+            || param.getDestination() != null
+            || param.getDestinationType() != null
+            || isLuminanceOnly(param)) {
+          throw new IllegalArgumentException(
+              "Source regions, rotation, orientation, subsampling, destinations and destination"
+                  + " types are not supported with a source render size");
+        }
+        return lib.decodeToSize(jpegData, info, param.getSourceRenderSize(), speed);
+      }
+      if (isSubsampled(param)) {
+        if (op != TJXOP.TJXOP_NONE) {
+          throw new IllegalArgumentException(
+              "Rotation and orientation are not supported with source subsampling");
+        }
+        return readSubsampled(imageIndex, param, speed);
+      }
+      if (orientation != TJXOP.TJXOP_NONE && !TurboJpeg.isPerfectTransform(info, op)) {
+        return readOriented(imageIndex, (TurboJpegImageReadParam) param, op);
       }
       if (param != null && param.getSourceRegion() != null) {
         region = param.getSourceRegion();
-        if (!isRegionFullImage(imageIndex, region)) {
+        if (isRegionFullImage(imageIndex, region)) {
+          region = null;
+        } else if (op == TJXOP.TJXOP_NONE) {
+          return readRegion(imageIndex, region, param, speed);
+        } else {
           scaleRegion(imageIndex, region);
           // adjustments need native image size → imageIndex == 0
-          extraCrop = adjustRegion(info.getMCUSize(), region, rotation, getDimension(0));
-        } else {
-          region = null;
+          extraCrop = adjustRegion(info.getMCUSize(), region, op, getDimension(0));
         }
       }
       if (region != null
@@ -292,15 +554,26 @@ public class TurboJpegImageReader extends ImageReader {
                 getWidth(imageIndex),
                 getHeight(imageIndex)));
       }
-      if (region != null || rotation != 0) {
-        data = lib.transform(data.array(), info, region, rotation);
+      Info transformedInfo = info;
+      if (region != null || op != TJXOP.TJXOP_NONE) {
+        data = transform(data, region, op);
+        transformedInfo = lib.getInfo(data, this.transformedInfo);
+        this.transformedInfo = transformedInfo;
       }
-      Info transformedInfo = lib.getInfo(data.array());
-      BufferedImage img =
-          lib.decode(
-              data.array(), transformedInfo, transformedInfo.getAvailableSizes().get(imageIndex));
+      Dimension decodedSize = transformedInfo.getAvailableSizes().get(imageIndex);
       if (extraCrop != null) {
         adjustExtraCrop(imageIndex, transformedInfo, extraCrop);
+      }
+      BufferedImage destination =
+          extraCrop != null
+              ? getDestination(imageIndex, param, extraCrop.width, extraCrop.height)
+              : getDestination(imageIndex, param, decodedSize.width, decodedSize.height);
+      if (destination != null) {
+        readInto(data, transformedInfo, decodedSize, extraCrop, destination, param, speed);
+        return destination;
+      }
+      BufferedImage img = lib.decode(data, transformedInfo, decodedSize, speed);
+      if (extraCrop != null) {
         img = img.getSubimage(extraCrop.x, extraCrop.y, extraCrop.width, extraCrop.height);
       }
       return img;
@@ -309,6 +582,298 @@ public class TurboJpegImageReader extends ImageReader {
     }
   }
 
+  /** Whether only the first source band, i.e. the luminance of color images, is selected. */
+  private static boolean isLuminanceOnly(ImageReadParam param) {
+    int[] bands = param.getSourceBands();
+    return bands != null && bands.length == 1 && bands[0] == 0;
+  }
+
+  private static boolean isSubsampled(ImageReadParam param) {
+    return param != null
+        && (param.getSourceXSubsampling() > 1 || param.getSourceYSubsampling() > 1);
+  }
+
+  /**
+   * Read every n-th pixel of the source region (or the whole image) as requested by the source
+   * subsampling of the parameters. The image is decoded at the smallest scale whose factor divides
+   * the steps and the origin of the subsampling grid, so that every decoded pixel on the grid
+   * corresponds to a requested one, and the remaining steps are taken by decimation.
+   */
+  private BufferedImage readSubsampled(int imageIndex, ImageReadParam param, DecodeSpeed speed)
+      throws IOException, TurboJpegException {
+    Dimension imageSize = getDimension(imageIndex);
+    Rectangle region = new Rectangle(imageSize);
+    if (param.getSourceRegion() != null) {
+      region = region.intersection(param.getSourceRegion());
+    }
+    int stepX = param.getSourceXSubsampling();
+    int stepY = param.getSourceYSubsampling();
+    int startX = region.x + param.getSubsamplingXOffset();
+    int startY = region.y + param.getSubsamplingYOffset();
+    int width = (region.x + region.width - startX + stepX - 1) / stepX;
+    int height = (region.y + region.height - startY + stepY - 1) / stepY;
+    if (width <= 0 || height <= 0) {
+      throw new IllegalArgumentException("Subsampled source region is empty");
+    }
+    // The scaled sizes of the other resolutions are rounded, so only the full resolution maps
+    // exactly onto the scaled ones
+    int scale = 1;
+    Dimension scaledSize = imageSize;
+    for (int i = 0; imageIndex == 0 && i < info.getAvailableSizes().size(); i++) {
+      ScalingFactor factor = info.getScalingFactor(i);
+      int denom = factor.getDenom();
+      if (factor.getNum() == 1
+          && denom > scale
+          && stepX % denom == 0
+          && stepY % denom == 0
+          && startX % denom == 0
+          && startY % denom == 0) {
+        scale = denom;
+        scaledSize = info.getAvailableSizes().get(i);
+      }
+    }
+    int scaledStepX = stepX / scale;
+    int scaledStepY = stepY / scale;
+    Rectangle scaledRegion =
+        new Rectangle(
+            startX / scale,
+            startY / scale,
+            (width - 1) * scaledStepX + 1,
+            (height - 1) * scaledStepY + 1);
+    BufferedImage destination = getDestination(imageIndex, param, width, height);
+    if (scaledStepX == 1 && scaledStepY == 1) {
+      if (destination == null) {
+        return lib.decodeRegion(jpegData, info, scaledSize, scaledRegion, speed);
+      }
+      Point offset = param.getDestinationOffset();
+      lib.decodeRegion(
+          jpegData,
+          info,
+          scaledSize,
+          scaledRegion,
+          destination.getRaster(),
+          offset.x,
+          offset.y,
+          speed);
+      return destination;
+    }
+    BufferedImage img =
+        decimate(
+            lib.decodeRegion(jpegData, info, scaledSize, scaledRegion, speed),
+            scaledStepX,
+            scaledStepY);
+    if (destination == null) {
+      return img;
+    }
+    Point offset = param.getDestinationOffset();
+    WritableRaster raster = destination.getRaster();
+    raster.setRect(raster.getMinX() + offset.x, raster.getMinY() + offset.y, img.getRaster());
+    return destination;
+  }
+
+  /**
+   * Keep every {@code stepX}-th pixel of every {@code stepY}-th row of a decoded image, starting
+   * with the first one.
+   */
+  static BufferedImage decimate(BufferedImage img, int stepX, int stepY) {
+    int width = (img.getWidth() + stepX - 1) / stepX;
+    int height = (img.getHeight() + stepY - 1) / stepY;
+    WritableRaster src = img.getRaster();
+    WritableRaster dst = src.createCompatibleWritableRaster(width, height);
+    // Decoded images are byte-interleaved without padding
+    int channels = src.getNumBands();
+    byte[] srcData = ((DataBufferByte) src.getDataBuffer()).getData();
+    byte[] dstData = ((DataBufferByte) dst.getDataBuffer()).getData();
+    int srcPitch = img.getWidth() * channels;
+    int srcStep = stepX * channels;
+    int out = 0;
+    for (int y = 0; y < height; y++) {
+      int pos = y * stepY * srcPitch;
+      for (int x = 0; x < width; x++, pos += srcStep) {
+        for (int c = 0; c < channels; c++) {
+          dstData[out++] = srcData[pos + c];
+        }
+      }
+    }
+    return new BufferedImage(img.getColorModel(), dst, img.isAlphaPremultiplied(), null);
+  }
+
+  /**
+   * Read an image whose orientation can not be applied losslessly without trimming its partial MCUs
+   * at the edges, by decoding it as stored and applying the operation to the decoded pixels.
+   */
+  private BufferedImage readOriented(int imageIndex, TurboJpegImageReadParam param, TJXOP op)
+      throws IOException {
+    TurboJpegImageReadParam storedParam = new TurboJpegImageReadParam();
+    storedParam.setDecodeSpeed(param.getDecodeSpeed());
+    storedParam.setSourceRegion(param.getSourceRegion());
+    storedParam.setDestinationType(param.getDestinationType());
+    storedParam.setSourceBands(param.getSourceBands());
+    BufferedImage img = applyOperation(read(imageIndex, storedParam), op);
+    BufferedImage destination = param.getDestination();
+    if (destination == null) {
+      return img;
+    }
+    Point offset = param.getDestinationOffset();
+    WritableRaster raster = destination.getRaster();
+    raster.setRect(raster.getMinX() + offset.x, raster.getMinY() + offset.y, img.getRaster());
+    return destination;
+  }
+
+  /**
+   * Read the image in horizontal strips of whole MCU rows, so that very large images can be
+   * processed with memory proportional to the strip height.
+   *
+   * <p>The decoding speed of {@link TurboJpegImageReadParam} is honored, source regions, rotation,
+   * orientations other than upright and destinations are not supported. See {@link
+   * TurboJpeg#decodeStrips(ByteBuffer, Info, Dimension, int, DecodeSpeed)} for the memory
+   * requirements of the library.
+   *
+   * @param imageIndex Index of the resolution to read
+   * @param param Read parameters, may be null
+   * @param mcuRows Number of MCU rows per strip
+   * @return the decoder of the strips, valid until the input of the reader changes
+   */
+  public StripDecoder readStrips(int imageIndex, ImageReadParam param, int mcuRows) {
+    checkIndex(imageIndex);
+    DecodeSpeed speed = DecodeSpeed.ACCURATE;
+    if (param instanceof TurboJpegImageReadParam) {
+      if (((TurboJpegImageReadParam) param).getRotationDegree() != 0) {
+        throw new IllegalArgumentException("Rotation is not supported when reading strips");
+      }
+      if (((TurboJpegImageReadParam) param).isAutoOrient()
+          && TurboJpeg.getExifOrientation(jpegData) != 1) {
+        throw new IllegalArgumentException(
+            "Orientations other than upright are not supported when reading strips");
+      }
+      speed = ((TurboJpegImageReadParam) param).getDecodeSpeed();
+    }
+    if (param != null && (param.getSourceRegion() != null || param.getDestination() != null)) {
+      throw new IllegalArgumentException(
+          "Source regions and destinations are not supported when reading strips");
+    }
+    return lib.decodeStrips(jpegData, info, getDimension(imageIndex), mcuRows, speed);
+  }
+
+  /** Rasters are read like images, e.g. a band of rows is read by setting it as source region. */
+  @Override
+  public boolean canReadRaster() {
+    return true;
+  }
+
+  @Override
+  public Raster readRaster(int imageIndex, ImageReadParam param) throws IOException {
+    return read(imageIndex, param).getRaster();
+  }
+
+  /**
+   * Decode only the MCUs intersecting the region, into an image (or the destination of the read
+   * parameters) of exactly the size of the region. Rotated regions are handled by {@link #read(int,
+   * ImageReadParam)} with a lossless transformation instead.
+   */
+  private BufferedImage readRegion(
+      int imageIndex, Rectangle region, ImageReadParam param, DecodeSpeed speed)
+      throws IOException, TurboJpegException {
+    Dimension size = getDimension(imageIndex);
+    BufferedImage destination = getDestination(imageIndex, param, region.width, region.height);
+    if (destination == null) {
+      return lib.decodeRegion(jpegData, info, size, region, speed);
+    }
+    Point offset = param.getDestinationOffset();
+    lib.decodeRegion(
+        jpegData, info, size, region, destination.getRaster(), offset.x, offset.y, speed);
+    return destination;
+  }
+
+  /**
+   * Decode into the destination image of the read parameters, at the destination offset.
+   *
+   * <p>Without additional cropping, the image is decoded directly into the destination. Otherwise
+   * it is decoded into a scratch image that is reused across reads of the same size, and the
+   * cropped region is copied to the destination.
+   */
+  private void readInto(
+      ByteBuffer data,
+      Info decodedInfo,
+      Dimension decodedSize,
+      Rectangle extraCrop,
+      BufferedImage destination,
+      ImageReadParam param,
+      DecodeSpeed speed)
+      throws TurboJpegException {
+    Point offset = param.getDestinationOffset();
+    WritableRaster raster = destination.getRaster();
+    if (extraCrop == null) {
+      lib.decode(data, decodedInfo, decodedSize, raster, offset.x, offset.y, speed);
+      return;
+    }
+    if (offset.x < 0
+        || offset.y < 0
+        || offset.x + extraCrop.width > raster.getWidth()
+        || offset.y + extraCrop.height > raster.getHeight()) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Decoded image (%dx%d+%d+%d) exceeds the destination bounds (%dx%d)",
+              extraCrop.width,
+              extraCrop.height,
+              offset.x,
+              offset.y,
+              raster.getWidth(),
+              raster.getHeight()));
+    }
+    ImageTypeSpecifier scratchType = getScratchType(destination);
+    if (scratchImage == null
+        || !scratchType.equals(new ImageTypeSpecifier(scratchImage))
+        || scratchImage.getWidth() != decodedSize.width
+        || scratchImage.getHeight() != decodedSize.height) {
+      scratchImage = scratchType.createBufferedImage(decodedSize.width, decodedSize.height);
+    }
+    lib.decode(data, decodedInfo, decodedSize, scratchImage.getRaster(), 0, 0, speed);
+    raster.setDataElements(
+        raster.getMinX() + offset.x,
+        raster.getMinY() + offset.y,
+        scratchImage
+            .getRaster()
+            .createChild(extraCrop.x, extraCrop.y, extraCrop.width, extraCrop.height, 0, 0, null));
+  }
+
+  /**
+   * Get the type of the image to decode into before copying to the destination, i.e. the type of
+   * the destination or a decodable type with the same samples for custom destinations.
+   */
+  private static ImageTypeSpecifier getScratchType(BufferedImage destination) {
+    if (destination.getType() != TYPE_CUSTOM) {
+      return ImageTypeSpecifier.createFromBufferedImageType(destination.getType());
+    }
+    switch (destination.getRaster().getNumBands()) {
+      case 1:
+        return ImageTypeSpecifier.createFromBufferedImageType(TYPE_BYTE_GRAY);
+      case 4:
+        return CMYK_TYPE;
+      default:
+        return ImageTypeSpecifier.createFromBufferedImageType(TYPE_3BYTE_BGR);
+    }
+  }
+
+  /**
+   * Transform the image into the reused native buffer, so the transformed data does not need to be
+   * copied back and forth between the Java heap and native memory.
+   */
+  private ByteBuffer transform(ByteBuffer data, Rectangle region, TJXOP op)
+      throws TurboJpegException {
+    int bufferSize = lib.getTransformBufferSize(data, info, region, op);
+    if (bufferSize < 0) {
+      return lib.transform(data, info, region, op);
+    }
+    if (transformBuffer == null || transformBuffer.capacity() < bufferSize) {
+      transformBuffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+    ((Buffer) transformBuffer).clear();
+    int length = lib.transform(data, info, region, op, transformBuffer);
+    ((Buffer) transformBuffer).limit(length);
+    return transformBuffer;
+  }
+
   private boolean isRegionFullImage(int imageIndex, Rectangle region) {
     int nativeWidth = getWidth(imageIndex);
     int nativeHeight = getHeight(imageIndex);
@@ -318,6 +883,13 @@ public class TurboJpegImageReader extends ImageReader {
         && (region.height == 0 || region.height == nativeHeight);
   }
 
+  @Override
+  public void dispose() {
+    super.dispose();
+    transformBuffer = null;
+    scratchImage = null;
+  }
+
   @Override
   public IIOMetadata getStreamMetadata() {
     return null;
@@ -1,11 +1,11 @@
 package de.digitalcollections.turbojpeg.imageio;
 
-import de.digitalcollections.turbojpeg.Info;
 import de.digitalcollections.turbojpeg.TurboJpeg;
-import de.digitalcollections.turbojpeg.TurboJpegException;
-import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Locale;
 import java.util.stream.Stream;
 import javax.imageio.ImageIO;
@@ -13,6 +13,7 @@ import javax.imageio.ImageReader;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.spi.ServiceRegistry;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,7 +21,6 @@ import org.slf4j.LoggerFactory;
 public class TurboJpegImageReaderSpi extends ImageReaderSpi {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TurboJpegImageReaderSpi.class);
-  private static final byte[] HEADER_MAGIC = new byte[] {(byte) 0xff, (byte) 0xd8};
   private static final String vendorName =
       "Münchener Digitalisierungszentrum/Digitale Bibliothek, Bayerische Staatsbibliothek";
   private static final String version = "0.2.6";
@@ -44,7 +44,7 @@ public class TurboJpegImageReaderSpi extends ImageReaderSpi {
         suffixes,
         MIMETypes,
         readerClassName,
-        new Class[] {ImageInputStream.class},
+        new Class[] {ImageInputStream.class, File.class, Path.class},
         writerSpiNames,
         false,
         null,
@@ -90,39 +90,48 @@ public class TurboJpegImageReaderSpi extends ImageReaderSpi {
             });
   }
 
+  /** Release the pooled native handles when the plugin is removed from the registry. */
+  @Override
+  public void onDeregistration(final ServiceRegistry registry, final Class<?> category) {
+    if (this.lib != null) {
+      this.lib.close();
+    }
+  }
+
   @Override
   public boolean canDecodeInput(Object input) throws IOException {
     loadLibrary();
-    if (!(input instanceof ImageInputStream)) {
-      input = ImageIO.createImageInputStream(input);
+    if (input instanceof ImageInputStream) {
+      return canDecodeStream((ImageInputStream) input);
     }
-    if (input == null) {
-      return false;
-    }
-    ImageInputStream stream = (ImageInputStream) input;
-    byte[] b = new byte[2];
-    try {
-      stream.mark();
-      stream.readFully(b);
-    } catch (IOException e) {
-      return false;
+    if (input instanceof Path) {
+      try (InputStream is = Files.newInputStream((Path) input);
+          ImageInputStream stream = new MemoryCacheImageInputStream(is)) {
+        return canDecodeStream(stream);
+      }
     }
-    if (!Arrays.equals(b, HEADER_MAGIC)) {
-      return false;
+    try (ImageInputStream stream = ImageIO.createImageInputStream(input)) {
+      return stream != null && canDecodeStream(stream);
     }
+  }
 
-    stream.reset();
+  private boolean canDecodeStream(ImageInputStream stream) throws IOException {
+    JpegMarkerScanner.Header header;
+    stream.mark();
     try {
-      Info info = this.lib.getInfo(TurboJpegImageReader.bufferFromStream(stream).array());
+      header = JpegMarkerScanner.scan(stream, JpegMarkerScanner.DEFAULT_MAX_BYTES);
+    } catch (IOException e) {
+      LOGGER.error("Could not read JPEG header", e);
+      return false;
+    } finally {
       stream.reset();
-      if (info == null || info.getColorspace() == TJCS.TJCS_CMYK) {
-        return false;
-      }
-    } catch (TurboJpegException e) {
-      LOGGER.error("Could not read JPEG info", e);
+    }
+    if (header == null || header.getPrecision() != 8 || header.isLossless()) {
       return false;
     }
-    return true;
+    // Images with an unsupported number of components have no colorspace, and libturbojpeg fails
+    // to read the header of images with a subsampling it does not know
+    return header.getColorspace() != null && header.getSubsampling() != null;
   }
 
   @Override
@@ -1,10 +1,21 @@
 package de.digitalcollections.turbojpeg.imageio;
 
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
 import java.util.Locale;
 import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 
+/**
+ * Parameters for writing JPEG images.
+ *
+ * <p>Apart from the compression quality, progressive mode ({@link #setProgressiveMode}) and Huffman
+ * table optimization ({@link #setOptimizeHuffmanTables}) of the default ImageIO parameters, the
+ * chroma subsampling and the DCT method can be set.
+ */
 public class TurboJpegImageWriteParam extends JPEGImageWriteParam {
 
+  private TJSAMP subsampling;
+  private boolean fastDct;
+
   public TurboJpegImageWriteParam(Locale locale) {
     super(locale);
   }
@@ -18,4 +29,26 @@ public class TurboJpegImageWriteParam extends JPEGImageWriteParam {
   public boolean isCompressionLossless() {
     return false;
   }
+
+  public TJSAMP getSubsampling() {
+    return subsampling;
+  }
+
+  /**
+   * Set the chroma subsampling of color images.
+   *
+   * @param subsampling the subsampling, or null for the default {@link TJSAMP#TJSAMP_420}
+   */
+  public void setSubsampling(TJSAMP subsampling) {
+    this.subsampling = subsampling;
+  }
+
+  public boolean isFastDct() {
+    return fastDct;
+  }
+
+  /** Use the fast integer forward DCT, trading a slight loss of accuracy for encoding speed. */
+  public void setFastDct(boolean fastDct) {
+    this.fastDct = fastDct;
+  }
 }
@@ -1,22 +1,31 @@
 package de.digitalcollections.turbojpeg.imageio;
 
+import de.digitalcollections.turbojpeg.EncodeOptions;
 import de.digitalcollections.turbojpeg.TurboJpeg;
 import de.digitalcollections.turbojpeg.TurboJpegException;
 import java.awt.Rectangle;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.stream.ImageOutputStream;
 
 public class TurboJpegImageWriter extends ImageWriter {
 
+  // Size of the chunks the encoded image is copied to the output stream in
+  private static final int CHUNK_SIZE = 64 * 1024;
+
   private ImageOutputStream stream;
+  private StreamChannel channel;
   private final TurboJpeg lib;
 
   protected TurboJpegImageWriter(ImageWriterSpi originatingProvider, TurboJpeg lib) {
@@ -32,8 +41,10 @@ public class TurboJpegImageWriter extends ImageWriter {
         throw new IllegalArgumentException("Output not an ImageOutputStream");
       }
       this.stream = (ImageOutputStream) output;
+      this.channel = new StreamChannel(stream);
     } else {
       this.stream = null;
+      this.channel = null;
     }
   }
 
@@ -77,15 +88,86 @@ public class TurboJpegImageWriter extends ImageWriter {
     if (param.getSourceRegion() != null) {
       sourceRegion = sourceRegion.intersection(param.getSourceRegion());
     }
-    Raster raster = img.getData(sourceRegion);
-    int quality = 85;
-    if (param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT) {
-      quality = (int) (param.getCompressionQuality() * 100);
+    Raster raster;
+    if (img.getNumXTiles() == 1 && img.getNumYTiles() == 1) {
+      // The library reads the region straight from the pixels of the image
+      raster =
+          img.getTile(img.getMinTileX(), img.getMinTileY())
+              .createChild(
+                  sourceRegion.x,
+                  sourceRegion.y,
+                  sourceRegion.width,
+                  sourceRegion.height,
+                  sourceRegion.x,
+                  sourceRegion.y,
+                  null);
+    } else {
+      raster = img.getData(sourceRegion);
     }
     try {
-      stream.write(lib.encode(raster, quality).array());
+      lib.encode(raster, toOptions(param), channel);
     } catch (TurboJpegException e) {
       throw new IOException(e);
     }
   }
+
+  private static EncodeOptions toOptions(ImageWriteParam param) {
+    EncodeOptions options = new EncodeOptions();
+    if (param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT) {
+      options.setQuality(Math.max(1, (int) (param.getCompressionQuality() * 100)));
+    }
+    if (param.canWriteProgressive()) {
+      options.setProgressive(param.getProgressiveMode() == ImageWriteParam.MODE_DEFAULT);
+    }
+    if (param instanceof JPEGImageWriteParam) {
+      options.setOptimizeHuffman(((JPEGImageWriteParam) param).getOptimizeHuffmanTables());
+    }
+    if (param instanceof TurboJpegImageWriteParam) {
+      options.setSubsampling(((TurboJpegImageWriteParam) param).getSubsampling());
+      options.setFastDct(((TurboJpegImageWriteParam) param).isFastDct());
+    }
+    return options;
+  }
+
+  /**
+   * Channel that writes to an image output stream, copying the data of direct buffers in chunks
+   * through a reused array.
+   */
+  private static final class StreamChannel implements WritableByteChannel {
+    private final ImageOutputStream stream;
+    private byte[] chunk;
+
+    StreamChannel(ImageOutputStream stream) {
+      this.stream = stream;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      int length = src.remaining();
+      if (src.hasArray()) {
+        stream.write(src.array(), src.arrayOffset() + src.position(), length);
+        ((Buffer) src).position(src.limit());
+        return length;
+      }
+      if (chunk == null) {
+        chunk = new byte[CHUNK_SIZE];
+      }
+      while (src.hasRemaining()) {
+        int n = Math.min(src.remaining(), chunk.length);
+        src.get(chunk, 0, n);
+        stream.write(chunk, 0, n);
+      }
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+      // The stream is owned by the caller of setOutput
+    }
+  }
 }
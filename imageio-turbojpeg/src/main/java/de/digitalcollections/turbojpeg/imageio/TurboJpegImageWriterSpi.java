@@ -90,6 +90,14 @@ public class TurboJpegImageWriterSpi extends ImageWriterSpi {
             });
   }
 
+  /** Release the pooled native handles when the plugin is removed from the registry. */
+  @Override
+  public void onDeregistration(final ServiceRegistry registry, final Class<?> category) {
+    if (this.lib != null) {
+      this.lib.close();
+    }
+  }
+
   @Override
   public boolean canEncodeImage(ImageTypeSpecifier type) {
     // TODO: Support all image types, if necessary convert before encoding
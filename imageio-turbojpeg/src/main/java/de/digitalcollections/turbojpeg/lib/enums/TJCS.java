@@ -1,6 +1,5 @@
 package de.digitalcollections.turbojpeg.lib.enums;
 
-import java.util.Arrays;
 import jnr.ffi.util.EnumMapper.IntegerEnum;
 
 public enum TJCS implements IntegerEnum {
@@ -10,6 +9,8 @@ public enum TJCS implements IntegerEnum {
   TJCS_CMYK(3),
   TJCS_YCCK(4);
 
+  private static final TJCS[] VALUES = values();
+
   private final int val;
 
   TJCS(int val) {
@@ -22,9 +23,11 @@ public enum TJCS implements IntegerEnum {
   }
 
   public static TJCS fromInt(int val) {
-    return Arrays.stream(TJCS.values())
-        .filter(v -> v.val == val)
-        .findFirst()
-        .orElseThrow(() -> new IllegalArgumentException("Unknown TJCS: " + val));
+    for (TJCS v : VALUES) {
+      if (v.val == val) {
+        return v;
+      }
+    }
+    throw new IllegalArgumentException("Unknown TJCS: " + val);
   }
 }
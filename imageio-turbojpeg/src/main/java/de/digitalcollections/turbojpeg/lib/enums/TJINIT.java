@@ -0,0 +1,7 @@
+package de.digitalcollections.turbojpeg.lib.enums;
+
+public class TJINIT {
+  public static final int TJINIT_COMPRESS = 0;
+  public static final int TJINIT_DECOMPRESS = 1;
+  public static final int TJINIT_TRANSFORM = 2;
+}
@@ -0,0 +1,29 @@
+package de.digitalcollections.turbojpeg.lib.enums;
+
+public class TJPARAM {
+  public static final int TJPARAM_STOPONWARNING = 0;
+  public static final int TJPARAM_BOTTOMUP = 1;
+  public static final int TJPARAM_NOREALLOC = 2;
+  public static final int TJPARAM_QUALITY = 3;
+  public static final int TJPARAM_SUBSAMP = 4;
+  public static final int TJPARAM_JPEGWIDTH = 5;
+  public static final int TJPARAM_JPEGHEIGHT = 6;
+  public static final int TJPARAM_PRECISION = 7;
+  public static final int TJPARAM_COLORSPACE = 8;
+  public static final int TJPARAM_FASTUPSAMPLE = 9;
+  public static final int TJPARAM_FASTDCT = 10;
+  public static final int TJPARAM_OPTIMIZE = 11;
+  public static final int TJPARAM_PROGRESSIVE = 12;
+  public static final int TJPARAM_SCANLIMIT = 13;
+  public static final int TJPARAM_ARITHMETIC = 14;
+  public static final int TJPARAM_LOSSLESS = 15;
+  public static final int TJPARAM_LOSSLESSPSV = 16;
+  public static final int TJPARAM_LOSSLESSPT = 17;
+  public static final int TJPARAM_RESTARTBLOCKS = 18;
+  public static final int TJPARAM_RESTARTROWS = 19;
+  public static final int TJPARAM_XDENSITY = 20;
+  public static final int TJPARAM_YDENSITY = 21;
+  public static final int TJPARAM_DENSITYUNITS = 22;
+  public static final int TJPARAM_MAXMEMORY = 23;
+  public static final int TJPARAM_MAXPIXELS = 24;
+}
@@ -9,20 +9,21 @@ import java.util.Arrays;
 import jnr.ffi.util.EnumMapper.IntegerEnum;
 
 public enum TJPF implements IntegerEnum {
-  TJPF_RGB(0),
-  TJPF_BGR(1),
-  TJPF_RGBX(2),
-  TJPF_BGRX(3),
-  TJPF_XBGR(4),
-  TJPF_XRGB(5),
-  TJPF_GRAY(6),
-  TJPF_RGBA(7),
-  TJPF_BGRA(8),
-  TJPF_AGBR(9),
-  TJPF_ARGB(10),
-  TJPF_CMYK(11);
+  TJPF_RGB(0, 3),
+  TJPF_BGR(1, 3),
+  TJPF_RGBX(2, 4),
+  TJPF_BGRX(3, 4),
+  TJPF_XBGR(4, 4),
+  TJPF_XRGB(5, 4),
+  TJPF_GRAY(6, 1),
+  TJPF_RGBA(7, 4),
+  TJPF_BGRA(8, 4),
+  TJPF_AGBR(9, 4),
+  TJPF_ARGB(10, 4),
+  TJPF_CMYK(11, 4);
 
   private final int val;
+  private final int pixelSize;
 
   public static TJPF fromImageType(int imageType) {
     switch (imageType) {
@@ -38,8 +39,9 @@ public enum TJPF implements IntegerEnum {
     }
   }
 
-  TJPF(int val) {
+  TJPF(int val, int pixelSize) {
     this.val = val;
+    this.pixelSize = pixelSize;
   }
 
   @Override
@@ -47,6 +49,11 @@ public enum TJPF implements IntegerEnum {
     return val;
   }
 
+  /** Number of bytes per pixel in this format. */
+  public int getPixelSize() {
+    return pixelSize;
+  }
+
   public static TJPF fromInt(int val) {
     return Arrays.stream(TJPF.values())
         .filter(v -> v.val == val)
@@ -1,6 +1,5 @@
 package de.digitalcollections.turbojpeg.lib.enums;
 
-import java.util.Arrays;
 import jnr.ffi.util.EnumMapper.IntegerEnum;
 
 public enum TJSAMP implements IntegerEnum {
@@ -10,6 +9,8 @@ public enum TJSAMP implements IntegerEnum {
   TJSAMP_GRAY(3),
   TJSAMP_440(4);
 
+  private static final TJSAMP[] VALUES = values();
+
   private final int val;
 
   TJSAMP(int val) {
@@ -22,9 +23,11 @@ public enum TJSAMP implements IntegerEnum {
   }
 
   public static TJSAMP fromInt(int val) {
-    return Arrays.stream(TJSAMP.values())
-        .filter(v -> v.val == val)
-        .findFirst()
-        .orElseThrow(() -> new IllegalArgumentException("Unknown TJSAMP: " + val));
+    for (TJSAMP v : VALUES) {
+      if (v.val == val) {
+        return v;
+      }
+    }
+    throw new IllegalArgumentException("Unknown TJSAMP: " + val);
   }
 }
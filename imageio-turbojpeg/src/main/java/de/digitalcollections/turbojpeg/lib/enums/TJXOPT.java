@@ -6,4 +6,6 @@ public class TJXOPT {
   public static int TJXOPT_CROP = 4;
   public static int TJXOPT_GRAY = 8;
   public static int TJX_OPT_NOOUTPUT = 16;
+  public static int TJXOPT_PROGRESSIVE = 32;
+  public static int TJXOPT_COPYNONE = 64;
 }
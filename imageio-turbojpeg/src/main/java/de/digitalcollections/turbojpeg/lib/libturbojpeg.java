@@ -4,6 +4,8 @@ import de.digitalcollections.turbojpeg.lib.enums.TJPF;
 import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
 import de.digitalcollections.turbojpeg.lib.structs.tjtransform;
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import jnr.ffi.Pointer;
 import jnr.ffi.annotations.Direct;
 import jnr.ffi.annotations.In;
@@ -38,6 +40,105 @@ public interface libturbojpeg {
       TJPF pixelFormat,
       int flags);
 
+  /**
+   * Variant of {@link #tjDecompress2(Pointer, Buffer, long, Buffer, int, int, int, TJPF, int)} that
+   * copies a heap output buffer in both directions, so the bytes between the rows of a pitched
+   * output are preserved.
+   */
+  int tjDecompress2(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @u_int32_t long jpegSize,
+      @In @Out ByteBuffer dstBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      int flags);
+
+  /**
+   * Variant of {@link #tjDecompress2(Pointer, Buffer, long, ByteBuffer, int, int, int, TJPF, int)}
+   * for the int arrays of packed pixel rasters.
+   */
+  int tjDecompress2(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @u_int32_t long jpegSize,
+      @In @Out IntBuffer dstBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      int flags);
+
+  int tjDecompress2(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @u_int32_t long jpegSize,
+      Pointer dstBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      int flags);
+
+  int tjDecompress2(
+      Pointer handle,
+      Pointer jpegBuf,
+      @u_int32_t long jpegSize,
+      Pointer dstBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      int flags);
+
+  int tjCompressFromYUVPlanes(
+      Pointer handle,
+      @In Pointer srcPlanes,
+      int width,
+      @In int[] strides,
+      int height,
+      TJSAMP subsamp,
+      @In PointerByReference jpegBuf,
+      NativeLongByReference jpegSize,
+      int jpegQual,
+      int flags);
+
+  int tjEncodeYUVPlanes(
+      Pointer handle,
+      @In Buffer srcBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      @In Pointer dstPlanes,
+      @In int[] strides,
+      TJSAMP subsamp,
+      int flags);
+
+  int tjDecompressToYUVPlanes(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @u_int32_t long jpegSize,
+      @In Pointer dstPlanes,
+      int width,
+      @In int[] strides,
+      int height,
+      int flags);
+
+  int tjDecodeYUVPlanes(
+      Pointer handle,
+      @In Pointer srcPlanes,
+      @In int[] strides,
+      TJSAMP subsamp,
+      @Out Buffer dstBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      int flags);
+
   int tjDecompressHeader3(
       Pointer handle,
       Buffer jpegBuf,
@@ -47,6 +148,15 @@ public interface libturbojpeg {
       @Out IntByReference jpegSubsamp,
       @Out IntByReference jpegColorspace);
 
+  int tjDecompressHeader3(
+      Pointer handle,
+      @In byte[] jpegBuf,
+      @u_int32_t long jpegSize,
+      @Out IntByReference width,
+      @Out IntByReference height,
+      @Out IntByReference jpegSubsamp,
+      @Out IntByReference jpegColorspace);
+
   int tjTransform(
       Pointer handle,
       Buffer jpegBuf,
@@ -57,6 +167,24 @@ public interface libturbojpeg {
       @Direct tjtransform transform,
       int flags);
 
+  /**
+   * Variant of {@link #tjTransform(Pointer, Buffer, long, int, PointerByReference,
+   * NativeLongByReference, tjtransform, int)} for multiple transforms.
+   *
+   * @param dstBufs native array of {@code n} output buffer pointers
+   * @param dstSizes native array of {@code n} unsigned longs with the output sizes
+   * @param transforms native array of {@code n} {@link tjtransform} structs
+   */
+  int tjTransform(
+      Pointer handle,
+      Buffer jpegBuf,
+      @u_int32_t long jpegSize,
+      int n,
+      Pointer dstBufs,
+      Pointer dstSizes,
+      Pointer transforms,
+      int flags);
+
   int tjDestroy(Pointer handle);
 
   void tjFree(Pointer bufPtr);
@@ -74,4 +202,8 @@ public interface libturbojpeg {
   Pointer tjAlloc(int bytes);
 
   long tjBufSize(int width, int height, TJSAMP subsamp);
+
+  int tjPlaneWidth(int componentID, int width, TJSAMP subsamp);
+
+  int tjPlaneHeight(int componentID, int height, TJSAMP subsamp);
 }
@@ -0,0 +1,117 @@
+package de.digitalcollections.turbojpeg.lib;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import jnr.ffi.Pointer;
+import jnr.ffi.annotations.In;
+import jnr.ffi.annotations.Out;
+import jnr.ffi.byref.NativeLongByReference;
+import jnr.ffi.byref.PointerByReference;
+import jnr.ffi.types.size_t;
+
+/**
+ * Bindings for the TurboJPEG 3 API of libjpeg-turbo 3.0 and later.
+ *
+ * <p>Unlike the TurboJPEG 2 API, parameters and error messages are stored per handle. Handles
+ * created with {@link libturbojpeg#tjInitDecompress()} can be used with these functions as well.
+ *
+ * <p>{@code tj3SetScalingFactor} and {@code tj3SetCroppingRegion} take their structs by value,
+ * which JNR cannot express. On the 64-bit System V and AArch64 calling conventions, structs of up
+ * to 16 bytes with integer members are passed in general purpose registers, with two consecutive
+ * 32-bit members packed into each 64-bit register (the first one in the lower half). The structs
+ * are thus declared as packed 64-bit words, which is only valid on these platforms.
+ */
+public interface libturbojpeg3 {
+  Pointer tj3Init(int initType);
+
+  void tj3Destroy(Pointer handle);
+
+  int tj3Set(Pointer handle, int param, int value);
+
+  int tj3Get(Pointer handle, int param);
+
+  String tj3GetErrorStr(Pointer handle);
+
+  /**
+   * @param jpegBuf pointer to the output buffer, only preallocated buffers with {@code
+   *     TJPARAM_NOREALLOC} are supported
+   * @param jpegSize size of the output buffer on input, size of the JPEG image on output
+   */
+  int tj3Compress8(
+      Pointer handle,
+      @In Buffer srcBuf,
+      int width,
+      int pitch,
+      int height,
+      TJPF pixelFormat,
+      @In PointerByReference jpegBuf,
+      NativeLongByReference jpegSize);
+
+  /** Subsampling is read from {@code TJPARAM_SUBSAMP}, see {@link #tj3Compress8}. */
+  int tj3CompressFromYUVPlanes8(
+      Pointer handle,
+      @In Pointer srcPlanes,
+      int width,
+      @In int[] strides,
+      int height,
+      @In PointerByReference jpegBuf,
+      NativeLongByReference jpegSize);
+
+  int tj3DecompressHeader(Pointer handle, @In Buffer jpegBuf, @size_t long jpegSize);
+
+  int tj3DecompressHeader(Pointer handle, @In byte[] jpegBuf, @size_t long jpegSize);
+
+  /**
+   * @param scalingFactor {@code tjscalingfactor} struct, packed as {@code num | (long) denom << 32}
+   */
+  int tj3SetScalingFactor(Pointer handle, long scalingFactor);
+
+  /**
+   * @param xy first half of the {@code tjregion} struct, packed as {@code x | (long) y << 32}
+   * @param wh second half of the {@code tjregion} struct, packed as {@code w | (long) h << 32}
+   */
+  int tj3SetCroppingRegion(Pointer handle, long xy, long wh);
+
+  int tj3Decompress8(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      @Out Buffer dstBuf,
+      int pitch,
+      TJPF pixelFormat);
+
+  /**
+   * Variant of {@link #tj3Decompress8(Pointer, Buffer, long, Buffer, int, TJPF)} that copies a heap
+   * output buffer in both directions, so the bytes between the rows of a pitched output are
+   * preserved.
+   */
+  int tj3Decompress8(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      @In @Out ByteBuffer dstBuf,
+      int pitch,
+      TJPF pixelFormat);
+
+  /**
+   * Variant of {@link #tj3Decompress8(Pointer, Buffer, long, ByteBuffer, int, TJPF)} for the int
+   * arrays of packed pixel rasters.
+   */
+  int tj3Decompress8(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      @In @Out IntBuffer dstBuf,
+      int pitch,
+      TJPF pixelFormat);
+
+  int tj3Decompress8(
+      Pointer handle,
+      @In Buffer jpegBuf,
+      @size_t long jpegSize,
+      Pointer dstBuf,
+      int pitch,
+      TJPF pixelFormat);
+}
@@ -0,0 +1,51 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class AreaResamplerTest {
+
+  @Test
+  void averagesWholePixels() {
+    byte[] src = {0, 10, 20, 30, 40, 50, 60, 70, 80, 90, 100, 110, 120, (byte) 130, (byte) 140, 0};
+    byte[] dst = new byte[4];
+    new AreaResampler(4, 4, 2, 2, 1).resample(src, 0, 4, dst, 0, 2);
+    assertThat(dst).containsExactly(25, 45, 105, 88);
+  }
+
+  @Test
+  void weighsPartialPixels() {
+    // Each target pixel covers one and a half source pixels
+    byte[] src = {0, 90, (byte) 180};
+    byte[] dst = new byte[2];
+    new AreaResampler(3, 1, 2, 1, 1).resample(src, 0, 3, dst, 0, 2);
+    assertThat(dst).containsExactly(30, (byte) 150);
+  }
+
+  @Test
+  void keepsUniformColorsWithPadding() {
+    int channels = 3;
+    byte[] src = new byte[2 + 7 * 40];
+    for (int i = 0; i < 7; i++) {
+      // Rows of 13 pixels with 1 byte of padding
+      Arrays.fill(src, 2 + i * 40, 2 + i * 40 + 13 * channels, (byte) 200);
+    }
+    byte[] dst = new byte[5 * 16];
+    new AreaResampler(13, 7, 5, 3, channels).resample(src, 2, 40, dst, 0, 16);
+    for (int y = 0; y < 3; y++) {
+      for (int i = 0; i < 5 * channels; i++) {
+        assertThat(dst[y * 16 + i] & 0xFF).isEqualTo(200);
+      }
+      assertThat(dst[y * 16 + 15]).isZero();
+    }
+  }
+
+  @Test
+  void rejectsUpscaling() {
+    assertThatThrownBy(() -> new AreaResampler(3, 3, 4, 2, 1))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,165 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class BackendTest {
+
+  /** Load the library with the given API version, skipping the test if it is not available. */
+  private static TurboJpeg load(int apiVersion) {
+    TurboJpeg lib = new TurboJpeg(1, apiVersion);
+    if (lib.getApiVersion() != apiVersion) {
+      lib.close();
+    }
+    assumeTrue(
+        lib.getApiVersion() == apiVersion,
+        "TurboJPEG " + apiVersion + " API is not provided by the library");
+    return lib;
+  }
+
+  private static byte[] pixels(BufferedImage img) {
+    return ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+  }
+
+  @Test
+  void packsStructMembersInRegisterOrder() {
+    assertThat(Tj3Backend.pack(3, 8)).isEqualTo(0x0000000800000003L);
+    assertThat(Tj3Backend.pack(-1, 0)).isEqualTo(0x00000000FFFFFFFFL);
+    assertThat(Tj3Backend.pack(0, -1)).isEqualTo(0xFFFFFFFF00000000L);
+  }
+
+  @Test
+  void fallsBackToTj2() {
+    try (TurboJpeg lib = new TurboJpeg(1, 2)) {
+      assertThat(lib.getApiVersion()).isEqualTo(2);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {2, 3})
+  void readsHeader(int apiVersion) throws Exception {
+    try (TurboJpeg lib = load(apiVersion)) {
+      Info info = lib.getInfo(Fixtures.buffer("rgb.jpg"));
+      assertThat(info.getWidth()).isEqualTo(512);
+      assertThat(info.getHeight()).isEqualTo(512);
+      assertThat(info.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_444);
+      Info gray = lib.getInfo(Fixtures.buffer("grayscale.jpg").array(), info);
+      assertThat(gray).isSameAs(info);
+      assertThat(gray.getWidth()).isEqualTo(1955);
+      assertThat(gray.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_GRAY);
+    }
+  }
+
+  @Test
+  void rejectsSubsamplingWithoutConstant() throws Exception {
+    assertThat(Backend.checkSubsampling(TJSAMP.TJSAMP_440.intValue())).isEqualTo(4);
+    // TJSAMP_UNKNOWN, TJSAMP_411 and TJSAMP_441 of newer versions of the library
+    for (int subsampling : new int[] {-1, 5, 6}) {
+      assertThatThrownBy(() -> Backend.checkSubsampling(subsampling))
+          .isInstanceOf(TurboJpegException.class)
+          .hasMessage("Unsupported chroma subsampling: " + subsampling);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {2, 3})
+  void rejectsUnsupportedSubsampling(int apiVersion) throws Exception {
+    try (TurboJpeg lib = load(apiVersion)) {
+      // Depending on the version, the library either fails or reports 4:1:1 itself
+      assertThatThrownBy(() -> lib.getInfo(Fixtures.buffer("subsampling_411.jpg")))
+          .isInstanceOf(TurboJpegException.class);
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {2, 3})
+  void reportsErrors(int apiVersion) throws Exception {
+    try (TurboJpeg lib = load(apiVersion)) {
+      assertThatThrownBy(() -> lib.getInfo(ByteBuffer.wrap(new byte[] {1, 2, 3, 4})))
+          .isInstanceOf(TurboJpegException.class)
+          .hasMessageContaining("JPEG");
+    }
+  }
+
+  @Test
+  void decodesLikeTj2() throws Exception {
+    ByteBuffer jpeg = Fixtures.buffer("prime_shaped.jpg");
+    try (TurboJpeg tj3 = load(3);
+        TurboJpeg tj2 = new TurboJpeg(1, 2)) {
+      Info info = tj3.getInfo(jpeg);
+      for (Dimension size : info.getAvailableSizes()) {
+        for (DecodeSpeed speed : DecodeSpeed.values()) {
+          assertThat(pixels(tj3.decode(jpeg, info, size, speed)))
+              .as("%s at %dx%d", speed, size.width, size.height)
+              .isEqualTo(pixels(tj2.decode(jpeg, info, size, speed)));
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {2, 3})
+  void preservesGapsOfPitchedHeapBuffer(int apiVersion) throws Exception {
+    try (TurboJpeg lib = load(apiVersion)) {
+      ByteBuffer jpeg = Fixtures.buffer("rgb.jpg");
+      Info info = lib.getInfo(jpeg);
+      Dimension size = info.getAvailableSizes().get(3);
+      int rowSize = size.width * TJPF.TJPF_BGR.getPixelSize();
+      int pitch = rowSize + 5;
+      byte[] data = new byte[pitch * size.height];
+      Arrays.fill(data, (byte) 0x7F);
+      lib.decode(jpeg, info, size, TJPF.TJPF_BGR, ByteBuffer.wrap(data), pitch);
+      for (int row = 0; row < size.height; row++) {
+        for (int i = rowSize; i < pitch; i++) {
+          assertThat(data[row * pitch + i]).isEqualTo((byte) 0x7F);
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {2, 3})
+  void decodesRegions(int apiVersion) throws Exception {
+    try (TurboJpeg lib = load(apiVersion)) {
+      ByteBuffer jpeg = Fixtures.buffer("prime_shaped.jpg");
+      Info info = lib.getInfo(jpeg);
+      for (int index : new int[] {0, 2}) {
+        Dimension size = info.getAvailableSizes().get(index);
+        Rectangle region =
+            new Rectangle(size.width / 5 + 3, size.height / 3 + 1, size.width / 2, size.height / 4);
+        BufferedImage full = lib.decode(jpeg, info, size);
+        BufferedImage decoded = lib.decodeRegion(jpeg, info, size, region, DecodeSpeed.ACCURATE);
+        assertThat(decoded.getWidth()).isEqualTo(region.width);
+        assertThat(decoded.getHeight()).isEqualTo(region.height);
+        // The upsampling at the edges of the decoded MCUs may differ slightly from a full decode
+        long totalDifference = 0;
+        for (int y = 0; y < region.height; y++) {
+          for (int x = 0; x < region.width; x++) {
+            int expected = full.getRGB(region.x + x, region.y + y);
+            int actual = decoded.getRGB(x, y);
+            for (int shift = 0; shift < 24; shift += 8) {
+              totalDifference +=
+                  Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+            }
+          }
+        }
+        assertThat((double) totalDifference / (region.width * region.height * 3))
+            .as("mean difference at %dx%d", size.width, size.height)
+            .isLessThan(2.0);
+      }
+    }
+  }
+}
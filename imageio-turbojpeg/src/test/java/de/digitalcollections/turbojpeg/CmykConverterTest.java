@@ -0,0 +1,58 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class CmykConverterTest {
+
+  // No ink, full cyan, 50% black and full black, as stored in a regular image
+  private static final byte[] CMYK = {
+    0, 0, 0, 0, (byte) 255, 0, 0, 0, 0, 0, 0, (byte) 128, 0, 0, 0, (byte) 255
+  };
+
+  private static byte[] invert(byte[] samples) {
+    byte[] inverted = new byte[samples.length];
+    for (int i = 0; i < samples.length; i++) {
+      inverted[i] = (byte) ~samples[i];
+    }
+    return inverted;
+  }
+
+  @Test
+  void convertsToRgbFormats() {
+    byte[] bgr = new byte[4 * 3];
+    new CmykConverter(TJPF.TJPF_BGR, false).convertRow(CMYK, bgr, 0, 4);
+    assertThat(bgr).containsExactly(-1, -1, -1, -1, -1, 0, 127, 127, 127, 0, 0, 0);
+
+    byte[] argb = new byte[1 + 4 * 4];
+    new CmykConverter(TJPF.TJPF_ARGB, true).convertRow(invert(CMYK), argb, 1, 4);
+    assertThat(argb)
+        .containsExactly(0, -1, -1, -1, -1, -1, 0, -1, -1, -1, 127, 127, 127, -1, 0, 0, 0);
+  }
+
+  @Test
+  void convertsToGray() {
+    byte[] gray = new byte[4];
+    new CmykConverter(TJPF.TJPF_GRAY, true).convertRow(invert(CMYK), gray, 0, 4);
+    assertThat(gray).containsExactly(-1, (byte) 178, 127, 0);
+  }
+
+  @Test
+  void normalizesInvertedSamples() {
+    byte[] cmyk = new byte[CMYK.length];
+    new CmykConverter(TJPF.TJPF_CMYK, true).convertRow(invert(CMYK), cmyk, 0, 4);
+    assertThat(cmyk).isEqualTo(CMYK);
+    new CmykConverter(TJPF.TJPF_CMYK, false).convertRow(CMYK, cmyk, 0, 4);
+    assertThat(cmyk).isEqualTo(CMYK);
+  }
+
+  @Test
+  void detectsAdobeMarker() throws Exception {
+    assertThat(JpegSegments.hasAdobeMarker(Fixtures.buffer("cmyk.jpg"))).isTrue();
+    assertThat(JpegSegments.hasAdobeMarker(Fixtures.buffer("rgb.jpg"))).isFalse();
+    assertThat(JpegSegments.hasAdobeMarker(ByteBuffer.wrap(new byte[] {1, 2, 3}))).isFalse();
+  }
+}
@@ -0,0 +1,48 @@
+package de.digitalcollections.turbojpeg;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Access to the test fixtures, i.e. the files in the test resources and generated test images.
+ *
+ * <p>The benchmarks use them as well. They can be run from the IDE via their {@code main} methods
+ * or with {@code java -cp <test classpath> org.openjdk.jmh.Main <benchmark name>} after {@code mvn
+ * test-compile}.
+ */
+public final class Fixtures {
+
+  private Fixtures() {}
+
+  public static Path path(String name) {
+    try {
+      return Paths.get(ClassLoader.getSystemResource(name).toURI());
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  public static byte[] read(String name) throws IOException {
+    return Files.readAllBytes(path(name));
+  }
+
+  public static ByteBuffer buffer(String name) throws IOException {
+    return ByteBuffer.wrap(read(name));
+  }
+
+  /** Generate an image with smooth gradients in all channels, which compresses predictably. */
+  public static BufferedImage gradient(int width, int height, int type) {
+    BufferedImage img = new BufferedImage(width, height, type);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        img.setRGB(x, y, ((x * 2) << 16) | ((y * 3) << 8) | ((x + y) & 0xFF));
+      }
+    }
+    return img;
+  }
+}
@@ -0,0 +1,120 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import de.digitalcollections.turbojpeg.lib.libturbojpeg;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HandlePoolTest {
+
+  private final AtomicLong nextAddress = new AtomicLong(0x1000);
+  private List<Pointer> destroyed;
+  private libturbojpeg lib;
+
+  @BeforeEach
+  void setUp() {
+    destroyed = new ArrayList<>();
+    lib =
+        (libturbojpeg)
+            Proxy.newProxyInstance(
+                libturbojpeg.class.getClassLoader(),
+                new Class[] {libturbojpeg.class},
+                (proxy, method, args) -> {
+                  switch (method.getName()) {
+                    case "tjDestroy":
+                      destroyed.add((Pointer) args[0]);
+                      return 0;
+                    case "tjGetErrorStr":
+                      return "No handle";
+                    default:
+                      throw new UnsupportedOperationException(method.getName());
+                  }
+                });
+  }
+
+  private Pointer newPointer() {
+    return Pointer.wrap(Runtime.getSystemRuntime(), nextAddress.getAndAdd(8));
+  }
+
+  @Test
+  void reusesReleasedHandles() throws TurboJpegException {
+    HandlePool pool = new HandlePool(lib, this::newPointer, 2);
+    Handle first = pool.acquire();
+    pool.release(first);
+    assertThat(pool.acquire()).isSameAs(first);
+    assertThat(destroyed).isEmpty();
+  }
+
+  @Test
+  void leasesAreExclusive() throws TurboJpegException {
+    HandlePool pool = new HandlePool(lib, this::newPointer, 2);
+    Handle first = pool.acquire();
+    Handle second = pool.acquire();
+    assertThat(second.pointer).isNotEqualTo(first.pointer);
+  }
+
+  @Test
+  void destroysSurplusHandles() throws TurboJpegException {
+    HandlePool pool = new HandlePool(lib, this::newPointer, 1);
+    Handle first = pool.acquire();
+    Handle second = pool.acquire();
+    pool.release(first);
+    pool.release(second);
+    assertThat(pool.idleCount()).isEqualTo(1);
+    assertThat(destroyed).containsExactly(second.pointer);
+  }
+
+  @Test
+  void sizeZeroDisablesPooling() throws TurboJpegException {
+    HandlePool pool = new HandlePool(lib, this::newPointer, 0);
+    Handle handle = pool.acquire();
+    pool.release(handle);
+    assertThat(pool.idleCount()).isZero();
+    assertThat(destroyed).containsExactly(handle.pointer);
+  }
+
+  @Test
+  void closeDestroysIdleHandles() throws TurboJpegException {
+    HandlePool pool = new HandlePool(lib, this::newPointer, 2);
+    Handle first = pool.acquire();
+    Handle second = pool.acquire();
+    pool.release(first);
+    pool.close();
+    assertThat(destroyed).containsExactly(first.pointer);
+    pool.release(second);
+    assertThat(destroyed).containsExactly(first.pointer, second.pointer);
+    assertThat(pool.idleCount()).isZero();
+  }
+
+  @Test
+  void dropsOversizedOutputBuffers() throws TurboJpegException {
+    HandlePool pool = new HandlePool(lib, this::newPointer, 2);
+    Handle small = pool.acquire();
+    Handle large = pool.acquire();
+    ByteBuffer kept = ByteBuffer.allocate(HandlePool.MAX_RETAINED_OUTPUT_BUFFER);
+    small.outputBuffer = kept;
+    large.outputBuffer = ByteBuffer.allocate(HandlePool.MAX_RETAINED_OUTPUT_BUFFER + 1);
+    pool.release(small);
+    pool.release(large);
+    assertThat(small.outputBuffer).isSameAs(kept);
+    assertThat(large.outputBuffer).isNull();
+    assertThat(pool.idleCount()).isEqualTo(2);
+  }
+
+  @Test
+  void failedInitializationThrows() {
+    HandlePool pool = new HandlePool(lib, () -> null, 2);
+    assertThatThrownBy(pool::acquire)
+        .isInstanceOf(TurboJpegException.class)
+        .hasMessage("No handle");
+  }
+}
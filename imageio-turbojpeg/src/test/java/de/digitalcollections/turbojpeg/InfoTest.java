@@ -0,0 +1,84 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Dimension;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class InfoTest {
+
+  private static final List<ScalingFactor> FACTORS =
+      Arrays.asList(
+          new ScalingFactor(2, 1),
+          new ScalingFactor(1, 1),
+          new ScalingFactor(3, 4),
+          new ScalingFactor(1, 2),
+          new ScalingFactor(1, 4),
+          new ScalingFactor(1, 8));
+
+  @Test
+  void computesAvailableSizes() {
+    Info info =
+        new Info(512, 300, TJSAMP.TJSAMP_420.intValue(), TJCS.TJCS_YCbCr.intValue(), FACTORS);
+    assertThat(info.getAvailableSizes())
+        .containsExactly(
+            new Dimension(512, 300),
+            new Dimension(384, 225),
+            new Dimension(256, 150),
+            new Dimension(128, 75),
+            new Dimension(64, 38));
+    assertThat(info.getScalingFactor(3)).isEqualTo(new ScalingFactor(1, 4));
+  }
+
+  @Test
+  void skipsDuplicateSizes() {
+    Info info = new Info(1, 1, TJSAMP.TJSAMP_444.intValue(), TJCS.TJCS_RGB.intValue(), FACTORS);
+    assertThat(info.getAvailableSizes()).containsExactly(new Dimension(1, 1));
+    assertThat(info.getScalingFactor(0)).isEqualTo(new ScalingFactor(1, 1));
+  }
+
+  @Test
+  void updateReusesHolders() {
+    Info info =
+        new Info(512, 512, TJSAMP.TJSAMP_420.intValue(), TJCS.TJCS_YCbCr.intValue(), FACTORS);
+    List<Dimension> sizes = info.getAvailableSizes();
+    Dimension first = sizes.get(0);
+    info.update(64, 32, TJSAMP.TJSAMP_GRAY.intValue(), TJCS.TJCS_GRAY.intValue(), FACTORS);
+    assertThat(info.getAvailableSizes()).isSameAs(sizes);
+    assertThat(info.getAvailableSizes().get(0)).isSameAs(first);
+    assertThat(info.getAvailableSizes())
+        .containsExactly(
+            new Dimension(64, 32),
+            new Dimension(48, 24),
+            new Dimension(32, 16),
+            new Dimension(16, 8),
+            new Dimension(8, 4));
+    assertThat(info.getColorspace()).isEqualTo(TJCS.TJCS_GRAY);
+    assertThat(info.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_GRAY);
+  }
+
+  @Test
+  void fitsIntoBox() {
+    Info info =
+        new Info(512, 300, TJSAMP.TJSAMP_420.intValue(), TJCS.TJCS_YCbCr.intValue(), FACTORS);
+    assertThat(info.getSizeToFit(new Dimension(300, 300))).isEqualTo(new Dimension(300, 176));
+    assertThat(info.getSizeToFit(new Dimension(1000, 150))).isEqualTo(new Dimension(256, 150));
+    assertThat(info.getSizeToFit(new Dimension(1000, 1000))).isEqualTo(new Dimension(512, 300));
+    assertThat(info.getSizeToFit(new Dimension(1, 1))).isEqualTo(new Dimension(1, 1));
+  }
+
+  @Test
+  void findsSmallestSizeCoveringTarget() {
+    Info info =
+        new Info(512, 300, TJSAMP.TJSAMP_420.intValue(), TJCS.TJCS_YCbCr.intValue(), FACTORS);
+    assertThat(info.getSizeIndexCovering(new Dimension(300, 176))).isEqualTo(1);
+    assertThat(info.getSizeIndexCovering(new Dimension(256, 150))).isEqualTo(2);
+    assertThat(info.getSizeIndexCovering(new Dimension(257, 10))).isEqualTo(1);
+    assertThat(info.getSizeIndexCovering(new Dimension(1, 1))).isEqualTo(4);
+    assertThat(info.getSizeIndexCovering(new Dimension(512, 300))).isEqualTo(0);
+  }
+}
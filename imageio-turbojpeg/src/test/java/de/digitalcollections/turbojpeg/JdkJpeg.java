@@ -0,0 +1,89 @@
+package de.digitalcollections.turbojpeg;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes and decodes JPEG images with the JPEG reader and writer of the JDK, which work without
+ * the native library and serve as a reference for the segment level tests.
+ */
+final class JdkJpeg {
+
+  private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+
+  private JdkJpeg() {}
+
+  /**
+   * Encode an image with the JPEG writer of the JDK.
+   *
+   * @param interval restart interval in MCUs, or 0 for no restart markers
+   */
+  static ByteBuffer encode(BufferedImage img, int interval) throws IOException {
+    ImageWriter writer = getWriter();
+    IIOMetadata metadata =
+        writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), writer.getDefaultWriteParam());
+    if (interval > 0) {
+      IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA);
+      IIOMetadataNode markers =
+          (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+      IIOMetadataNode dri = new IIOMetadataNode("dri");
+      dri.setAttribute("interval", Integer.toString(interval));
+      markers.insertBefore(dri, markers.getFirstChild());
+      metadata.setFromTree(JPEG_METADATA, root);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(img, null, metadata), null);
+    } finally {
+      writer.dispose();
+    }
+    return ByteBuffer.wrap(out.toByteArray());
+  }
+
+  /** Decode a JPEG image with the JPEG reader of the JDK, the position is not modified. */
+  static BufferedImage decode(ByteBuffer jpeg) throws IOException {
+    ImageReader reader = getReader();
+    byte[] data = new byte[jpeg.remaining()];
+    jpeg.duplicate().get(data);
+    reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(data)));
+    try {
+      return reader.read(0);
+    } finally {
+      reader.dispose();
+    }
+  }
+
+  // The TurboJPEG plugins are registered for the same format, so pick the JDK ones by class name
+  private static ImageWriter getWriter() {
+    for (Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName("jpeg"); it.hasNext(); ) {
+      ImageWriter writer = it.next();
+      if (writer != null && writer.getClass().getName().startsWith("com.sun.")) {
+        return writer;
+      }
+    }
+    throw new IllegalStateException("No JPEG writer in the JDK");
+  }
+
+  private static ImageReader getReader() {
+    for (Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("jpeg"); it.hasNext(); ) {
+      ImageReader reader = it.next();
+      if (reader != null && reader.getClass().getName().startsWith("com.sun.")) {
+        return reader;
+      }
+    }
+    throw new IllegalStateException("No JPEG reader in the JDK");
+  }
+}
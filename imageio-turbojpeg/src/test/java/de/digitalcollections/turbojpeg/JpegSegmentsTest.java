@@ -0,0 +1,130 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJXOP;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class JpegSegmentsTest {
+
+  /** Insert an EXIF segment with an IFD holding a single orientation tag after the SOI marker. */
+  static byte[] withOrientation(byte[] jpeg, int orientation, boolean littleEndian) {
+    ByteBuffer tiff = ByteBuffer.allocate(26);
+    tiff.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    tiff.put(littleEndian ? (byte) 'I' : (byte) 'M').put(littleEndian ? (byte) 'I' : (byte) 'M');
+    tiff.putShort((short) 42).putInt(8);
+    tiff.putShort((short) 1);
+    tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation);
+    tiff.putShort((short) 0).putInt(0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(jpeg, 0, 2);
+    int length = 2 + 6 + tiff.capacity();
+    out.write(0xFF);
+    out.write(JpegSegments.M_APP1);
+    out.write(length >> 8);
+    out.write(length & 0xFF);
+    out.write(new byte[] {'E', 'x', 'i', 'f', 0, 0}, 0, 6);
+    out.write(tiff.array(), 0, tiff.capacity());
+    out.write(jpeg, 2, jpeg.length - 2);
+    return out.toByteArray();
+  }
+
+  @Test
+  void readsExifOrientation() throws Exception {
+    byte[] jpeg = Fixtures.read("rgb.jpg");
+    assertThat(JpegSegments.getExifOrientation(ByteBuffer.wrap(jpeg))).isEqualTo(1);
+    for (int orientation = 1; orientation <= 8; orientation++) {
+      assertThat(
+              JpegSegments.getExifOrientation(
+                  ByteBuffer.wrap(withOrientation(jpeg, orientation, false))))
+          .isEqualTo(orientation);
+      assertThat(
+              JpegSegments.getExifOrientation(
+                  ByteBuffer.wrap(withOrientation(jpeg, orientation, true))))
+          .isEqualTo(orientation);
+    }
+  }
+
+  @Test
+  void ignoresInvalidOrientation() throws Exception {
+    byte[] jpeg = withOrientation(Fixtures.read("rgb.jpg"), 9, false);
+    assertThat(JpegSegments.getExifOrientation(ByteBuffer.wrap(jpeg))).isEqualTo(1);
+    // Truncated in the middle of the IFD
+    jpeg = withOrientation(Fixtures.read("rgb.jpg"), 6, false);
+    assertThat(JpegSegments.getExifOrientation(ByteBuffer.wrap(jpeg, 0, 28))).isEqualTo(1);
+    assertThat(JpegSegments.getExifOrientation(ByteBuffer.wrap(new byte[] {1, 2, 3}))).isEqualTo(1);
+  }
+
+  @Test
+  void mapsOrientationsToOperations() {
+    assertThat(TurboJpeg.getOrientationTransform(1)).isEqualTo(TJXOP.TJXOP_NONE);
+    assertThat(TurboJpeg.getOrientationTransform(3)).isEqualTo(TJXOP.TJXOP_ROT180);
+    assertThat(TurboJpeg.getOrientationTransform(6)).isEqualTo(TJXOP.TJXOP_ROT90);
+    assertThat(TurboJpeg.getOrientationTransform(7)).isEqualTo(TJXOP.TJXOP_TRANSVERSE);
+    assertThat(TurboJpeg.getOrientationTransform(0)).isEqualTo(TJXOP.TJXOP_NONE);
+  }
+
+  /** Encode the strips of an image separately, each strip with the given height. */
+  private static List<ByteBuffer> encodeStrips(BufferedImage img, int stripHeight)
+      throws Exception {
+    List<ByteBuffer> strips = new ArrayList<>();
+    for (int y = 0; y < img.getHeight(); y += stripHeight) {
+      WritableRaster raster =
+          img.getRaster()
+              .createWritableChild(
+                  0, y, img.getWidth(), Math.min(stripHeight, img.getHeight() - y), 0, 0, null);
+      BufferedImage strip = new BufferedImage(img.getColorModel(), raster, false, null);
+      strips.add(JdkJpeg.encode(strip, 0));
+    }
+    return strips;
+  }
+
+  @Test
+  void joinsStripsWithRestartMarkers() throws Exception {
+    for (int type : new int[] {BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR}) {
+      BufferedImage img = Fixtures.gradient(200, 120, type);
+      // Two rows of MCUs per strip, which are 8 pixels high in gray and 16 pixels in color images
+      int mcuSize = type == BufferedImage.TYPE_BYTE_GRAY ? 8 : 16;
+      int interval = 2 * ((200 + mcuSize - 1) / mcuSize);
+      ByteBuffer joined = JpegSegments.joinStrips(encodeStrips(img, 2 * mcuSize), 120, interval);
+      assertThat(joined.get(joined.limit() - 1) & 0xFF).isEqualTo(JpegSegments.M_EOI);
+      assertThat(RestartIndex.parse(joined)).isNotNull();
+
+      // The same coefficients as an image encoded in one go with the same restart interval
+      BufferedImage expected = JdkJpeg.decode(JdkJpeg.encode(img, interval));
+      BufferedImage actual = JdkJpeg.decode(joined);
+      assertThat(actual.getHeight()).isEqualTo(120);
+      assertThat(actual.getRaster().getPixels(0, 0, 200, 120, (int[]) null))
+          .containsExactly(expected.getRaster().getPixels(0, 0, 200, 120, (int[]) null));
+    }
+  }
+
+  @Test
+  void rejectsStripsWithDifferentTables() throws Exception {
+    BufferedImage img = Fixtures.gradient(64, 32, BufferedImage.TYPE_BYTE_GRAY);
+    List<ByteBuffer> strips = encodeStrips(img, 16);
+    // Scale the first quantization table of the second strip
+    ByteBuffer second = strips.get(1);
+    int dqt = 2;
+    while ((second.get(dqt + 1) & 0xFF) != 0xDB) {
+      dqt += 2 + (((second.get(dqt + 2) & 0xFF) << 8) | (second.get(dqt + 3) & 0xFF));
+    }
+    second.put(dqt + 5, (byte) (second.get(dqt + 5) + 1));
+    assertThatThrownBy(() -> JpegSegments.joinStrips(strips, 32, 16))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(
+            () ->
+                JpegSegments.joinStrips(
+                    Arrays.asList(ByteBuffer.wrap(Fixtures.read("rgb.jpg"))), 8, 0))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,118 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+
+class RestartIndexTest {
+
+  @Test
+  void splitsGrayImageIntoIdenticalBands() throws IOException {
+    // 13 MCUs per row and an interval of 2 rows, so only every other row can start a band
+    ByteBuffer jpeg = JdkJpeg.encode(Fixtures.gradient(100, 70, BufferedImage.TYPE_BYTE_GRAY), 26);
+    RestartIndex index = RestartIndex.parse(jpeg);
+    assertThat(index).isNotNull();
+    int[] rows = index.getBandRows(3);
+    assertThat(rows).containsExactly(0, 4, 6);
+
+    BufferedImage full = JdkJpeg.decode(jpeg);
+    int mcuRows = 9;
+    for (int i = 0; i < rows.length; i++) {
+      int endRow = i + 1 < rows.length ? rows[i + 1] : mcuRows;
+      BufferedImage band = JdkJpeg.decode(index.extractBand(jpeg, rows[i], endRow));
+      assertThat(band.getWidth()).isEqualTo(100);
+      assertThat(band.getHeight()).isEqualTo(index.getBandHeight(rows[i], endRow));
+      int top = rows[i] * 8;
+      for (int y = 0; y < band.getHeight(); y++) {
+        for (int x = 0; x < band.getWidth(); x++) {
+          assertThat(band.getRaster().getSample(x, y, 0))
+              .as("pixel %d,%d", x, top + y)
+              .isEqualTo(full.getRaster().getSample(x, top + y, 0));
+        }
+      }
+    }
+    assertThat(index.getBandHeight(6, 9)).isEqualTo(22);
+  }
+
+  @Test
+  void splitsColorImageAtRowsOfMcus() throws IOException {
+    // 4:2:0 with 16×16 MCUs, 13 MCUs per row and one interval per row
+    ByteBuffer jpeg = JdkJpeg.encode(Fixtures.gradient(200, 120, BufferedImage.TYPE_3BYTE_BGR), 13);
+    RestartIndex index = RestartIndex.parse(jpeg);
+    assertThat(index).isNotNull();
+    assertThat(index.getMcuHeight()).isEqualTo(16);
+    int[] rows = index.getBandRows(16);
+    assertThat(rows).containsExactly(0, 1, 2, 3, 4, 5, 6, 7);
+    BufferedImage full = JdkJpeg.decode(jpeg);
+    BufferedImage band = JdkJpeg.decode(index.extractBand(jpeg, 3, 5));
+    assertThat(band.getHeight()).isEqualTo(32);
+    // Away from the boundaries, the upsampled chroma does not depend on the neighbouring bands
+    for (int x = 0; x < 200; x++) {
+      assertThat(band.getRGB(x, 16)).isEqualTo(full.getRGB(x, 64));
+    }
+  }
+
+  @Test
+  void extendsBandsByOverlappingRows() throws IOException {
+    // 4:2:0 with 13 MCUs per row and an interval of 2 rows, so only even rows can start a band
+    ByteBuffer jpeg = JdkJpeg.encode(Fixtures.gradient(200, 120, BufferedImage.TYPE_3BYTE_BGR), 26);
+    RestartIndex index = RestartIndex.parse(jpeg);
+    assertThat(index).isNotNull();
+    assertThat(index.getOverlappingRows(0, 4)).containsExactly(0, 6);
+    assertThat(index.getOverlappingRows(4, 6)).containsExactly(2, 8);
+    assertThat(index.getOverlappingRows(6, 8)).containsExactly(4, 8);
+
+    // The rows of the band are the same as in the full image, including those at its boundaries
+    BufferedImage full = JdkJpeg.decode(jpeg);
+    BufferedImage band = JdkJpeg.decode(index.extractBand(jpeg, 2, 8));
+    for (int y = 0; y < 32; y++) {
+      for (int x = 0; x < 200; x++) {
+        assertThat(band.getRGB(x, 32 + y))
+            .as("pixel %d,%d", x, 64 + y)
+            .isEqualTo(full.getRGB(x, 64 + y));
+      }
+    }
+  }
+
+  @Test
+  void decodesBandsInParallel() throws Exception {
+    // Gray, and 4:2:0 with restart intervals of one and two rows of MCUs
+    ByteBuffer[] images = {
+      JdkJpeg.encode(Fixtures.gradient(200, 120, BufferedImage.TYPE_BYTE_GRAY), 25),
+      JdkJpeg.encode(Fixtures.gradient(200, 120, BufferedImage.TYPE_3BYTE_BGR), 13),
+      JdkJpeg.encode(Fixtures.gradient(200, 120, BufferedImage.TYPE_3BYTE_BGR), 26)
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try (TurboJpeg lib = new TurboJpeg()) {
+      for (ByteBuffer jpeg : images) {
+        Info info = lib.getInfo(jpeg);
+        for (Dimension size : new Dimension[] {new Dimension(200, 120), new Dimension(100, 60)}) {
+          BufferedImage expected = lib.decode(jpeg, info, size);
+          BufferedImage actual =
+              lib.decodeParallel(jpeg, info, size, DecodeSpeed.ACCURATE, executor, 4);
+          assertThat(actual.getHeight()).isEqualTo(size.height);
+          assertThat(actual.getRaster().getPixels(0, 0, size.width, size.height, (int[]) null))
+              .as("%s at %dx%d", info.getSubsampling(), size.width, size.height)
+              .containsExactly(
+                  expected.getRaster().getPixels(0, 0, size.width, size.height, (int[]) null));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void rejectsImagesWithoutRestartMarkers() throws Exception {
+    for (String name : new String[] {"rgb.jpg", "prime_shaped.jpg"}) {
+      assertThat(RestartIndex.parse(Fixtures.buffer(name))).as(name).isNull();
+    }
+    assertThat(RestartIndex.parse(ByteBuffer.wrap(new byte[] {1, 2, 3}))).isNull();
+  }
+}
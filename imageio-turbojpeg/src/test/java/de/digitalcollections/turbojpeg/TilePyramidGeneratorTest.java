@@ -0,0 +1,98 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TilePyramidGeneratorTest {
+
+  @TempDir Path outputDir;
+
+  @Test
+  void computesNumberOfLevels() {
+    assertThat(TilePyramidGenerator.getMaxLevel(1, 1)).isEqualTo(0);
+    assertThat(TilePyramidGenerator.getMaxLevel(2, 1)).isEqualTo(1);
+    assertThat(TilePyramidGenerator.getMaxLevel(512, 300)).isEqualTo(9);
+    assertThat(TilePyramidGenerator.getMaxLevel(300, 513)).isEqualTo(10);
+  }
+
+  @Test
+  void downsamplesOddDimensions() {
+    BufferedImage img = new BufferedImage(3, 3, BufferedImage.TYPE_BYTE_GRAY);
+    img.getRaster().setSamples(0, 0, 3, 3, 0, new int[] {0, 100, 10, 200, 255, 20, 30, 40, 50});
+    BufferedImage half = TilePyramidGenerator.downsample(img);
+    assertThat(half.getWidth()).isEqualTo(2);
+    assertThat(half.getHeight()).isEqualTo(2);
+    int[] samples = half.getRaster().getSamples(0, 0, 2, 2, 0, (int[]) null);
+    assertThat(samples).containsExactly(139, 15, 35, 50);
+  }
+
+  @Test
+  void generatesDeepZoomPyramid() throws Exception {
+    try (TurboJpeg lib = new TurboJpeg()) {
+      TilePyramidGenerator generator = new TilePyramidGenerator(lib);
+      generator.setParallelism(2);
+      TilePyramidGenerator.Result result =
+          generator.generate(Fixtures.buffer("rgb.jpg"), outputDir, "rgb");
+      // Levels 0 to 9, 4 tiles at full resolution and a single tile for all other levels
+      assertThat(result.getLevels()).isEqualTo(10);
+      assertThat(result.getTiles()).isEqualTo(13);
+      assertThat(result.getLosslessTiles()).isEqualTo(4);
+      assertThat(result.getBytes()).isEqualTo(sizeOfTiles(outputDir.resolve("rgb_files")));
+      assertThat(new String(Files.readAllBytes(outputDir.resolve("rgb.dzi")), "UTF-8"))
+          .contains("TileSize=\"256\"", "Width=\"512\" Height=\"512\"");
+
+      Info tile = lib.getInfo(Files.readAllBytes(outputDir.resolve("rgb_files/9/1_1.jpg")));
+      assertThat(tile.getWidth()).isEqualTo(256);
+      tile = lib.getInfo(Files.readAllBytes(outputDir.resolve("rgb_files/8/0_0.jpg")));
+      assertThat(tile.getWidth()).isEqualTo(256);
+      tile = lib.getInfo(Files.readAllBytes(outputDir.resolve("rgb_files/5/0_0.jpg")));
+      assertThat(tile.getWidth()).isEqualTo(32);
+      tile = lib.getInfo(Files.readAllBytes(outputDir.resolve("rgb_files/0/0_0.jpg")));
+      assertThat(tile.getWidth()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  void reencodesUnalignedTiles() throws Exception {
+    try (TurboJpeg lib = new TurboJpeg()) {
+      TilePyramidGenerator generator = new TilePyramidGenerator(lib);
+      generator.setTileSize(200);
+      TilePyramidGenerator.Result result =
+          generator.generate(Fixtures.buffer("rgb.jpg"), outputDir, "rgb");
+      assertThat(result.getLosslessTiles()).isZero();
+      assertThat(result.getTiles()).isEqualTo(9 + 4 + 8);
+      Info tile = lib.getInfo(Files.readAllBytes(outputDir.resolve("rgb_files/9/2_2.jpg")));
+      assertThat(tile.getWidth()).isEqualTo(112);
+      assertThat(tile.getHeight()).isEqualTo(112);
+    }
+  }
+
+  @Test
+  void decodesLevelsOnceWithTurboJpeg2Api() throws Exception {
+    try (TurboJpeg lib = new TurboJpeg(1, 2)) {
+      TilePyramidGenerator generator = new TilePyramidGenerator(lib);
+      generator.setTileSize(200);
+      TilePyramidGenerator.Result result =
+          generator.generate(Fixtures.buffer("rgb.jpg"), outputDir, "rgb");
+      assertThat(result.getTiles()).isEqualTo(9 + 4 + 8);
+      Info tile = lib.getInfo(Files.readAllBytes(outputDir.resolve("rgb_files/9/2_2.jpg")));
+      assertThat(tile.getWidth()).isEqualTo(112);
+      assertThat(tile.getHeight()).isEqualTo(112);
+      tile = lib.getInfo(Files.readAllBytes(outputDir.resolve("rgb_files/8/1_1.jpg")));
+      assertThat(tile.getWidth()).isEqualTo(56);
+    }
+  }
+
+  private static long sizeOfTiles(Path dir) throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Rectangle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TransformBatchTest {
+
+  private TurboJpeg lib;
+
+  @BeforeEach
+  void setUp() {
+    lib = new TurboJpeg();
+  }
+
+  @AfterEach
+  void tearDown() {
+    lib.close();
+  }
+
+  @Test
+  void cutsTilesFromSingleParse() throws Exception {
+    byte[] jpeg = Fixtures.read("rgb.jpg");
+    Info info = lib.getInfo(jpeg);
+    List<TransformSpec> tiles = new ArrayList<>();
+    for (int y = 0; y < 512; y += 192) {
+      for (int x = 0; x < 512; x += 192) {
+        tiles.add(new TransformSpec(new Rectangle(x, y, Math.min(192, 512 - x), 192), 0));
+      }
+    }
+    List<ByteBuffer> outputs = lib.transformBatch(jpeg, info, tiles);
+    assertThat(outputs).hasSize(9);
+    for (int i = 0; i < tiles.size(); i++) {
+      Rectangle region = tiles.get(i).getRegion();
+      ByteBuffer expected = lib.transform(jpeg, info, region, 0);
+      Info tileInfo = lib.getInfo(outputs.get(i));
+      assertThat(tileInfo.getWidth()).isEqualTo(region.width);
+      assertThat(tileInfo.getHeight()).isEqualTo(Math.min(region.height, 512 - region.y));
+      assertThat(outputs.get(i)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void appliesRotationAndOptions() throws Exception {
+    byte[] jpeg = Fixtures.read("tiny.jpg");
+    Info info = lib.getInfo(jpeg);
+    TransformSpec rotated = new TransformSpec(null, 90);
+    TransformSpec gray = new TransformSpec(null, 0);
+    gray.setGray(true);
+    TransformSpec stripped = new TransformSpec(null, 0);
+    stripped.setCopyNone(true);
+    List<ByteBuffer> outputs =
+        lib.transformBatch(jpeg, info, Arrays.asList(rotated, gray, stripped));
+    Info rotatedInfo = lib.getInfo(outputs.get(0));
+    assertThat(rotatedInfo.getWidth()).isEqualTo(info.getHeight());
+    assertThat(rotatedInfo.getHeight()).isEqualTo(info.getWidth());
+    assertThat(lib.getInfo(outputs.get(1)).getSubsampling()).isEqualTo(TJSAMP.TJSAMP_GRAY);
+    // The ICC profile in the APP2 segment is only kept when metadata is copied
+    assertThat(hasMarker(outputs.get(0), 0xE2)).isTrue();
+    assertThat(hasMarker(outputs.get(2), 0xE2)).isFalse();
+  }
+
+  @Test
+  void cropsAlongRotatedMcus() throws Exception {
+    // 64×48 with 4:2:2 subsampling, i.e. 16×8 MCUs, which are 8×16 in the rotated image
+    byte[] jpeg = Fixtures.read("subsampling_422.jpg");
+    Info info = lib.getInfo(jpeg);
+    assertThat(info.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_422);
+    Rectangle region = new Rectangle(8, 16, 8, 16);
+    TransformSpec rotated = new TransformSpec(region, 90);
+    // The luminance alone is cropped along 8×8 blocks
+    TransformSpec gray = new TransformSpec(new Rectangle(8, 8, 8, 8), 0);
+    gray.setGray(true);
+    List<ByteBuffer> outputs = lib.transformBatch(jpeg, info, Arrays.asList(rotated, gray));
+    Info rotatedInfo = lib.getInfo(outputs.get(0));
+    assertThat(rotatedInfo.getWidth()).isEqualTo(8);
+    assertThat(rotatedInfo.getHeight()).isEqualTo(16);
+    assertThat(outputs.get(0)).isEqualTo(lib.transform(jpeg, info, region, 90));
+    Info grayInfo = lib.getInfo(outputs.get(1));
+    assertThat(grayInfo.getWidth()).isEqualTo(8);
+    assertThat(grayInfo.getHeight()).isEqualTo(8);
+    assertThat(grayInfo.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_GRAY);
+
+    assertThatThrownBy(
+            () ->
+                lib.transformBatch(
+                    jpeg,
+                    info,
+                    Collections.singletonList(new TransformSpec(new Rectangle(8, 8, 8, 8), 0))))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("x must be divisible by 16");
+  }
+
+  @Test
+  void validatesAllTransformsUpFront() throws Exception {
+    byte[] jpeg = Fixtures.read("rgb.jpg");
+    Info info = lib.getInfo(jpeg);
+    List<TransformSpec> transforms =
+        Arrays.asList(
+            new TransformSpec(new Rectangle(0, 0, 64, 64), 0),
+            new TransformSpec(new Rectangle(4, 0, 64, 64), 0));
+    assertThatThrownBy(() -> lib.transformBatch(jpeg, info, transforms))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageStartingWith("Invalid transform 1");
+    assertThat(lib.transformBatch(jpeg, info, Collections.emptyList())).isEmpty();
+  }
+
+  private static boolean hasMarker(ByteBuffer jpeg, int marker) {
+    for (int i = 0; i + 1 < jpeg.limit(); i++) {
+      if ((jpeg.get(i) & 0xFF) == 0xFF && (jpeg.get(i + 1) & 0xFF) == marker) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,164 @@
+package de.digitalcollections.turbojpeg;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class YuvImageTest {
+
+  private TurboJpeg lib;
+
+  @BeforeEach
+  void setUp() {
+    lib = new TurboJpeg();
+  }
+
+  @AfterEach
+  void tearDown() {
+    lib.close();
+  }
+
+  @Test
+  void decodesSubsampledPlanes() throws Exception {
+    ByteBuffer jpeg = Fixtures.buffer("needs_realloc.jpg");
+    Info info = lib.getInfo(jpeg);
+    assertThat(info.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_420);
+    YuvImage yuv = lib.decodeToYuv(jpeg, info, null);
+    assertThat(yuv.getNumPlanes()).isEqualTo(3);
+    assertThat(yuv.getPlaneWidth(0)).isEqualTo(160);
+    assertThat(yuv.getPlaneHeight(0)).isEqualTo(126);
+    assertThat(yuv.getPlaneWidth(1)).isEqualTo(80);
+    assertThat(yuv.getPlaneHeight(2)).isEqualTo(63);
+    assertThat(yuv.getPlane(1).capacity()).isEqualTo(yuv.getStride(1) * 63);
+  }
+
+  @Test
+  void decodesScaledIntoReusedPlanes() throws Exception {
+    ByteBuffer jpeg = Fixtures.buffer("needs_realloc.jpg");
+    Info info = lib.getInfo(jpeg);
+    Dimension size = info.getAvailableSizes().get(3);
+    YuvImage yuv = lib.decodeToYuv(jpeg, info, size);
+    assertThat(yuv.getWidth()).isEqualTo(size.width);
+    assertThat(yuv.getPlaneWidth(1)).isEqualTo((size.width + 1) / 2);
+    assertThat(lib.decodeToYuv(jpeg, info, size, yuv)).isSameAs(yuv);
+    assertThat(lib.decodeToYuv(jpeg, info, null, yuv)).isNotSameAs(yuv);
+  }
+
+  @Test
+  void decodesGrayscaleToSinglePlane() throws Exception {
+    ByteBuffer jpeg = Fixtures.buffer("grayscale.jpg");
+    Info info = lib.getInfo(jpeg);
+    YuvImage yuv = lib.decodeToYuv(jpeg, info, null);
+    assertThat(yuv.getNumPlanes()).isEqualTo(1);
+    BufferedImage expected = lib.decode(jpeg, info, null);
+    byte[] luma = new byte[yuv.getPlane(0).capacity()];
+    yuv.getPlane(0).duplicate().get(luma);
+    byte[] expectedLuma = ((DataBufferByte) expected.getRaster().getDataBuffer()).getData();
+    for (int y = 0; y < info.getHeight(); y++) {
+      for (int x = 0; x < info.getWidth(); x++) {
+        assertThat(luma[y * yuv.getStride(0) + x]).isEqualTo(expectedLuma[y * info.getWidth() + x]);
+      }
+    }
+  }
+
+  @Test
+  void convertsPlanesToPixels() throws Exception {
+    ByteBuffer jpeg = Fixtures.buffer("rgb.jpg");
+    Info info = lib.getInfo(jpeg);
+    YuvImage yuv = lib.decodeToYuv(jpeg, info, null);
+    ByteBuffer pixels = ByteBuffer.allocateDirect(512 * 512 * 3);
+    lib.decodeYuv(yuv, TJPF.TJPF_BGR, pixels, 0);
+    byte[] expected =
+        ((DataBufferByte) lib.decode(jpeg, info, null).getRaster().getDataBuffer()).getData();
+    // The upsampling differs slightly from the one used when decompressing in a single step
+    long totalDifference = 0;
+    for (int i = 0; i < expected.length; i++) {
+      totalDifference += Math.abs((pixels.get(i) & 0xFF) - (expected[i] & 0xFF));
+    }
+    assertThat((double) totalDifference / expected.length).isLessThan(2.0);
+  }
+
+  @Test
+  void encodesDecodedPlanes() throws Exception {
+    ByteBuffer jpeg = Fixtures.buffer("rgb.jpg");
+    Info info = lib.getInfo(jpeg);
+    YuvImage yuv = lib.decodeToYuv(jpeg, info, null);
+    ByteBuffer encoded = lib.encodeYuv(yuv, new EncodeOptions());
+    Info encodedInfo = lib.getInfo(encoded);
+    assertThat(encodedInfo.getWidth()).isEqualTo(512);
+    assertThat(encodedInfo.getHeight()).isEqualTo(512);
+    assertThat(encodedInfo.getSubsampling()).isEqualTo(info.getSubsampling());
+    YuvImage roundTripped = lib.decodeToYuv(encoded, encodedInfo, null);
+    assertThat(meanDifference(yuv, roundTripped, 0)).isLessThan(2.0);
+  }
+
+  @Test
+  void encodesToPlanesWithPaddedRows() throws Exception {
+    ByteBuffer jpeg = Fixtures.buffer("rgb.jpg");
+    Info info = lib.getInfo(jpeg);
+    BufferedImage img = lib.decode(jpeg, info, null);
+    int[] strides = {512 + 64, 256 + 32, 256 + 32};
+    ByteBuffer[] planes = {
+      ByteBuffer.allocateDirect(strides[0] * 512),
+      ByteBuffer.allocateDirect(strides[1] * 256),
+      ByteBuffer.allocateDirect(strides[2] * 256)
+    };
+    YuvImage padded = lib.createYuvImage(512, 512, TJSAMP.TJSAMP_420, planes, strides);
+    assertThat(lib.encodeToYuv(img.getRaster(), TJSAMP.TJSAMP_420, padded)).isSameAs(padded);
+    assertThat(padded.getStride(1)).isEqualTo(256 + 32);
+    // The planes match the ones of tightly packed planes
+    YuvImage expected = lib.encodeToYuv(img.getRaster(), TJSAMP.TJSAMP_420);
+    assertThat(meanDifference(expected, padded, 0)).isZero();
+    assertThat(meanDifference(expected, padded, 1)).isZero();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int length = lib.encodeYuv(padded, new EncodeOptions(), Channels.newChannel(out));
+    assertThat(length).isEqualTo(out.size());
+    Info encodedInfo = lib.getInfo(out.toByteArray());
+    assertThat(encodedInfo.getSubsampling()).isEqualTo(TJSAMP.TJSAMP_420);
+    BufferedImage decoded = lib.decode(out.toByteArray(), encodedInfo, null);
+    assertThat(decoded.getWidth()).isEqualTo(512);
+  }
+
+  @Test
+  void rejectsTooSmallPlanes() {
+    ByteBuffer[] planes = {ByteBuffer.allocateDirect(64 * 64)};
+    assertThatThrownBy(() -> lib.createYuvImage(64, 64, TJSAMP.TJSAMP_GRAY, planes, new int[] {32}))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(
+            () -> lib.createYuvImage(64, 64, TJSAMP.TJSAMP_GRAY, planes, new int[] {128}))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(
+            () ->
+                lib.createYuvImage(
+                    64,
+                    64,
+                    TJSAMP.TJSAMP_GRAY,
+                    new ByteBuffer[] {ByteBuffer.allocate(64 * 64)},
+                    new int[] {64}))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static double meanDifference(YuvImage a, YuvImage b, int plane) {
+    long totalDifference = 0;
+    for (int y = 0; y < a.getPlaneHeight(plane); y++) {
+      for (int x = 0; x < a.getPlaneWidth(plane); x++) {
+        int sampleA = a.getPlane(plane).get(y * a.getStride(plane) + x) & 0xFF;
+        int sampleB = b.getPlane(plane).get(y * b.getStride(plane) + x) & 0xFF;
+        totalDifference += Math.abs(sampleA - sampleB);
+      }
+    }
+    return (double) totalDifference / (a.getPlaneWidth(plane) * a.getPlaneHeight(plane));
+  }
+}
@@ -0,0 +1,131 @@
+package de.digitalcollections.turbojpeg.benchmark;
+
+import de.digitalcollections.turbojpeg.Fixtures;
+import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.TurboJpegException;
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Decoding and cropping with heap buffers against direct buffers. Besides the throughput, the
+ * number of bytes that are copied between the Java heap and native memory per operation is reported
+ * as the {@code copiedBytes} counter. JNR copies the remaining bytes of every heap buffer passed to
+ * the library, and library-allocated output has to be copied to the heap once more.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferCopyBenchmark {
+
+  @Param({"heap", "direct"})
+  public String bufferType;
+
+  @Param({"rgb.jpg", "needs_realloc.jpg"})
+  public String fixture;
+
+  private TurboJpeg lib;
+  private ByteBuffer jpegData;
+  private Info info;
+  private Rectangle region;
+  private ByteBuffer pixels;
+  private ByteBuffer transformed;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Copies {
+    public long copiedBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      copiedBytes = 0;
+    }
+
+    void count(ByteBuffer buffer, long length) {
+      if (!buffer.isDirect()) {
+        copiedBytes += length;
+      }
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, TurboJpegException {
+    lib = new TurboJpeg();
+    byte[] data = Fixtures.read(fixture);
+    boolean direct = "direct".equals(bufferType);
+    jpegData = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+    jpegData.put(data);
+    ((Buffer) jpegData).flip();
+    info = lib.getInfo(jpegData);
+    int pixelsSize = info.getWidth() * info.getHeight() * TJPF.TJPF_BGR.getPixelSize();
+    pixels = direct ? ByteBuffer.allocateDirect(pixelsSize) : ByteBuffer.allocate(pixelsSize);
+    // Central region aligned to the MCU grid
+    int mcuWidth = info.getMCUSize().width;
+    int mcuHeight = info.getMCUSize().height;
+    region =
+        new Rectangle(
+            info.getWidth() / 4 / mcuWidth * mcuWidth,
+            info.getHeight() / 4 / mcuHeight * mcuHeight,
+            info.getWidth() / 2 / mcuWidth * mcuWidth,
+            info.getHeight() / 2 / mcuHeight * mcuHeight);
+    int transformedSize = lib.getTransformBufferSize(jpegData, info, region, 0);
+    transformed = ByteBuffer.allocateDirect(transformedSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    lib.close();
+  }
+
+  @Benchmark
+  public ByteBuffer decode(Copies copies) throws TurboJpegException {
+    lib.decode(jpegData, info, null, TJPF.TJPF_BGR, pixels, 0);
+    copies.count(jpegData, jpegData.remaining());
+    copies.count(pixels, pixels.remaining());
+    return pixels;
+  }
+
+  @Benchmark
+  public ByteBuffer crop(Copies copies) throws TurboJpegException {
+    copies.count(jpegData, jpegData.remaining());
+    if (jpegData.isDirect()) {
+      ((Buffer) transformed).clear();
+      int length = lib.transform(jpegData, info, region, 0, transformed);
+      ((Buffer) transformed).limit(length);
+      return transformed;
+    }
+    ByteBuffer out = lib.transform(jpegData, info, region, 0);
+    // Copied from the library-allocated buffer to the heap
+    copies.count(out, out.remaining());
+    return out;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(BufferCopyBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
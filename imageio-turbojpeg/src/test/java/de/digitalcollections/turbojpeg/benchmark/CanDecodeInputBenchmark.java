@@ -0,0 +1,98 @@
+package de.digitalcollections.turbojpeg.benchmark;
+
+import de.digitalcollections.turbojpeg.Fixtures;
+import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.TurboJpegException;
+import de.digitalcollections.turbojpeg.imageio.TurboJpegImageReaderSpi;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Cost of {@link TurboJpegImageReaderSpi#canDecodeInput(Object)} depending on the file size. The
+ * marker scan should be constant, while buffering the whole stream (the previous implementation)
+ * grows linearly with the size of the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CanDecodeInputBenchmark {
+
+  /** Number of bytes of entropy-coded data to simulate after the header. */
+  @Param({"0", "10485760", "52428800"})
+  public int paddingBytes;
+
+  private File file;
+  private TurboJpegImageReaderSpi spi;
+  private TurboJpeg lib;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = File.createTempFile("probe", ".jpg");
+    try (OutputStream os = Files.newOutputStream(file.toPath())) {
+      os.write(Fixtures.read("rgb.jpg"));
+      byte[] chunk = new byte[64 * 1024];
+      for (int written = 0; written < paddingBytes; written += chunk.length) {
+        os.write(chunk, 0, Math.min(chunk.length, paddingBytes - written));
+      }
+    }
+    spi = new TurboJpegImageReaderSpi();
+    lib = new TurboJpeg();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    lib.close();
+    file.delete();
+  }
+
+  @Benchmark
+  public boolean markerScan() throws IOException {
+    try (ImageInputStream is = new FileImageInputStream(file)) {
+      return spi.canDecodeInput(is);
+    }
+  }
+
+  @Benchmark
+  public Info bufferWholeStream() throws IOException, TurboJpegException {
+    try (ImageInputStream is = new FileImageInputStream(file)) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int n;
+      while (0 < (n = is.read(buf))) {
+        bos.write(buf, 0, n);
+      }
+      return lib.getInfo(bos.toByteArray());
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(CanDecodeInputBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
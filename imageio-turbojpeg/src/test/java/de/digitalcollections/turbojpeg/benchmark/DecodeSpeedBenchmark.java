@@ -0,0 +1,79 @@
+package de.digitalcollections.turbojpeg.benchmark;
+
+import de.digitalcollections.turbojpeg.DecodeSpeed;
+import de.digitalcollections.turbojpeg.Fixtures;
+import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.TurboJpegException;
+import de.digitalcollections.turbojpeg.lib.enums.TJPF;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Decoding throughput for the different {@link DecodeSpeed} modes. The accuracy of the modes is
+ * covered by {@code TurboJpegImageReaderTest#testDecodeSpeedQuality}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeSpeedBenchmark {
+
+  @Param({"ACCURATE", "FAST", "FASTEST"})
+  public DecodeSpeed speed;
+
+  @Param({"rgb.jpg", "needs_realloc.jpg"})
+  public String fixture;
+
+  private TurboJpeg lib;
+  private ByteBuffer jpegData;
+  private Info info;
+  private ByteBuffer pixels;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, TurboJpegException {
+    lib = new TurboJpeg();
+    byte[] data = Fixtures.read(fixture);
+    jpegData = ByteBuffer.allocateDirect(data.length);
+    jpegData.put(data);
+    ((Buffer) jpegData).flip();
+    info = lib.getInfo(jpegData);
+    pixels = ByteBuffer.allocateDirect(info.getWidth() * info.getHeight() * 3);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    lib.close();
+  }
+
+  @Benchmark
+  public ByteBuffer decode() throws TurboJpegException {
+    lib.decode(jpegData, info, null, TJPF.TJPF_BGR, pixels, 0, speed);
+    return pixels;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(DecodeSpeedBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -0,0 +1,98 @@
+package de.digitalcollections.turbojpeg.benchmark;
+
+import de.digitalcollections.turbojpeg.DecodeSpeed;
+import de.digitalcollections.turbojpeg.Fixtures;
+import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.TurboJpegException;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Thumbnail generation with {@link TurboJpeg#decodeToFit(ByteBuffer, Info, Dimension)}, which
+ * decodes at the smallest sufficient DCT scaling factor and averages the remaining area, against
+ * decoding the full image and scaling it with {@code Graphics2D.drawImage}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeToFitBenchmark {
+
+  @Param({"300", "150"})
+  public int box;
+
+  @Param({"rgb.jpg", "needs_realloc.jpg"})
+  public String fixture;
+
+  private TurboJpeg lib;
+  private ByteBuffer jpegData;
+  private Info info;
+  private Dimension targetSize;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, TurboJpegException {
+    lib = new TurboJpeg();
+    byte[] data = Fixtures.read(fixture);
+    jpegData = ByteBuffer.allocateDirect(data.length);
+    jpegData.put(data);
+    ((Buffer) jpegData).flip();
+    info = lib.getInfo(jpegData);
+    targetSize = info.getSizeToFit(new Dimension(box, box));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    lib.close();
+  }
+
+  @Benchmark
+  public BufferedImage decodeToFit() throws TurboJpegException {
+    return lib.decodeToFit(jpegData, info, new Dimension(box, box), DecodeSpeed.ACCURATE);
+  }
+
+  @Benchmark
+  public BufferedImage decodeFullAndDraw() throws TurboJpegException {
+    BufferedImage full = lib.decode(jpegData, info, null, DecodeSpeed.ACCURATE);
+    BufferedImage img =
+        new BufferedImage(targetSize.width, targetSize.height, BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D g = img.createGraphics();
+    try {
+      g.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      g.drawImage(full, 0, 0, targetSize.width, targetSize.height, null);
+    } finally {
+      g.dispose();
+    }
+    return img;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(DecodeToFitBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -0,0 +1,124 @@
+package de.digitalcollections.turbojpeg.benchmark;
+
+import de.digitalcollections.turbojpeg.EncodeOptions;
+import de.digitalcollections.turbojpeg.Fixtures;
+import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.TurboJpegException;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Encoding time versus output size for the {@link EncodeOptions}. The size of the last encoded
+ * image is reported as the {@code bytes} secondary result of each configuration.
+ *
+ * <p>Optimized Huffman tables for baseline images require the TurboJPEG 3 API, with older libraries
+ * the {@code OPTIMIZED} variant matches {@code BASELINE}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeOptionsBenchmark {
+
+  /** Combinations of the compression options. */
+  public enum Variant {
+    BASELINE,
+    FAST_DCT,
+    OPTIMIZED,
+    PROGRESSIVE,
+    PROGRESSIVE_FAST_DCT
+  }
+
+  @Param({"TJSAMP_444", "TJSAMP_420"})
+  public TJSAMP subsampling;
+
+  @Param({"BASELINE", "FAST_DCT", "OPTIMIZED", "PROGRESSIVE", "PROGRESSIVE_FAST_DCT"})
+  public Variant variant;
+
+  @Param({"rgb.jpg", "needs_realloc.jpg"})
+  public String fixture;
+
+  private TurboJpeg lib;
+  private Raster raster;
+  private EncodeOptions options;
+
+  /** Size of the encoded image, reported as a secondary result. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class OutputSize {
+    public long bytes;
+  }
+
+  /** Discards the encoded data, so only the compression is measured. */
+  private static final WritableByteChannel DISCARD =
+      new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+          int length = src.remaining();
+          ((Buffer) src).position(src.limit());
+          return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+          return true;
+        }
+
+        @Override
+        public void close() {}
+      };
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, TurboJpegException {
+    lib = new TurboJpeg();
+    ByteBuffer jpegData = ByteBuffer.wrap(Fixtures.read(fixture));
+    raster = lib.decode(jpegData, lib.getInfo(jpegData), null).getRaster();
+    options = new EncodeOptions();
+    options.setSubsampling(subsampling);
+    options.setFastDct(variant == Variant.FAST_DCT || variant == Variant.PROGRESSIVE_FAST_DCT);
+    options.setOptimizeHuffman(variant == Variant.OPTIMIZED);
+    options.setProgressive(
+        variant == Variant.PROGRESSIVE || variant == Variant.PROGRESSIVE_FAST_DCT);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    lib.close();
+  }
+
+  @Benchmark
+  public int encode(OutputSize size) throws TurboJpegException, IOException {
+    int length = lib.encode(raster, options, DISCARD);
+    size.bytes = length;
+    return length;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(EncodeOptionsBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -0,0 +1,82 @@
+package de.digitalcollections.turbojpeg.benchmark;
+
+import de.digitalcollections.turbojpeg.Fixtures;
+import de.digitalcollections.turbojpeg.Info;
+import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.TurboJpegException;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares pooled native handles against creating and destroying a handle for every call (pool size
+ * 0). The workload mirrors a cropped {@code TurboJpegImageReader#read}: header, lossless crop,
+ * header of the cropped image and decode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class HandlePoolBenchmark {
+
+  @Param({"0", "4"})
+  public int poolSize;
+
+  @Param({"tiny.jpg", "rgb.jpg"})
+  public String fixture;
+
+  private TurboJpeg lib;
+  private byte[] jpegData;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    lib = new TurboJpeg(poolSize);
+    jpegData = Fixtures.read(fixture);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    lib.close();
+  }
+
+  @Benchmark
+  public Info info() throws TurboJpegException {
+    return lib.getInfo(jpegData);
+  }
+
+  @Benchmark
+  public BufferedImage croppedRead() throws TurboJpegException {
+    Info info = lib.getInfo(jpegData);
+    Rectangle region =
+        new Rectangle(0, 0, Math.min(info.getWidth(), 64), Math.min(info.getHeight(), 64));
+    byte[] cropped = lib.transform(jpegData, info, region, 0).array();
+    Info croppedInfo = lib.getInfo(cropped);
+    return lib.decode(cropped, croppedInfo, null);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(HandlePoolBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -0,0 +1,100 @@
+package de.digitalcollections.turbojpeg.imageio;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import de.digitalcollections.turbojpeg.Fixtures;
+import de.digitalcollections.turbojpeg.lib.enums.TJCS;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import org.junit.jupiter.api.Test;
+
+class JpegMarkerScannerTest {
+
+  private static JpegMarkerScanner.Header scan(String fixture) throws IOException {
+    try (ImageInputStream is = new FileImageInputStream(Fixtures.path(fixture).toFile())) {
+      return JpegMarkerScanner.scan(is, JpegMarkerScanner.DEFAULT_MAX_BYTES);
+    }
+  }
+
+  @Test
+  void scansBaselineRgb() throws IOException {
+    JpegMarkerScanner.Header header = scan("rgb.jpg");
+    assertThat(header).isNotNull();
+    assertThat(header.getWidth()).isEqualTo(512);
+    assertThat(header.getHeight()).isEqualTo(512);
+    assertThat(header.getNumComponents()).isEqualTo(3);
+    assertThat(header.getPrecision()).isEqualTo(8);
+    assertThat(header.isJfif()).isTrue();
+    assertThat(header.isProgressive()).isFalse();
+    assertThat(header.getColorspace()).isEqualTo(TJCS.TJCS_YCbCr);
+  }
+
+  @Test
+  void scansProgressive() throws IOException {
+    JpegMarkerScanner.Header header = scan("prime_shaped.jpg");
+    assertThat(header.getWidth()).isEqualTo(521);
+    assertThat(header.getHeight()).isEqualTo(509);
+    assertThat(header.isProgressive()).isTrue();
+  }
+
+  @Test
+  void scansGrayscale() throws IOException {
+    JpegMarkerScanner.Header header = scan("grayscale.jpg");
+    assertThat(header.getWidth()).isEqualTo(1955);
+    assertThat(header.getHeight()).isEqualTo(524);
+    assertThat(header.getColorspace()).isEqualTo(TJCS.TJCS_GRAY);
+  }
+
+  @Test
+  void detectsCmykFromAdobeMarker() throws IOException {
+    JpegMarkerScanner.Header header = scan("cmyk.jpg");
+    assertThat(header.getNumComponents()).isEqualTo(4);
+    assertThat(header.getAdobeTransform()).isEqualTo(0);
+    assertThat(header.getColorspace()).isEqualTo(TJCS.TJCS_CMYK);
+  }
+
+  @Test
+  void classifiesSubsampling() throws IOException {
+    assertThat(scan("rgb.jpg").getSubsampling()).isEqualTo(TJSAMP.TJSAMP_444);
+    assertThat(scan("tiny.jpg").getSubsampling()).isEqualTo(TJSAMP.TJSAMP_420);
+    assertThat(scan("grayscale.jpg").getSubsampling()).isEqualTo(TJSAMP.TJSAMP_GRAY);
+    assertThat(scan("cmyk.jpg").getSubsampling()).isEqualTo(TJSAMP.TJSAMP_444);
+    // 4:1:1 is not known to libturbojpeg
+    assertThat(scan("subsampling_411.jpg").getSubsampling()).isNull();
+  }
+
+  @Test
+  void skipsLargeApplicationSegments() throws IOException {
+    // ~650KiB of ICC profile data before the frame header
+    JpegMarkerScanner.Header header = scan("thumbnail.jpg");
+    assertThat(header.getWidth()).isEqualTo(360);
+    assertThat(header.getHeight()).isEqualTo(271);
+  }
+
+  @Test
+  void givesUpAfterMaxBytes() throws IOException {
+    try (ImageInputStream is = new FileImageInputStream(Fixtures.path("thumbnail.jpg").toFile())) {
+      assertThat(JpegMarkerScanner.scan(is, 64 * 1024)).isNull();
+    }
+  }
+
+  @Test
+  void rejectsNonJpeg() throws IOException {
+    try (ImageInputStream is = new FileImageInputStream(Fixtures.path("binary.tif").toFile())) {
+      assertThat(JpegMarkerScanner.scan(is, JpegMarkerScanner.DEFAULT_MAX_BYTES)).isNull();
+    }
+  }
+
+  @Test
+  void rejectsTruncatedHeader() throws IOException {
+    byte[] data = Fixtures.read("rgb.jpg");
+    try (ImageInputStream is =
+        new MemoryCacheImageInputStream(new ByteArrayInputStream(data, 0, 100))) {
+      assertThat(JpegMarkerScanner.scan(is, JpegMarkerScanner.DEFAULT_MAX_BYTES)).isNull();
+    }
+  }
+}
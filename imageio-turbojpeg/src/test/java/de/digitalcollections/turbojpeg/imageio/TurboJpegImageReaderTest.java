@@ -1,20 +1,41 @@
 package de.digitalcollections.turbojpeg.imageio;
 
 import static de.digitalcollections.turbojpeg.imageio.CustomAssertions.assertThat;
+import static de.digitalcollections.turbojpeg.imageio.CustomAssertions.assertThatThrownBy;
 
+import de.digitalcollections.turbojpeg.DecodeSpeed;
+import de.digitalcollections.turbojpeg.StripDecoder;
+import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.lib.enums.TJXOP;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.function.Supplier;
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import org.assertj.core.util.Lists;
 import org.junit.jupiter.api.Test;
 
@@ -56,6 +77,67 @@ class TurboJpegImageReaderTest {
     assertThat(img).hasDimensions(384, 384);
   }
 
+  @Test
+  public void testReadRenderSize() throws IOException {
+    TurboJpegImageReader reader = getReader("rgb.jpg");
+    TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
+    param.setSourceRenderSize(new Dimension(300, 200));
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).hasDimensions(300, 200);
+    assertThat(img.getType()).isEqualTo(BufferedImage.TYPE_3BYTE_BGR);
+    // Close to the area averaging of the fully decoded image
+    Image scaled = reader.read(0, null).getScaledInstance(300, 200, Image.SCALE_AREA_AVERAGING);
+    BufferedImage expected = new BufferedImage(300, 200, BufferedImage.TYPE_3BYTE_BGR);
+    expected.getGraphics().drawImage(scaled, 0, 0, null);
+    assertThat(meanDifference(img, expected)).isLessThan(2.0);
+
+    param.setSourceRegion(new Rectangle(0, 0, 64, 64));
+    assertThatThrownBy(() -> reader.read(0, param)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void testReadSubsampled() throws IOException {
+    TurboJpegImageReader reader = getReader("rgb.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    // Maps exactly onto the 1/8 scaling factor
+    param.setSourceSubsampling(8, 8, 0, 0);
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).hasDimensions(64, 64);
+    assertThat(img).isEqualTo(reader.read(reader.getNumImages(false) - 1, null));
+
+    // Decoded at 1/2 and decimated by 3
+    param.setSourceSubsampling(6, 6, 0, 0);
+    img = reader.read(0, param);
+    assertThat(img).hasDimensions(86, 86);
+    param.setSourceSubsampling(2, 2, 0, 0);
+    BufferedImage half = reader.read(0, param);
+    assertThat(img.getRGB(10, 20)).isEqualTo(half.getRGB(30, 60));
+
+    // Odd steps and offsets are decimated from the full resolution
+    param.setSourceRegion(new Rectangle(100, 50, 200, 100));
+    param.setSourceSubsampling(3, 2, 1, 1);
+    img = reader.read(0, param);
+    assertThat(img).hasDimensions(67, 50);
+    BufferedImage full = reader.read(0, null);
+    assertThat(img.getRGB(0, 0)).isEqualTo(full.getRGB(101, 51));
+    assertThat(img.getRGB(66, 49)).isEqualTo(full.getRGB(299, 149));
+  }
+
+  @Test
+  void testDecimate() {
+    BufferedImage img = new BufferedImage(5, 3, BufferedImage.TYPE_3BYTE_BGR);
+    for (int y = 0; y < 3; y++) {
+      for (int x = 0; x < 5; x++) {
+        img.setRGB(x, y, (x << 16) | (y << 8) | 0x80);
+      }
+    }
+    BufferedImage decimated = TurboJpegImageReader.decimate(img, 2, 2);
+    assertThat(decimated).hasDimensions(3, 2);
+    assertThat(decimated.getType()).isEqualTo(BufferedImage.TYPE_3BYTE_BGR);
+    assertThat(decimated.getRGB(2, 1) & 0xFFFFFF).isEqualTo((4 << 16) | (2 << 8) | 0x80);
+    assertThat(decimated.getRGB(1, 0) & 0xFFFFFF).isEqualTo((2 << 16) | 0x80);
+  }
+
   @Test
   public void testReadRegionAligned() throws IOException {
     ImageReader reader = getReader("crop_aligned.jpg");
@@ -160,6 +242,291 @@ class TurboJpegImageReaderTest {
     assertThat(rgbImg.getRGB(256, 256)).isNotEqualTo(bwImg.getRGB(256, 256));
   }
 
+  @Test
+  public void testReadFromFile() throws IOException {
+    File inFile = new File(ClassLoader.getSystemResource("rgb.jpg").getFile());
+    TurboJpegImageReaderSpi spi = new TurboJpegImageReaderSpi();
+    assertThat(spi.canDecodeInput(inFile)).isTrue();
+    ImageReader reader = spi.createReaderInstance(null);
+    reader.setInput(inFile);
+    assertThat(reader.read(0, null)).hasDimensions(512, 512);
+  }
+
+  @Test
+  public void testRejectsUnknownSubsampling() throws IOException {
+    File inFile = new File(ClassLoader.getSystemResource("subsampling_411.jpg").getFile());
+    TurboJpegImageReaderSpi spi = new TurboJpegImageReaderSpi();
+    assertThat(spi.canDecodeInput(inFile)).isFalse();
+    // The JDK reader takes over
+    assertThat(ImageIO.read(inFile)).hasDimensions(64, 48);
+
+    // The reader fails on the first access instead of keeping the information of the last input
+    ImageReader reader = spi.createReaderInstance(null);
+    reader.setInput(new File(ClassLoader.getSystemResource("rgb.jpg").getFile()));
+    assertThat(reader.getWidth(0)).isEqualTo(512);
+    reader.setInput(inFile);
+    assertThatThrownBy(() -> reader.getWidth(0))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageStartingWith("Could not read JPEG header");
+    assertThatThrownBy(() -> reader.read(0, null)).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  public void testReadFromPath() throws IOException {
+    Path inPath = new File(ClassLoader.getSystemResource("prime_shaped.jpg").getFile()).toPath();
+    TurboJpegImageReaderSpi spi = new TurboJpegImageReaderSpi();
+    assertThat(spi.canDecodeInput(inPath)).isTrue();
+    ImageReader reader = spi.createReaderInstance(null);
+    reader.setInput(inPath);
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(131, 57, 239, 397));
+    assertThat(reader.read(0, param)).hasDimensions(239, 397).hasNoPixelsOfColor(-1);
+  }
+
+  @Test
+  void testBufferFromStream() throws IOException {
+    File inFile = new File(ClassLoader.getSystemResource("rgb.jpg").getFile());
+    byte[] expected = Files.readAllBytes(inFile.toPath());
+    // Known length
+    try (ImageInputStream is = new FileImageInputStream(inFile)) {
+      is.skipBytes(2);
+      ByteBuffer buf = TurboJpegImageReader.bufferFromStream(is);
+      assertThat(buf.array()).isEqualTo(Arrays.copyOfRange(expected, 2, expected.length));
+    }
+    // Unknown length
+    try (ImageInputStream is =
+        new MemoryCacheImageInputStream(new ByteArrayInputStream(expected))) {
+      assertThat(is.length()).isEqualTo(-1);
+      assertThat(TurboJpegImageReader.bufferFromStream(is).array()).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  void testMapFile() throws IOException {
+    Path inPath = new File(ClassLoader.getSystemResource("rgb.jpg").getFile()).toPath();
+    ByteBuffer buf = TurboJpegImageReader.mapFile(inPath);
+    assertThat(buf.isDirect()).isTrue();
+    byte[] mapped = new byte[buf.remaining()];
+    buf.get(mapped);
+    assertThat(mapped).isEqualTo(Files.readAllBytes(inPath));
+  }
+
+  @Test
+  public void testReadIntoDestination() throws IOException {
+    ImageReader reader = getReader("crop_aligned.jpg");
+    BufferedImage expected = reader.read(0, null);
+    BufferedImage destination = new BufferedImage(600, 600, BufferedImage.TYPE_3BYTE_BGR);
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setDestination(destination);
+    param.setDestinationOffset(new Point(40, 60));
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).isSameAs(destination);
+    assertThat(img.getRGB(40 + 100, 60 + 200)).isEqualTo(expected.getRGB(100, 200));
+    assertThat(img.getRGB(40 + 511, 60 + 511)).isEqualTo(expected.getRGB(511, 511));
+    // Pixels outside of the decoded area are left alone
+    assertThat(img.getRGB(39, 60) & 0xFFFFFF).isEqualTo(0);
+    assertThat(img.getRGB(40 + 512, 60) & 0xFFFFFF).isEqualTo(0);
+  }
+
+  @Test
+  public void testReadRegionIntoDestination() throws IOException {
+    ImageReader reader = getReader("crop_unaligned.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(116, 148, 204, 172));
+    BufferedImage expected = reader.read(0, param);
+    BufferedImage destination = new BufferedImage(204, 172, BufferedImage.TYPE_3BYTE_BGR);
+    param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(116, 148, 204, 172));
+    param.setDestination(destination);
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).isSameAs(destination).isEqualTo(expected);
+  }
+
+  @Test
+  public void testReadIntoTooSmallDestination() throws IOException {
+    ImageReader reader = getReader("rgb.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setDestination(new BufferedImage(512, 512, BufferedImage.TYPE_3BYTE_BGR));
+    param.setDestinationOffset(new Point(1, 0));
+    assertThatThrownBy(() -> reader.read(0, param)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void testReadLuminanceOfColorImage() throws IOException {
+    ImageReader reader = getReader("crop_unaligned.jpg");
+    assertThat(Lists.newArrayList(reader.getImageTypes(0)))
+        .last()
+        .isEqualTo(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_BYTE_GRAY));
+    BufferedImage color = reader.read(0, null);
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceBands(new int[] {0});
+    BufferedImage gray = reader.read(0, param);
+    assertThat(gray.getType()).isEqualTo(BufferedImage.TYPE_BYTE_GRAY);
+    assertThat(gray).hasDimensions(color.getWidth(), color.getHeight());
+    // The luminance matches the one computed from the decoded colors up to rounding
+    long totalDifference = 0;
+    for (int y = 0; y < color.getHeight(); y++) {
+      for (int x = 0; x < color.getWidth(); x++) {
+        int rgb = color.getRGB(x, y);
+        double luma =
+            0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+        totalDifference += Math.abs(Math.round(luma) - gray.getRaster().getSample(x, y, 0));
+      }
+    }
+    assertThat((double) totalDifference / (color.getWidth() * color.getHeight())).isLessThan(1.5);
+
+    // Same for regions and destination types
+    Rectangle region = new Rectangle(116, 148, 204, 172);
+    param = reader.getDefaultReadParam();
+    param.setSourceRegion(region);
+    param.setDestinationType(
+        ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_BYTE_GRAY));
+    BufferedImage grayRegion = reader.read(0, param);
+    assertThat(grayRegion).hasDimensions(region.width, region.height);
+    assertThat(grayRegion)
+        .isEqualTo(gray.getSubimage(region.x, region.y, region.width, region.height));
+  }
+
+  @Test
+  public void testReadIntoIncompatibleDestination() throws IOException {
+    ImageReader reader = getReader("rgb.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setDestination(new BufferedImage(512, 512, BufferedImage.TYPE_USHORT_GRAY));
+    assertThatThrownBy(() -> reader.read(0, param)).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void testReadWithDestinationType() throws IOException {
+    ImageReader reader = getReader("crop_unaligned.jpg");
+    assertThat(Lists.newArrayList(reader.getImageTypes(0)))
+        .hasSize(6)
+        .first()
+        .isEqualTo(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR));
+    Rectangle region = new Rectangle(116, 148, 204, 172);
+    ImageReadParam param = reader.getDefaultReadParam();
+    BufferedImage expected = reader.read(0, param);
+    param.setSourceRegion(region);
+    BufferedImage expectedRegion = reader.read(0, param);
+    for (int type :
+        new int[] {
+          BufferedImage.TYPE_INT_RGB,
+          BufferedImage.TYPE_INT_ARGB,
+          BufferedImage.TYPE_INT_BGR,
+          BufferedImage.TYPE_4BYTE_ABGR
+        }) {
+      param = reader.getDefaultReadParam();
+      param.setDestinationType(ImageTypeSpecifier.createFromBufferedImageType(type));
+      BufferedImage img = reader.read(0, param);
+      assertThat(img.getType()).isEqualTo(type);
+      assertThat(img).isEqualTo(expected);
+      param.setSourceRegion(region);
+      img = reader.read(0, param);
+      assertThat(img.getType()).isEqualTo(type);
+      assertThat(img).isEqualTo(expectedRegion);
+    }
+  }
+
+  @Test
+  public void testReadWithUnsupportedDestinationType() throws IOException {
+    ImageReader reader = getReader("rgb.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setDestinationType(
+        ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_USHORT_GRAY));
+    assertThatThrownBy(() -> reader.read(0, param)).isInstanceOf(IIOException.class);
+  }
+
+  private static double psnr(BufferedImage reference, BufferedImage img) {
+    byte[] expected = ((DataBufferByte) reference.getRaster().getDataBuffer()).getData();
+    byte[] actual = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    double squaredError = 0;
+    for (int i = 0; i < expected.length; i++) {
+      int diff = (expected[i] & 0xFF) - (actual[i] & 0xFF);
+      squaredError += diff * diff;
+    }
+    double mse = squaredError / expected.length;
+    return mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / mse);
+  }
+
+  @Test
+  public void testDecodeSpeedQuality() throws IOException {
+    for (String fixture : new String[] {"rgb.jpg", "prime_shaped.jpg"}) {
+      ImageReader reader = getReader(fixture);
+      BufferedImage accurate = reader.read(0, null);
+      TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
+      param.setDecodeSpeed(DecodeSpeed.ACCURATE);
+      assertThat(psnr(accurate, reader.read(0, param))).isInfinite();
+      param.setDecodeSpeed(DecodeSpeed.FAST);
+      assertThat(psnr(accurate, reader.read(0, param))).isGreaterThan(40);
+      param.setDecodeSpeed(DecodeSpeed.FASTEST);
+      assertThat(psnr(accurate, reader.read(0, param))).isGreaterThan(30);
+    }
+  }
+
+  @Test
+  public void testReadRegionIsCompact() throws IOException {
+    ImageReader reader = getReader("crop_unaligned.jpg");
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(116, 148, 204, 172));
+    BufferedImage img = reader.read(0, param);
+    assertThat(img.getRaster().getDataBuffer().getSize()).isEqualTo(204 * 172 * 3);
+  }
+
+  @Test
+  public void testReadRegionMatchesFullDecode() throws IOException {
+    ImageReader reader = getReader("prime_shaped.jpg");
+    for (int imageIndex : new int[] {0, 2, 3}) {
+      BufferedImage full = reader.read(imageIndex, null);
+      Rectangle region =
+          new Rectangle(full.getWidth() / 5, full.getHeight() / 7, full.getWidth() / 2, 37);
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceRegion(region);
+      BufferedImage img = reader.read(imageIndex, param);
+      assertThat(img).hasDimensions(region.width, region.height);
+      BufferedImage expected = new BufferedImage(region.width, region.height, full.getType());
+      expected.setData(
+          full.getRaster()
+              .createChild(region.x, region.y, region.width, region.height, 0, 0, null));
+      // The chroma upsampling at the borders of the decoded MCUs differs slightly
+      assertThat(psnr(expected, img)).isGreaterThan(35);
+    }
+  }
+
+  @Test
+  public void testReadStrips() throws Exception {
+    TurboJpegImageReader reader = getReader("rgb.jpg");
+    // 4:2:0 subsampling, read at full and half size
+    for (int imageIndex : new int[] {0, 4}) {
+      BufferedImage full = reader.read(imageIndex, null);
+      BufferedImage stitched = new BufferedImage(full.getWidth(), full.getHeight(), full.getType());
+      StripDecoder strips = reader.readStrips(imageIndex, null, 3);
+      assertThat(strips.getStripHeight()).isEqualTo(imageIndex == 0 ? 48 : 24);
+      int y = 0;
+      while (strips.hasNext()) {
+        WritableRaster strip = strips.next();
+        assertThat(strip.getMinY()).isEqualTo(y);
+        assertThat(strip.getWidth()).isEqualTo(full.getWidth());
+        assertThat(strip.getHeight())
+            .isEqualTo(Math.min(strips.getStripHeight(), full.getHeight() - y));
+        stitched.getRaster().setRect(strip);
+        y += strip.getHeight();
+      }
+      assertThat(y).isEqualTo(full.getHeight());
+      // The chroma upsampling at the borders of the strips differs slightly
+      assertThat(psnr(full, stitched)).isGreaterThan(35);
+    }
+  }
+
+  @Test
+  public void testReadRasterBand() throws IOException {
+    ImageReader reader = getReader("rgb.jpg");
+    assertThat(reader.canReadRaster()).isTrue();
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(0, 64, 512, 32));
+    Raster band = reader.readRaster(0, param);
+    assertThat(band.getWidth()).isEqualTo(512);
+    assertThat(band.getHeight()).isEqualTo(32);
+  }
+
   @Test
   public void testCropFullWidth() throws IOException {
     ImageReader reader = getReader("prime_shaped.jpg");
@@ -225,11 +592,91 @@ class TurboJpegImageReaderTest {
   }
 
   @Test
-  public void testReadCMYKDelegatesToDefault() throws IOException {
+  public void testReadCMYK() throws IOException {
+    TurboJpegImageReader reader = getReader("cmyk.jpg");
+    assertThat(reader.getImageTypes(0).next().getNumBands()).isEqualTo(4);
+    BufferedImage img = reader.read(0, null);
+    assertThat(img).hasDimensions(245, 58);
+    assertThat(img.getColorModel().getColorSpace().getType()).isEqualTo(ColorSpace.TYPE_CMYK);
+
+    // The JDK reader returns the stored samples, which are inverted in Adobe images
+    ImageReader jdkReader = null;
+    for (Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("jpeg"); it.hasNext(); ) {
+      ImageReader candidate = it.next();
+      if (!(candidate instanceof TurboJpegImageReader)) {
+        jdkReader = candidate;
+      }
+    }
+    assertThat(jdkReader).isNotNull();
     File inFile = new File(ClassLoader.getSystemResource("cmyk.jpg").getFile());
-    ImageInputStream is = ImageIO.createImageInputStream(inFile);
-    ImageReader reader = ImageIO.getImageReaders(is).next();
-    assertThat(reader).isNotInstanceOf(TurboJpegImageReader.class);
+    jdkReader.setInput(ImageIO.createImageInputStream(inFile));
+    Raster stored = jdkReader.readRaster(0, null);
+    long totalDifference = 0;
+    for (int y = 0; y < img.getHeight(); y++) {
+      for (int x = 0; x < img.getWidth(); x++) {
+        for (int b = 0; b < 4; b++) {
+          totalDifference +=
+              Math.abs(img.getRaster().getSample(x, y, b) - (255 - stored.getSample(x, y, b)));
+        }
+      }
+    }
+    assertThat((double) totalDifference / (img.getWidth() * img.getHeight() * 4)).isLessThan(1.0);
+  }
+
+  @Test
+  public void testReadCMYKConverted() throws IOException {
+    TurboJpegImageReader reader = getReader("cmyk.jpg");
+    BufferedImage cmyk = reader.read(0, null);
+    for (int type : new int[] {BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB}) {
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setDestinationType(ImageTypeSpecifier.createFromBufferedImageType(type));
+      BufferedImage rgb = reader.read(0, param);
+      assertThat(rgb.getType()).isEqualTo(type);
+      // The fast conversion uses the same formula as the color space of the CMYK image
+      for (int y = 0; y < cmyk.getHeight(); y++) {
+        for (int x = 0; x < cmyk.getWidth(); x++) {
+          int expected = cmyk.getRGB(x, y);
+          int actual = rgb.getRGB(x, y);
+          for (int shift = 0; shift < 24; shift += 8) {
+            assertThat(Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF)))
+                .isLessThanOrEqualTo(1);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReadCMYKRegionScaledAndRotated() throws IOException {
+    TurboJpegImageReader reader = getReader("cmyk.jpg");
+    for (int imageIndex : new int[] {0, 2}) {
+      BufferedImage full = reader.read(imageIndex, null);
+      Rectangle region =
+          new Rectangle(full.getWidth() / 5, full.getHeight() / 4, full.getWidth() / 2, 21);
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceRegion(region);
+      BufferedImage img = reader.read(imageIndex, param);
+      assertThat(img).hasDimensions(region.width, region.height);
+      assertThat(img.getColorModel().getColorSpace().getType()).isEqualTo(ColorSpace.TYPE_CMYK);
+      BufferedImage expected =
+          new BufferedImage(
+              full.getColorModel(),
+              full.getRaster().createCompatibleWritableRaster(region.width, region.height),
+              false,
+              null);
+      expected.setData(
+          full.getRaster()
+              .createChild(region.x, region.y, region.width, region.height, 0, 0, null));
+      assertThat(psnr(expected, img)).isGreaterThan(35);
+    }
+    TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
+    param.setRotationDegree(90);
+    param.setSourceRegion(new Rectangle(8, 16, 200, 32));
+    param.setDestinationType(
+        ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB));
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).hasDimensions(32, 200);
+    assertThat(img.getType()).isEqualTo(BufferedImage.TYPE_INT_RGB);
   }
 
   @Test
@@ -269,6 +716,176 @@ class TurboJpegImageReaderTest {
     assertThat(extraCrop).isEqualTo(extraCropExpected);
   }
 
+  @Test
+  void testCombineOperations() {
+    assertThat(TurboJpegImageReader.combine(TJXOP.TJXOP_ROT90, TJXOP.TJXOP_ROT90))
+        .isEqualTo(TJXOP.TJXOP_ROT180);
+    assertThat(TurboJpegImageReader.combine(TJXOP.TJXOP_ROT90, TJXOP.TJXOP_ROT180))
+        .isEqualTo(TJXOP.TJXOP_ROT270);
+    assertThat(TurboJpegImageReader.combine(TJXOP.TJXOP_HFLIP, TJXOP.TJXOP_ROT90))
+        .isEqualTo(TJXOP.TJXOP_TRANSVERSE);
+    assertThat(TurboJpegImageReader.combine(TJXOP.TJXOP_ROT90, TJXOP.TJXOP_HFLIP))
+        .isEqualTo(TJXOP.TJXOP_TRANSPOSE);
+    assertThat(TurboJpegImageReader.combine(TJXOP.TJXOP_TRANSPOSE, TJXOP.TJXOP_TRANSPOSE))
+        .isEqualTo(TJXOP.TJXOP_NONE);
+    // The composition must match applying both operations to the pixels one after the other
+    BufferedImage img = new BufferedImage(3, 2, BufferedImage.TYPE_BYTE_GRAY);
+    img.getRaster().setSamples(0, 0, 3, 2, 0, new int[] {1, 2, 3, 4, 5, 6});
+    for (TJXOP first : TJXOP.values()) {
+      for (TJXOP then : TJXOP.values()) {
+        BufferedImage expected =
+            TurboJpegImageReader.applyOperation(
+                TurboJpegImageReader.applyOperation(img, first), then);
+        BufferedImage actual =
+            TurboJpegImageReader.applyOperation(img, TurboJpegImageReader.combine(first, then));
+        assertThat(actual).as("%s then %s", first, then).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  void testAdjustFlippedRegion() {
+    TurboJpegImageReader reader = new TurboJpegImageReader(null, null);
+    Dimension mcuSize = new Dimension(8, 8);
+    Dimension imageSize = new Dimension(64, 48);
+    Rectangle region = new Rectangle(8, 16, 24, 8);
+    assertThat(reader.adjustRegion(mcuSize, region, TJXOP.TJXOP_HFLIP, imageSize))
+        .isEqualTo(new Rectangle(0, 0, 24, 8));
+    assertThat(region).isEqualTo(new Rectangle(32, 16, 24, 8));
+
+    region = new Rectangle(8, 16, 24, 8);
+    assertThat(reader.adjustRegion(mcuSize, region, TJXOP.TJXOP_VFLIP, imageSize))
+        .isEqualTo(new Rectangle(0, 0, 24, 8));
+    assertThat(region).isEqualTo(new Rectangle(8, 24, 24, 8));
+
+    region = new Rectangle(8, 16, 24, 8);
+    assertThat(reader.adjustRegion(mcuSize, region, TJXOP.TJXOP_TRANSPOSE, imageSize))
+        .isEqualTo(new Rectangle(0, 0, 8, 24));
+    assertThat(region).isEqualTo(new Rectangle(16, 8, 8, 24));
+
+    region = new Rectangle(8, 16, 24, 8);
+    assertThat(reader.adjustRegion(mcuSize, region, TJXOP.TJXOP_TRANSVERSE, imageSize))
+        .isEqualTo(new Rectangle(0, 0, 8, 24));
+    assertThat(region).isEqualTo(new Rectangle(24, 32, 8, 24));
+
+    // Rotations by degrees are mapped to the same operations
+    region = new Rectangle(8, 16, 24, 8);
+    Rectangle rotated = new Rectangle(region);
+    reader.adjustRegion(mcuSize, region, 90, imageSize);
+    reader.adjustRegion(mcuSize, rotated, TJXOP.TJXOP_ROT90, imageSize);
+    assertThat(region).isEqualTo(rotated).isEqualTo(new Rectangle(24, 8, 8, 24));
+
+    // The 16×8 MCUs of 4:2:2 images are 8×16 in the transposed image
+    region = new Rectangle(8, 16, 8, 24);
+    assertThat(reader.adjustRegion(new Dimension(16, 8), region, TJXOP.TJXOP_TRANSPOSE, imageSize))
+        .isEqualTo(new Rectangle(0, 8, 24, 8));
+    assertThat(region).isEqualTo(new Rectangle(16, 0, 24, 16));
+  }
+
+  @Test
+  public void testReadAutoOriented() throws Exception {
+    byte[] jpeg =
+        Files.readAllBytes(new File(ClassLoader.getSystemResource("rgb.jpg").toURI()).toPath());
+    BufferedImage stored = ImageIO.read(new ByteArrayInputStream(jpeg));
+    for (int orientation = 1; orientation <= 8; orientation++) {
+      TurboJpegImageReader reader = getReader(withOrientation(jpeg, orientation));
+      TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
+      param.setAutoOrient(true);
+      BufferedImage img = reader.read(0, param);
+      BufferedImage expected =
+          TurboJpegImageReader.applyOperation(
+              stored, TurboJpeg.getOrientationTransform(orientation));
+      assertThat(meanDifference(img, expected)).as("orientation %d", orientation).isLessThan(1.0);
+    }
+  }
+
+  @Test
+  public void testReadAutoOrientedUnaligned() throws Exception {
+    // The partial MCUs at the edges can not be flipped losslessly, so the pixels are oriented
+    byte[] jpeg =
+        Files.readAllBytes(
+            new File(ClassLoader.getSystemResource("prime_shaped.jpg").toURI()).toPath());
+    TurboJpegImageReader reader = getReader(withOrientation(jpeg, 6));
+    assertThat(reader.getWidth(0)).isEqualTo(521);
+    TurboJpegImageReadParam param = (TurboJpegImageReadParam) reader.getDefaultReadParam();
+    param.setAutoOrient(true);
+    param.setRotationDegree(90);
+    BufferedImage img = reader.read(0, param);
+    assertThat(img).hasDimensions(521, 509);
+    BufferedImage stored = ImageIO.read(new ByteArrayInputStream(jpeg));
+    assertThat(meanDifference(img, TurboJpegImageReader.applyOperation(stored, TJXOP.TJXOP_ROT180)))
+        .isLessThan(1.0);
+  }
+
+  private TurboJpegImageReader getReader(byte[] jpeg) throws IOException {
+    TurboJpegImageReader reader =
+        (TurboJpegImageReader) ImageIO.getImageReadersByFormatName("jpeg").next();
+    reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg)));
+    return reader;
+  }
+
+  /** Insert an EXIF segment holding only the orientation after the SOI marker. */
+  private static byte[] withOrientation(byte[] jpeg, int orientation) {
+    byte[] exif = {
+      (byte) 0xFF,
+      (byte) 0xE1,
+      0,
+      34,
+      'E',
+      'x',
+      'i',
+      'f',
+      0,
+      0,
+      'M',
+      'M',
+      0,
+      42,
+      0,
+      0,
+      0,
+      8,
+      0,
+      1,
+      0x01,
+      0x12,
+      0,
+      3,
+      0,
+      0,
+      0,
+      1,
+      0,
+      (byte) orientation,
+      0,
+      0,
+      0,
+      0,
+      0,
+      0
+    };
+    byte[] out = new byte[jpeg.length + exif.length];
+    System.arraycopy(jpeg, 0, out, 0, 2);
+    System.arraycopy(exif, 0, out, 2, exif.length);
+    System.arraycopy(jpeg, 2, out, 2 + exif.length, jpeg.length - 2);
+    return out;
+  }
+
+  private static double meanDifference(BufferedImage a, BufferedImage b) {
+    assertThat(a).hasDimensions(b.getWidth(), b.getHeight());
+    long totalDifference = 0;
+    for (int y = 0; y < a.getHeight(); y++) {
+      for (int x = 0; x < a.getWidth(); x++) {
+        int rgbA = a.getRGB(x, y);
+        int rgbB = b.getRGB(x, y);
+        for (int shift = 0; shift < 24; shift += 8) {
+          totalDifference += Math.abs(((rgbA >> shift) & 0xFF) - ((rgbB >> shift) & 0xFF));
+        }
+      }
+    }
+    return (double) totalDifference / (a.getWidth() * a.getHeight() * 3);
+  }
+
   @Test
   public void testReadGrayscale() throws IOException {
     ImageReader reader = getReader("grayscale.jpg");
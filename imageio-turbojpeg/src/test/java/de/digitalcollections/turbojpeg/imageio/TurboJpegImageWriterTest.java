@@ -4,16 +4,27 @@ import static de.digitalcollections.turbojpeg.imageio.CustomAssertions.assertTha
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Streams;
+import de.digitalcollections.turbojpeg.EncodeOptions;
+import de.digitalcollections.turbojpeg.TurboJpeg;
+import de.digitalcollections.turbojpeg.lib.enums.TJSAMP;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import org.junit.jupiter.api.Test;
 
@@ -128,4 +139,206 @@ class TurboJpegImageWriterTest {
     BufferedImage jpegImg = ImageIO.read(bis);
     assertThat(jpegImg).hasNoPixelsOfColor(255);
   }
+
+  @Test
+  public void testEncodeStreamsLargeImages() throws Exception {
+    ImageWriter writer =
+        Streams.stream(ImageIO.getImageWritersByFormatName("jpeg"))
+            .filter(TurboJpegImageWriter.class::isInstance)
+            .findFirst()
+            .orElseThrow(RuntimeException::new);
+    // Noise compresses badly, so the output is spread over many chunks
+    BufferedImage noise = new BufferedImage(1024, 768, BufferedImage.TYPE_3BYTE_BGR);
+    new Random(42).nextBytes(((DataBufferByte) noise.getRaster().getDataBuffer()).getData());
+    BufferedImage small = ImageIO.read(ClassLoader.getSystemResource("crop_aligned.jpg"));
+    try (TurboJpeg lib = new TurboJpeg()) {
+      for (BufferedImage in : new BufferedImage[] {small, noise, small}) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+          writer.setOutput(ios);
+          writer.write(null, new IIOImage(in, null, null), null);
+        }
+        assertThat(os.toByteArray()).isEqualTo(lib.encode(in.getRaster(), 85).array());
+        BufferedImage jpegImg = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+        assertThat(jpegImg).hasDimensions(in.getWidth(), in.getHeight());
+      }
+    }
+  }
+
+  private static byte[] write(BufferedImage in, ImageWriteParam param) throws IOException {
+    ImageWriter writer =
+        Streams.stream(ImageIO.getImageWritersByFormatName("jpeg"))
+            .filter(TurboJpegImageWriter.class::isInstance)
+            .findFirst()
+            .orElseThrow(RuntimeException::new);
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(os)) {
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(in, null, null), param);
+    }
+    return os.toByteArray();
+  }
+
+  @Test
+  public void testEncodeOptions() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("rgb.jpg"));
+    byte[] baseline = write(in, null);
+    try (TurboJpeg lib = new TurboJpeg()) {
+      assertThat(lib.getInfo(baseline).getSubsampling()).isEqualTo(TJSAMP.TJSAMP_420);
+
+      TurboJpegImageWriteParam param = new TurboJpegImageWriteParam(null);
+      param.setSubsampling(TJSAMP.TJSAMP_444);
+      byte[] jpeg = write(in, param);
+      assertThat(lib.getInfo(jpeg).getSubsampling()).isEqualTo(TJSAMP.TJSAMP_444);
+      assertThat(jpeg.length).isGreaterThan(baseline.length);
+
+      param = new TurboJpegImageWriteParam(null);
+      param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+      jpeg = write(in, param);
+      assertThat(hasMarker(jpeg, 0xC2)).isTrue();
+      assertThat(hasMarker(baseline, 0xC2)).isFalse();
+      assertThat(jpeg.length).isLessThan(baseline.length);
+
+      param = new TurboJpegImageWriteParam(null);
+      param.setOptimizeHuffmanTables(true);
+      param.setFastDct(true);
+      jpeg = write(in, param);
+      assertThat(ImageIO.read(new ByteArrayInputStream(jpeg))).hasDimensions(512, 512);
+      if (lib.getApiVersion() >= 3) {
+        assertThat(jpeg.length).isLessThan(baseline.length);
+      }
+    }
+  }
+
+  @Test
+  public void testEncodeSourceRegionOfAllLayouts() throws Exception {
+    BufferedImage rgb = ImageIO.read(ClassLoader.getSystemResource("rgb.jpg"));
+    Rectangle region = new Rectangle(37, 61, 300, 200);
+    int[] types = {
+      BufferedImage.TYPE_3BYTE_BGR,
+      BufferedImage.TYPE_4BYTE_ABGR,
+      BufferedImage.TYPE_INT_RGB,
+      BufferedImage.TYPE_INT_ARGB,
+      BufferedImage.TYPE_INT_BGR,
+      BufferedImage.TYPE_USHORT_565_RGB
+    };
+    BufferedImage expected = rgb.getSubimage(region.x, region.y, region.width, region.height);
+    for (int type : types) {
+      BufferedImage in = new BufferedImage(512, 512, type);
+      in.getGraphics().drawImage(rgb, 0, 0, null);
+      TurboJpegImageWriteParam param = new TurboJpegImageWriteParam(null);
+      param.setSourceRegion(region);
+      param.setSubsampling(TJSAMP.TJSAMP_444);
+      BufferedImage out = ImageIO.read(new ByteArrayInputStream(write(in, param)));
+      assertThat(out).hasDimensions(region.width, region.height);
+      // The 565 layout is not supported by the library and loses precision in the conversion
+      double tolerance = type == BufferedImage.TYPE_USHORT_565_RGB ? 8 : 4;
+      assertThat(meanDifference(expected, out)).as("type %d", type).isLessThan(tolerance);
+    }
+  }
+
+  @Test
+  public void testEncodeUnalignedRegionOfBinary() throws Exception {
+    BufferedImage in = ImageIO.read(ClassLoader.getSystemResource("binary.tif"));
+    Rectangle region = new Rectangle(13, 7, in.getWidth() - 21, in.getHeight() - 9);
+    TurboJpegImageWriteParam param = new TurboJpegImageWriteParam(null);
+    param.setSourceRegion(region);
+    BufferedImage out = ImageIO.read(new ByteArrayInputStream(write(in, param)));
+    assertThat(out).hasDimensions(region.width, region.height);
+    long mismatches = 0;
+    for (int y = 0; y < region.height; y++) {
+      for (int x = 0; x < region.width; x++) {
+        boolean set = in.getRaster().getSample(region.x + x, region.y + y, 0) != 0;
+        boolean bright = out.getRaster().getSample(x, y, 0) >= 128;
+        if (set != bright) {
+          mismatches++;
+        }
+      }
+    }
+    // Only few pixels at sharp edges flip because of the compression
+    assertThat((double) mismatches / (region.width * region.height)).isLessThan(0.02);
+  }
+
+  @Test
+  public void testEncodeParallel() throws Exception {
+    BufferedImage rgb = ImageIO.read(ClassLoader.getSystemResource("rgb.jpg"));
+    BufferedImage gray = new BufferedImage(512, 512, BufferedImage.TYPE_BYTE_GRAY);
+    gray.getGraphics().drawImage(rgb, 0, 0, null);
+    ExecutorService single = Executors.newSingleThreadExecutor();
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try (TurboJpeg lib = new TurboJpeg()) {
+      for (BufferedImage img : new BufferedImage[] {rgb, gray}) {
+        // Neither the width nor the height of the region is a multiple of the MCU size
+        BufferedImage in = img.getSubimage(5, 3, 500, 301);
+        EncodeOptions options = new EncodeOptions();
+        byte[] jpeg = toArray(lib.encodeParallel(in.getRaster(), options, pool, 3));
+        assertThat(toArray(lib.encodeParallel(in.getRaster(), options, single, 3))).isEqualTo(jpeg);
+        assertThat(hasMarker(jpeg, 0xDD)).isTrue();
+
+        BufferedImage out = readWithTurboJpeg(jpeg);
+        assertThat(out).hasDimensions(500, 301);
+        BufferedImage expected = readWithTurboJpeg(toArray(lib.encode(in.getRaster(), options)));
+        assertThat(out.getRaster().getPixels(0, 0, 500, 301, (int[]) null))
+            .isEqualTo(expected.getRaster().getPixels(0, 0, 500, 301, (int[]) null));
+
+        // Progressive images are encoded in one go
+        options.setProgressive(true);
+        assertThat(toArray(lib.encodeParallel(in.getRaster(), options, pool, 3)))
+            .isEqualTo(toArray(lib.encode(in.getRaster(), options)));
+      }
+
+      // A single row of more than 65535 MCUs exceeds the maximum restart interval
+      BufferedImage wide = new BufferedImage(8 * 0x10000 + 8, 16, BufferedImage.TYPE_BYTE_GRAY);
+      EncodeOptions options = new EncodeOptions();
+      assertThat(toArray(lib.encodeParallel(wide.getRaster(), options, pool, 1)))
+          .isEqualTo(toArray(lib.encode(wide.getRaster(), options)));
+    } finally {
+      single.shutdownNow();
+      pool.shutdownNow();
+    }
+  }
+
+  private static BufferedImage readWithTurboJpeg(byte[] jpeg) throws IOException {
+    ImageReader reader =
+        Streams.stream(ImageIO.getImageReadersByFormatName("jpeg"))
+            .filter(TurboJpegImageReader.class::isInstance)
+            .findFirst()
+            .orElseThrow(RuntimeException::new);
+    try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+      reader.setInput(iis);
+      return reader.read(0);
+    } finally {
+      reader.dispose();
+    }
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return data;
+  }
+
+  private static double meanDifference(BufferedImage a, BufferedImage b) {
+    long totalDifference = 0;
+    for (int y = 0; y < a.getHeight(); y++) {
+      for (int x = 0; x < a.getWidth(); x++) {
+        int rgbA = a.getRGB(x, y);
+        int rgbB = b.getRGB(x, y);
+        for (int shift = 0; shift < 24; shift += 8) {
+          totalDifference += Math.abs(((rgbA >> shift) & 0xFF) - ((rgbB >> shift) & 0xFF));
+        }
+      }
+    }
+    return (double) totalDifference / (a.getWidth() * a.getHeight() * 3);
+  }
+
+  /** Whether the JPEG data contains the given marker, ignoring its position. */
+  private static boolean hasMarker(byte[] jpeg, int marker) {
+    for (int i = 0; i + 1 < jpeg.length; i++) {
+      if ((jpeg[i] & 0xFF) == 0xFF && (jpeg[i + 1] & 0xFF) == marker) {
+        return true;
+      }
+    }
+    return false;
+  }
 }